@@ -55,9 +55,12 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.tzutalin.vision.visionrecognition.ObjectTracker;
 import com.tzutalin.vision.visionrecognition.R;
+import com.tzutalin.vision.visionrecognition.VisionDetRet;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -68,11 +71,14 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class Camera2BasicFragment extends Fragment
-        implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback {
+        implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback,
+        LiveAnalyzer.Listener {
 
     /**
      * Conversion from screen rotation to JPEG orientation.
@@ -81,6 +87,13 @@ public class Camera2BasicFragment extends Fragment
     private static final int REQUEST_CAMERA_PERMISSION = 1;
     private static final String FRAGMENT_DIALOG = "dialog";
     public static final String KEY_IMGPATH = "KEY_IMGPATH";
+    public static final String KEY_CAPTURE_ID = "KEY_CAPTURE_ID";
+    private static final String ARG_PERSIST_CAPTURES = "persist_captures";
+
+    /**
+     * Writes captures to disk off the camera thread.
+     */
+    private static final Executor sPersistExecutor = Executors.newSingleThreadExecutor();
 
     static {
         ORIENTATIONS.append(Surface.ROTATION_0, 90);
@@ -122,6 +135,17 @@ public class Camera2BasicFragment extends Fragment
      */
     private static final int STATE_PICTURE_TAKEN = 4;
 
+    /**
+     * Minimum size of the YUV frames analyzed in live mode.
+     */
+    private static final int ANALYSIS_WIDTH = 640;
+    private static final int ANALYSIS_HEIGHT = 480;
+
+    /**
+     * Number of results shown in live mode.
+     */
+    private static final int LIVE_RESULT_COUNT = 3;
+
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
      * {@link TextureView}.
@@ -223,21 +247,67 @@ public class Camera2BasicFragment extends Fragment
      */
     private ImageReader mImageReader;
 
+    /**
+     * An {@link ImageReader} that receives low-resolution YUV frames in live mode.
+     */
+    private ImageReader mAnalysisReader;
+
+    /**
+     * Whether preview frames are continuously fed to {@link #mLiveAnalyzer}.
+     */
+    private boolean mLiveMode;
+
+    /**
+     * Classifies preview frames in live mode.
+     */
+    private LiveAnalyzer mLiveAnalyzer;
+
+    /**
+     * Shows the results of live mode over the preview.
+     */
+    private TextView mLiveResultView;
+
+    /**
+     * This a callback object for {@link #mAnalysisReader}. While the previous frame is still being
+     * classified, only the newest frame is kept and the others are closed right away.
+     */
+    private final ImageReader.OnImageAvailableListener mOnAnalysisImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            mLiveAnalyzer.onImageAvailable(reader);
+        }
+
+    };
+
     /**
      * This is the output file for our picture.
      */
     private File mFile;
 
+    /**
+     * Whether captures are also written to {@link #mFile}. Result activities get them in memory
+     * through {@link CaptureChannel} either way.
+     */
+    private boolean mPersistCaptures;
+
+    /**
+     * The {@link CaptureChannel} id of the still image being captured.
+     */
+    private volatile long mPendingCaptureId = -1;
+
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * still image is ready to be saved.
+     * still image is ready to be handed to the result activity.
      */
     private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
             = new ImageReader.OnImageAvailableListener() {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
+            mBackgroundHandler.post(new ImageHandoff(reader.acquireNextImage(), mPendingCaptureId,
+                    mPersistCaptures ? mFile : null));
         }
 
     };
@@ -384,7 +454,18 @@ public class Camera2BasicFragment extends Fragment
     }
 
     public static Camera2BasicFragment newInstance() {
-        return new Camera2BasicFragment();
+        return newInstance(false);
+    }
+
+    /**
+     * @param persistCaptures true to also write each capture to the external files directory
+     */
+    public static Camera2BasicFragment newInstance(boolean persistCaptures) {
+        Camera2BasicFragment fragment = new Camera2BasicFragment();
+        Bundle args = new Bundle();
+        args.putBoolean(ARG_PERSIST_CAPTURES, persistCaptures);
+        fragment.setArguments(args);
+        return fragment;
     }
 
     @Override
@@ -398,19 +479,28 @@ public class Camera2BasicFragment extends Fragment
         view.findViewById(R.id.picture_scene).setOnClickListener(this);
         view.findViewById(R.id.picture_detect).setOnClickListener(this);
         view.findViewById(R.id.info).setOnClickListener(this);
+        view.findViewById(R.id.live).setOnClickListener(this);
         mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
+        mLiveResultView = (TextView) view.findViewById(R.id.live_result);
     }
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
+        Bundle args = getArguments();
+        mPersistCaptures = args != null && args.getBoolean(ARG_PERSIST_CAPTURES, false);
+        mLiveAnalyzer = new LiveAnalyzer(getActivity(), this);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         startBackgroundThread();
+        if (mLiveMode) {
+            mLiveAnalyzer.setRotation(getFrameRotation());
+            mLiveAnalyzer.start(mAction);
+        }
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
         // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
@@ -487,6 +577,16 @@ public class Camera2BasicFragment extends Fragment
                 mImageReader.setOnImageAvailableListener(
                         mOnImageAvailableListener, mBackgroundHandler);
 
+                // For live mode, we use small YUV frames with the same aspect ratio.
+                Size analysisSize = chooseOptimalSize(map.getOutputSizes(ImageFormat.YUV_420_888),
+                        ANALYSIS_WIDTH, ANALYSIS_HEIGHT, largest);
+                // One image is being classified and one waits for it, so a third one is free
+                // for the camera to write the next frame into.
+                mAnalysisReader = ImageReader.newInstance(analysisSize.getWidth(),
+                        analysisSize.getHeight(), ImageFormat.YUV_420_888, /*maxImages*/3);
+                mAnalysisReader.setOnImageAvailableListener(
+                        mOnAnalysisImageAvailableListener, mBackgroundHandler);
+
                 // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
                 // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
                 // garbage capture data.
@@ -554,6 +654,10 @@ public class Camera2BasicFragment extends Fragment
                 mImageReader.close();
                 mImageReader = null;
             }
+            // The frame being analyzed belongs to the analysis reader, so the analyzer closes the reader
+            // once that frame is done, without blocking this thread
+            mLiveAnalyzer.stopAndClose(mAnalysisReader);
+            mAnalysisReader = null;
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -602,9 +706,13 @@ public class Camera2BasicFragment extends Fragment
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            if (mLiveMode) {
+                mPreviewRequestBuilder.addTarget(mAnalysisReader.getSurface());
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface(),
+                    mAnalysisReader.getSurface()),
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -684,13 +792,100 @@ public class Camera2BasicFragment extends Fragment
     private void sceneRecognize() {
         Log.d(TAG, "sceneRecognize");
         mAction = VisionAction.SceneRecognition;
-        lockFocus();
+        if (mLiveMode) {
+            mLiveAnalyzer.start(mAction);
+        } else {
+            lockFocus();
+        }
     }
 
     private void objDetect() {
         Log.d(TAG, "objDetect");
         mAction = VisionAction.ObjDetect;
-        lockFocus();
+        if (mLiveMode) {
+            mLiveAnalyzer.start(mAction);
+        } else {
+            lockFocus();
+        }
+    }
+
+    /**
+     * Start or stop feeding preview frames to the classifier of the current action. While live mode
+     * is on, the Scene and Objects buttons switch the classifier instead of taking a picture.
+     */
+    private void setLiveMode(boolean enabled) {
+        if (null == mCaptureSession || null == mAnalysisReader) {
+            return;
+        }
+        mLiveMode = enabled;
+        if (enabled) {
+            if (mAction == null) {
+                mAction = VisionAction.SceneRecognition;
+            }
+            mLiveAnalyzer.setRotation(getFrameRotation());
+            mLiveAnalyzer.start(mAction);
+            mPreviewRequestBuilder.addTarget(mAnalysisReader.getSurface());
+        } else {
+            mPreviewRequestBuilder.removeTarget(mAnalysisReader.getSurface());
+            mLiveAnalyzer.stop();
+            mLiveResultView.setText("");
+        }
+        try {
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The clockwise rotation that makes camera frames upright for the current display rotation
+     */
+    private int getFrameRotation() {
+        int rotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
+        return ORIENTATIONS.get(rotation);
+    }
+
+    @Override
+    public void onLiveResult(List<VisionDetRet> rets, long latencyMs, long skippedFrames) {
+        if (!mLiveMode) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (VisionDetRet ret : rets) {
+            if (count == LIVE_RESULT_COUNT) {
+                break;
+            }
+            if ("background".equalsIgnoreCase(ret.getLabel())) {
+                continue;
+            }
+            sb.append(ret.getLabel()).append(", Prob:").append(ret.getConfidence()).append('\n');
+            count++;
+        }
+        sb.append(latencyMs).append(" ms, skipped ").append(skippedFrames);
+        mLiveResultView.setText(sb.toString());
+    }
+
+    @Override
+    public void onLiveTracks(List<ObjectTracker.Track> tracks, long latencyMs, long skippedFrames) {
+        if (!mLiveMode) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (ObjectTracker.Track track : tracks) {
+            if (count == LIVE_RESULT_COUNT) {
+                break;
+            }
+            sb.append('#').append(track.getId()).append(' ').append(track.getLabel())
+                    .append(", Prob:").append(track.getConfidence())
+                    .append(track.isDetected() ? "" : " (tracked)").append('\n');
+            count++;
+        }
+        sb.append(latencyMs).append(" ms, skipped ").append(skippedFrames);
+        mLiveResultView.setText(sb.toString());
     }
     /**
      * Lock the focus as the first step for a still image capture.
@@ -759,7 +954,7 @@ public class Camera2BasicFragment extends Fragment
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    Log.d(TAG, mFile.toString());
+                    Log.d(TAG, "Captured " + mPendingCaptureId);
                     unlockFocus();
 
                     Intent intent = null;
@@ -770,13 +965,14 @@ public class Camera2BasicFragment extends Fragment
                     }
                     if (intent != null) {
                         Bundle bundle = new Bundle();
-                        bundle.putString(Camera2BasicFragment.KEY_IMGPATH, mFile.toString());
+                        bundle.putLong(Camera2BasicFragment.KEY_CAPTURE_ID, mPendingCaptureId);
                         intent.putExtras(bundle);
                         startActivity(intent);
                     }
                 }
             };
 
+            mPendingCaptureId = CaptureChannel.reserve();
             mCaptureSession.stopRepeating();
             mCaptureSession.capture(captureBuilder.build(), captureCallback, null);
         } catch (CameraAccessException e) {
@@ -817,6 +1013,10 @@ public class Camera2BasicFragment extends Fragment
                 objDetect();
                 break;
             }
+            case R.id.live: {
+                setLiveMode(!mLiveMode);
+                break;
+            }
             case R.id.info: {
                 Activity activity = getActivity();
                 if (null != activity) {
@@ -833,37 +1033,60 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Publishes a JPEG {@link Image} to {@link CaptureChannel} and optionally saves it into the
+     * specified {@link File} in the background.
      */
-    private static class ImageSaver implements Runnable {
+    private static class ImageHandoff implements Runnable {
 
         /**
          * The JPEG image
          */
         private final Image mImage;
         /**
-         * The file we save the image into.
+         * The id of the capture in {@link CaptureChannel}
+         */
+        private final long mCaptureId;
+        /**
+         * The file we save the image into, or null to keep it in memory only.
          */
         private final File mFile;
 
-        public ImageSaver(Image image, File file) {
+        public ImageHandoff(Image image, long captureId, File file) {
             mImage = image;
+            mCaptureId = captureId;
             mFile = file;
         }
 
         @Override
         public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
+            final byte[] bytes;
+            try {
+                ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
+                bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+            } finally {
+                mImage.close();
+            }
+            CaptureChannel.publish(mCaptureId, bytes);
+
+            if (null != mFile) {
+                sPersistExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        saveImage(bytes, mFile);
+                    }
+                });
+            }
+        }
+
+        private static void saveImage(byte[] bytes, File file) {
             FileOutputStream output = null;
             try {
-                output = new FileOutputStream(mFile);
+                output = new FileOutputStream(file);
                 output.write(bytes);
             } catch (IOException e) {
                 e.printStackTrace();
             } finally {
-                mImage.close();
                 if (null != output) {
                     try {
                         output.close();
@@ -30,6 +30,11 @@ public class CameraActivity extends Activity {
     private static final int REQUEST_CODE_PERMISSION = 1;
 
     private static final String TAG = "CameraActivity";
+    /**
+     * Boolean extra: also write each capture to the external files directory, e.g.
+     * {@code adb shell am start -n com.tzutalin.vision.demo/.CameraActivity --ez persist_captures true}
+     */
+    public static final String EXTRA_PERSIST_CAPTURES = "persist_captures";
 
     // Storage Permissions
     private static String[] PERMISSIONS_REQ = {
@@ -50,9 +55,14 @@ public class CameraActivity extends Activity {
             avialbe_permission = verifyPermissions(this);
         }
 
+        if (avialbe_permission) {
+            ((VisionApplication) getApplication()).preloadModels();
+        }
+
         if (avialbe_permission && null == savedInstanceState) {
             getFragmentManager().beginTransaction()
-                    .replace(R.id.container, Camera2BasicFragment.newInstance())
+                    .replace(R.id.container, Camera2BasicFragment.newInstance(
+                            getIntent().getBooleanExtra(EXTRA_PERSIST_CAPTURES, false)))
                     .commit();
         }
     }
@@ -0,0 +1,95 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.tzutalin.vision.demo;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import com.tzutalin.vision.visionrecognition.BitmapDecoder;
+
+/**
+ * Hands captured JPEG frames from the camera to the result activities in memory, so a capture
+ * does not have to be written to and read back from the disk.
+ * <p>
+ * The camera reserves an id before capturing and publishes the JPEG once the image is available,
+ * which may happen after the result activity has started and is already waiting for it. Only the
+ * latest capture is kept, until its activity finishes, so an activity recreated after a rotation
+ * gets it again.
+ */
+final class CaptureChannel {
+    private static final BitmapDecoder sDecoder = new BitmapDecoder();
+    private static long sNextId;
+    private static long sPublishedId = -1;
+    private static byte[] sPublishedData;
+
+    private CaptureChannel() throws InstantiationException {
+        throw new InstantiationException("This class is not for instantiation");
+    }
+
+    /**
+     * @return The id of the next capture
+     */
+    static synchronized long reserve() {
+        return sNextId++;
+    }
+
+    /**
+     * Make a capture available to {@link #await(long, long)}. It replaces the previous capture.
+     */
+    static synchronized void publish(long id, byte[] jpeg) {
+        sPublishedId = id;
+        sPublishedData = jpeg;
+        CaptureChannel.class.notifyAll();
+    }
+
+    /**
+     * Wait for a capture. It stays in the channel until {@link #release(long)}.
+     *
+     * @param id        The id returned by {@link #reserve()}
+     * @param timeoutMs The maximum time to wait
+     * @return The JPEG data, or null if it did not arrive in time or was replaced by a newer capture
+     */
+    static synchronized byte[] await(long id, long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        while (sPublishedId < id) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return null;
+            }
+            CaptureChannel.class.wait(remaining);
+        }
+        if (sPublishedId != id) {
+            return null;
+        }
+        return sPublishedData;
+    }
+
+    /**
+     * Drop a capture that is no longer needed, unless a newer one replaced it already.
+     */
+    static synchronized void release(long id) {
+        if (sPublishedId == id) {
+            sPublishedData = null;
+        }
+    }
+
+    /**
+     * Decode a JPEG once, subsampled as much as possible while both sides stay at least minSide.
+     */
+    static Bitmap decode(byte[] jpeg, int minSide) {
+        return sDecoder.decodeByteArray(jpeg, minSide, false);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.tzutalin.vision.demo;
+
+import android.media.Image;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the newest camera frame from the camera thread to the inference thread without locking.
+ * <p>
+ * The slot holds at most one frame. Putting a frame swaps it in and closes the one it replaces right
+ * away, so the {@link android.media.ImageReader} gets its buffer back and the camera never stalls on a
+ * slow consumer; taking a frame swaps the slot empty. The consumer thus always gets the newest frame,
+ * and a frame waits at most one inference.
+ * <p>
+ * The frames are preallocated holders, given back with {@link #recycle(Frame)}, so that a preview at
+ * 30 frames per second does not allocate on every frame.
+ */
+class FrameSlot {
+    // One in the slot, one being put by the camera thread and one taken by the consumer
+    private static final int HOLDER_COUNT = 3;
+
+    private final AtomicReference<Frame> mSlot = new AtomicReference<>();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final Frame[] mHolders = new Frame[HOLDER_COUNT];
+    // 1 where the holder of the same index is in use
+    private final AtomicIntegerArray mInUse = new AtomicIntegerArray(HOLDER_COUNT);
+
+    /**
+     * A camera frame, the time it arrived and its index in the object tracker.
+     */
+    static final class Frame {
+        // The index of the holder, or -1 if it was allocated because none was free
+        private final int mIndex;
+        Image image;
+        long arrivalTime;
+        long trackerFrame;
+
+        Frame(int index) {
+            mIndex = index;
+        }
+    }
+
+    FrameSlot() {
+        for (int i = 0; i != HOLDER_COUNT; i++) {
+            mHolders[i] = new Frame(i);
+        }
+    }
+
+    /**
+     * Put a frame in the slot, closing the frame it replaces. Called by the camera thread.
+     *
+     * @param trackerFrame The index of the frame in the object tracker, or -1 if there is no tracker
+     */
+    void put(Image image, long arrivalTime, long trackerFrame) {
+        Frame frame = obtain();
+        frame.image = image;
+        frame.arrivalTime = arrivalTime;
+        frame.trackerFrame = trackerFrame;
+        Frame old = mSlot.getAndSet(frame);
+        if (old != null) {
+            close(old.image);
+            recycle(old);
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The newest frame, now owned by the caller until it calls {@link #recycle(Frame)}, or null
+     * if the slot is empty
+     */
+    Frame take() {
+        return mSlot.getAndSet(null);
+    }
+
+    /**
+     * Give back a frame taken from the slot, once its fields are read. The image is not closed.
+     */
+    void recycle(Frame frame) {
+        frame.image = null;
+        if (frame.mIndex >= 0) {
+            mInUse.set(frame.mIndex, 0);
+        }
+    }
+
+    boolean isEmpty() {
+        return mSlot.get() == null;
+    }
+
+    /**
+     * Close the frame left in the slot, if any.
+     */
+    void clear() {
+        Frame old = mSlot.getAndSet(null);
+        if (old != null) {
+            close(old.image);
+            recycle(old);
+        }
+    }
+
+    /**
+     * @return The number of frames replaced by a newer one before being taken
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    void resetDroppedCount() {
+        mDroppedCount.set(0);
+    }
+
+    /**
+     * Close an image given to the slot. Overridden by the tests, which cannot create images.
+     */
+    void close(Image image) {
+        image.close();
+    }
+
+    private Frame obtain() {
+        for (int i = 0; i != HOLDER_COUNT; i++) {
+            if (mInUse.compareAndSet(i, 0, 1)) {
+                return mHolders[i];
+            }
+        }
+        // A taken frame was not recycled yet
+        return new Frame(-1);
+    }
+}
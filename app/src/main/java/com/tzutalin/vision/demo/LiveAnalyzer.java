@@ -0,0 +1,405 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.tzutalin.vision.demo;
+
+import android.content.Context;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.tzutalin.vision.visionrecognition.AsyncClassifier;
+import com.tzutalin.vision.visionrecognition.CaffeClassifier;
+import com.tzutalin.vision.visionrecognition.ClassifierMetrics;
+import com.tzutalin.vision.visionrecognition.ClassifyOptions;
+import com.tzutalin.vision.visionrecognition.DetectionPostProcessor;
+import com.tzutalin.vision.visionrecognition.ModelRegistry;
+import com.tzutalin.vision.visionrecognition.ObjectDetector;
+import com.tzutalin.vision.visionrecognition.ObjectTracker;
+import com.tzutalin.vision.visionrecognition.ResolutionController;
+import com.tzutalin.vision.visionrecognition.VisionClassifierCreator;
+import com.tzutalin.vision.visionrecognition.VisionDetRet;
+import com.tzutalin.vision.visionrecognition.YuvFrame;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the scene classifier or the object detector on YUV_420_888 preview frames, which are
+ * converted straight to the model input size.
+ * Frames arriving while the previous one is still being classified wait in a {@link FrameSlot},
+ * where each newer frame replaces the waiting one, so results come at the speed of the model
+ * instead of piling up and are never more than one inference behind the camera. For object detection, an {@link ObjectTracker}
+ * predicts the boxes on the frames the detector does not run on, and a {@link ResolutionController}
+ * lowers the detector input scale of each frame on devices too slow to hold the latency budget at full
+ * scale, when the detector backend gets faster with a smaller input. The native backend rescales every
+ * input to its own scale, so there the detections are spaced out instead: the tracker's detection interval
+ * follows the measured latency, so that the detector runs at most half of the time.
+ */
+class LiveAnalyzer {
+    private static final String TAG = "LiveAnalyzer";
+    private static final String BACKGROUND_LABEL = "background";
+    private static final int METRICS_REPORT_INTERVAL = 30;
+    private static final int MIN_DETECT_SCALE = 240;
+    private static final long DETECT_LATENCY_BUDGET_MS = 250;
+    // The share of the time the detector may run when its cost does not depend on the input scale
+    private static final float DETECT_DUTY_CYCLE = 0.5f;
+    private static final int MIN_DETECT_INTERVAL = 5;
+    private static final int MAX_DETECT_INTERVAL = 30;
+    private static final float FRAME_PERIOD_SMOOTHING = 0.1f;
+
+    interface Listener {
+        /**
+         * Called on the main thread for every analyzed frame.
+         *
+         * @param rets          The results of the frame
+         * @param latencyMs     The time from frame arrival to result
+         * @param skippedFrames The number of frames skipped since analysis started
+         */
+        void onLiveResult(List<VisionDetRet> rets, long latencyMs, long skippedFrames);
+
+        /**
+         * Called on the main thread for every frame in object detection mode.
+         *
+         * @param tracks        The tracked objects on the frame
+         * @param latencyMs     The time from frame arrival to result
+         * @param skippedFrames The number of frames skipped since analysis started
+         */
+        void onLiveTracks(List<ObjectTracker.Track> tracks, long latencyMs, long skippedFrames);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final FrameSlot mSlot = new FrameSlot();
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+
+    private volatile AsyncClassifier<List<VisionDetRet>> mAsyncClassifier;
+    private volatile ObjectTracker mTracker;
+    private volatile ResolutionController mResolution;
+    // The classifier is shared through the registry, so the settings of the analyzer go with each frame
+    private volatile ClassifyOptions mOptions;
+    private ModelRegistry.Lease<? extends CaffeClassifier<List<VisionDetRet>>> mLease;
+    private int mGeneration;
+
+    private volatile int mRotation;
+    // Measured on the camera thread
+    private long mLastArrivalTime;
+    private volatile float mFramePeriodMs = -1;
+
+    LiveAnalyzer(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    /**
+     * Set the clockwise rotation that makes frames upright: 0, 90, 180 or 270.
+     */
+    void setRotation(int rotationDegrees) {
+        mRotation = rotationDegrees;
+    }
+
+    /**
+     * Load the classifier for the given action in the background and start analyzing frames.
+     */
+    void start(final Camera2BasicFragment.VisionAction action) {
+        stop();
+        final int generation;
+        synchronized (this) {
+            generation = ++mGeneration;
+        }
+        mSlot.resetDroppedCount();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ModelRegistry.Lease<? extends CaffeClassifier<List<VisionDetRet>>> lease;
+                ClassifyOptions options = null;
+                try {
+                    ModelRegistry registry = ModelRegistry.getInstance(mContext);
+                    if (action == Camera2BasicFragment.VisionAction.ObjDetect) {
+                        ModelRegistry.Lease<ObjectDetector> detectorLease =
+                                registry.acquire(VisionClassifierCreator.createObjectDetector(mContext), 0, 0);
+                        ObjectDetector detector = detectorLease.get();
+                        options = detector.getOptions().buildUpon()
+                                .setPostProcessor(new DetectionPostProcessor.Builder()
+                                        .dropClass(detector.getClassId(BACKGROUND_LABEL))
+                                        .build())
+                                .build();
+                        lease = detectorLease;
+                    } else {
+                        lease = registry.acquire(VisionClassifierCreator.createSceneClassifier(mContext), 224, 224);
+                    }
+                } catch (IllegalAccessException e) {
+                    Log.e(TAG, "Cannot load the model for " + action, e);
+                    return;
+                }
+
+                synchronized (LiveAnalyzer.this) {
+                    if (generation != mGeneration) {
+                        // Stopped while loading
+                        lease.release();
+                        return;
+                    }
+                    mLease = lease;
+                    mOptions = options;
+                    lease.get().getMetrics().setListener(new ClassifierMetrics.Listener() {
+                        @Override
+                        public void onReport(ClassifierMetrics metrics) {
+                            Log.d(TAG, "Stage latencies\n" + metrics);
+                        }
+                    }, METRICS_REPORT_INTERVAL);
+                    mTracker = action == Camera2BasicFragment.VisionAction.ObjDetect
+                            ? new ObjectTracker.Builder().setDetectionInterval(MIN_DETECT_INTERVAL).build() : null;
+                    if (action == Camera2BasicFragment.VisionAction.ObjDetect) {
+                        ObjectDetector detector = (ObjectDetector) lease.get();
+                        mResolution = detector.isInputScaleAdaptive()
+                                ? new ResolutionController.Builder(MIN_DETECT_SCALE,
+                                        detector.getInputScale(), DETECT_LATENCY_BUDGET_MS).build()
+                                : null;
+                    }
+                    mAsyncClassifier = new AsyncClassifier<>(lease.get(), 1,
+                            AsyncClassifier.OverflowPolicy.LATEST_WINS);
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Stop analyzing frames. The classifier is given back to the registry once its last frame is done.
+     */
+    void stop() {
+        stopAndClose(null);
+    }
+
+    /**
+     * Stop analyzing frames and close the reader the frames come from. The inference thread reads the planes
+     * of the frame being analyzed, so the reader is closed once that frame is done, in the background unless
+     * no frame is being analyzed.
+     *
+     * @param reader The reader of the frames, or null
+     */
+    void stopAndClose(final ImageReader reader) {
+        final AsyncClassifier<List<VisionDetRet>> asyncClassifier;
+        final ModelRegistry.Lease<? extends CaffeClassifier<List<VisionDetRet>>> lease;
+        final ResolutionController resolution;
+        synchronized (this) {
+            mGeneration++;
+            asyncClassifier = mAsyncClassifier;
+            lease = mLease;
+            resolution = mResolution;
+            mOptions = null;
+            mAsyncClassifier = null;
+            mTracker = null;
+            mResolution = null;
+            mLease = null;
+        }
+        mSlot.clear();
+        if (asyncClassifier == null) {
+            if (reader != null) {
+                reader.close();
+            }
+            return;
+        }
+        asyncClassifier.shutdown();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    asyncClassifier.awaitTermination(0);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting for the last frame");
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+                lease.get().getMetrics().setListener(null, 1);
+                if (resolution != null) {
+                    Log.d(TAG, "Input resolution " + resolution);
+                }
+                lease.release();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Called on the camera thread when a preview frame is ready.
+     */
+    void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        long arrivalTime = SystemClock.elapsedRealtime();
+        if (mLastArrivalTime > 0) {
+            long period = arrivalTime - mLastArrivalTime;
+            mFramePeriodMs = mFramePeriodMs < 0
+                    ? period : mFramePeriodMs + FRAME_PERIOD_SMOOTHING * (period - mFramePeriodMs);
+        }
+        mLastArrivalTime = arrivalTime;
+        final ObjectTracker tracker = mTracker;
+        if (mAsyncClassifier == null) {
+            image.close();
+            return;
+        }
+        boolean detect = true;
+        List<ObjectTracker.Track> tracks = null;
+        long trackerFrame = -1;
+        if (tracker != null) {
+            // Every frame moves the tracks ahead, so that late detections know which frame they are of
+            synchronized (tracker) {
+                detect = tracker.shouldDetect();
+                tracks = tracker.predict();
+                trackerFrame = tracker.getFrame();
+            }
+        }
+        if (detect) {
+            mSlot.put(image, arrivalTime, trackerFrame);
+            if (mAsyncClassifier == null) {
+                // stop() cleared the slot before the put, nothing would close the image
+                mSlot.clear();
+                return;
+            }
+            if (drain()) {
+                return;
+            }
+        } else {
+            image.close();
+        }
+        // The frame is not detected right away, show where the tracked objects should be on it
+        if (tracks != null) {
+            postTracks(tracks, arrivalTime);
+        }
+    }
+
+    /**
+     * Submit the frame of the slot unless a frame is being analyzed. Called by the camera thread when it
+     * fills the slot and by the inference thread when it is done with a frame.
+     *
+     * @return true if a frame was submitted
+     */
+    private boolean drain() {
+        while (mBusy.compareAndSet(false, true)) {
+            FrameSlot.Frame frame = mSlot.take();
+            if (frame != null) {
+                submit(frame);
+                return true;
+            }
+            mBusy.set(false);
+            // A frame put between the take and the reset would otherwise wait for the next one
+            if (mSlot.isEmpty()) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void submit(FrameSlot.Frame frame) {
+        // The holder goes back to the slot at once, the callbacks below only use these copies
+        final Image image = frame.image;
+        final long arrivalTime = frame.arrivalTime;
+        final long frameIndex = frame.trackerFrame;
+        mSlot.recycle(frame);
+        AsyncClassifier<List<VisionDetRet>> asyncClassifier = mAsyncClassifier;
+        final ObjectTracker tracker = mTracker;
+        final ResolutionController resolution = mResolution;
+        if (asyncClassifier == null) {
+            image.close();
+            mBusy.set(false);
+            return;
+        }
+        // The detector is shared, so the input scale goes with the frame instead of being set on it
+        ClassifyOptions options = mOptions;
+        if (resolution != null && options != null) {
+            options = options.buildUpon().setInputScale(resolution.getSide()).build();
+        }
+
+        // The planes are read by the inference thread, so the image is closed once the frame is done
+        asyncClassifier.submit(YuvFrame.fromImage(image), null, mRotation, options, null,
+                new AsyncClassifier.Callback<List<VisionDetRet>>() {
+                    @Override
+                    public void onResult(final List<VisionDetRet> rets) {
+                        image.close();
+                        if (resolution != null) {
+                            resolution.onFrame(SystemClock.elapsedRealtime() - arrivalTime);
+                        }
+                        mBusy.set(false);
+                        drain();
+                        if (tracker != null) {
+                            // The boxes are of a frame the tracks have since been predicted past: they
+                            // correct the tracks on that frame, which are then predicted forward again
+                            List<ObjectTracker.Track> tracks;
+                            synchronized (tracker) {
+                                long trackerFrame = frameIndex;
+                                if (trackerFrame < 0 || trackerFrame > tracker.getFrame()) {
+                                    // Put before the tracker of this session was created
+                                    trackerFrame = tracker.getFrame();
+                                }
+                                tracks = tracker.update(rets, trackerFrame);
+                                if (resolution == null) {
+                                    adaptDetectionInterval(tracker,
+                                            SystemClock.elapsedRealtime() - arrivalTime);
+                                }
+                            }
+                            postTracks(tracks, arrivalTime);
+                            return;
+                        }
+                        final long latency = SystemClock.elapsedRealtime() - arrivalTime;
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mListener.onLiveResult(rets, latency, mSlot.getDroppedCount());
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        image.close();
+                        mBusy.set(false);
+                        drain();
+                    }
+                });
+    }
+
+    /**
+     * Space out the detections so that a detector taking the given time runs at most its duty cycle.
+     * Called with the tracker locked.
+     */
+    private void adaptDetectionInterval(ObjectTracker tracker, long latencyMs) {
+        float framePeriodMs = mFramePeriodMs;
+        if (framePeriodMs <= 0) {
+            return;
+        }
+        int interval = (int) Math.ceil(latencyMs / (DETECT_DUTY_CYCLE * framePeriodMs));
+        interval = Math.max(MIN_DETECT_INTERVAL, Math.min(MAX_DETECT_INTERVAL, interval));
+        if (interval != tracker.getDetectionInterval()) {
+            tracker.setDetectionInterval(interval);
+            Log.d(TAG, "Detecting every " + interval + " frames");
+        }
+    }
+
+    private void postTracks(final List<ObjectTracker.Track> tracks, long arrivalTime) {
+        final long latency = SystemClock.elapsedRealtime() - arrivalTime;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onLiveTracks(tracks, latency, mSlot.getDroppedCount());
+            }
+        });
+    }
+}
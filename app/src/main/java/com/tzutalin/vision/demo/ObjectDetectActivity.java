@@ -18,7 +18,6 @@ package com.tzutalin.vision.demo;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -32,18 +31,38 @@ import android.widget.Toast;
 import com.dexafree.materialList.card.Card;
 import com.dexafree.materialList.card.provider.BigImageCardProvider;
 import com.dexafree.materialList.view.MaterialListView;
+import com.tzutalin.vision.visionrecognition.BitmapDecoder;
+import com.tzutalin.vision.visionrecognition.ClassifyOptions;
+import com.tzutalin.vision.visionrecognition.DetectionPostProcessor;
+import com.tzutalin.vision.visionrecognition.ModelRegistry;
 import com.tzutalin.vision.visionrecognition.ObjectDetector;
+import com.tzutalin.vision.visionrecognition.TiledDetector;
 import com.tzutalin.vision.visionrecognition.R;
 import com.tzutalin.vision.visionrecognition.VisionClassifierCreator;
 import com.tzutalin.vision.visionrecognition.VisionDetRet;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ObjectDetectActivity extends Activity {
     private final static String TAG = "ObjectDetectActivity";
-    private ObjectDetector mObjectDet;
+    // Fast R-CNN rescales its input to a 600 pixel short side
+    private final static int DETECT_MIN_SIDE = 600;
+    // Captures are detected in 600 pixel tiles of a larger decode, 2x3 tiles for a 4:3 capture, so that
+    // small objects are not lost to the downscaling. The tiles share the one native net and run in turn.
+    private final static int TILED_MIN_SIDE = 1000;
+    private final static long CAPTURE_TIMEOUT_MS = 5000;
+    private final static String BACKGROUND_LABEL = "background";
+    private final static float MIN_CONFIDENCE = 0.5f;
+    private final static float NMS_IOU_THRESHOLD = 0.3f;
+    private final static int MAX_DETECTIONS = 20;
+    // Written by the detect task and released by onDestroy, whichever sees the other last
+    private volatile ModelRegistry.Lease<ObjectDetector> mObjectDetLease;
+    private volatile boolean mDestroyed;
+    // The detector is shared through the registry, so the settings of this screen go with each call
+    private ClassifyOptions mDetectOptions;
     // UI
     MaterialListView mListView;
     @Override
@@ -52,17 +71,32 @@ public class ObjectDetectActivity extends Activity {
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.activity_object_detect);
         mListView = (MaterialListView) findViewById(R.id.material_listview);
-        final String key = Camera2BasicFragment.KEY_IMGPATH;
-        String imgPath = getIntent().getExtras().getString(key);
-        if (!new File(imgPath).exists()) {
+        Bundle extras = getIntent().getExtras();
+        long captureId = extras.getLong(Camera2BasicFragment.KEY_CAPTURE_ID, -1);
+        String imgPath = extras.getString(Camera2BasicFragment.KEY_IMGPATH);
+        if (captureId < 0 && (imgPath == null || !new File(imgPath).exists())) {
             Toast.makeText(this, "No file path", Toast.LENGTH_SHORT).show();
             this.finish();
             return;
         }
-        DetectTask task = new DetectTask();
+        DetectTask task = new DetectTask(captureId);
         task.execute(imgPath);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        if (isFinishing()) {
+            // Kept until now so that the activity recreated after a rotation finds the capture
+            CaptureChannel.release(getIntent().getLongExtra(Camera2BasicFragment.KEY_CAPTURE_ID, -1));
+        }
+        ModelRegistry.Lease<ObjectDetector> lease = mObjectDetLease;
+        if (lease != null) {
+            lease.release();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -85,6 +119,12 @@ public class ObjectDetectActivity extends Activity {
     // ==========================================================
     private class DetectTask extends AsyncTask<String, Void, List<VisionDetRet>> {
         private ProgressDialog mmDialog;
+        private final long mmCaptureId;
+        private Bitmap mmInputBitmap;
+
+        DetectTask(long captureId) {
+            mmCaptureId = captureId;
+        }
 
         @Override
         protected void onPreExecute() {
@@ -98,21 +138,66 @@ public class ObjectDetectActivity extends Activity {
             long startTime;
             long endTime;
             Log.d(TAG, "DetectTask filePath:" + filePath);
-            if (mObjectDet == null) {
+            if (mObjectDetLease == null) {
                 try {
-                    mObjectDet = VisionClassifierCreator.createObjectDetector(getApplicationContext());
+                    // Preloaded by VisionApplication, and kept by the registry across photos
                     // TODO: Get Image's height and width
-                    mObjectDet.init(0, 0);
+                    ModelRegistry.Lease<ObjectDetector> lease = ModelRegistry.getInstance(getApplicationContext())
+                            .acquire(VisionClassifierCreator.createObjectDetector(getApplicationContext()), 0, 0);
+                    mObjectDetLease = lease;
+                    if (mDestroyed) {
+                        lease.release();
+                        return new ArrayList<>();
+                    }
+                    ObjectDetector detector = lease.get();
+                    mDetectOptions = detector.getOptions().buildUpon()
+                            .setPostProcessor(new DetectionPostProcessor.Builder()
+                                    .dropClass(detector.getClassId(BACKGROUND_LABEL))
+                                    .setDefaultThreshold(MIN_CONFIDENCE)
+                                    .setIouThreshold(NMS_IOU_THRESHOLD)
+                                    .setMaxDetections(MAX_DETECTIONS)
+                                    .build())
+                            .build();
                 } catch (IllegalAccessException e) {
                     e.printStackTrace();
                 }
             }
+            // Captures come in memory and are decoded once, straight to the size the detector needs
+            Bitmap bitmap = null;
+            if (mmCaptureId >= 0) {
+                try {
+                    byte[] jpeg = CaptureChannel.await(mmCaptureId, CAPTURE_TIMEOUT_MS);
+                    if (jpeg != null) {
+                        bitmap = CaptureChannel.decode(jpeg, TILED_MIN_SIDE);
+                        mmInputBitmap = bitmap;
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting for capture " + mmCaptureId);
+                }
+            }
             List<VisionDetRet> ret = new ArrayList<>();
-            if (mObjectDet != null) {
+            if (mObjectDetLease != null && (bitmap != null || filePath != null)) {
                 startTime = System.currentTimeMillis();
                 Log.d(TAG, "Start objDetect");
-                ret.addAll(mObjectDet.classifyByPath(filePath));
-                Log.d(TAG, "end objDetect");
+                if (bitmap != null) {
+                    TiledDetector tiled = new TiledDetector.Builder(
+                            Collections.singletonList(mObjectDetLease.get()))
+                            .setTileSize(DETECT_MIN_SIDE)
+                            .setOptions(mDetectOptions)
+                            .setMerger(new DetectionPostProcessor.Builder()
+                                    .setIouThreshold(NMS_IOU_THRESHOLD)
+                                    .setMaxDetections(MAX_DETECTIONS)
+                                    .build())
+                            .build();
+                    try {
+                        ret.addAll(tiled.detect(bitmap));
+                    } finally {
+                        tiled.release();
+                    }
+                } else {
+                    ret.addAll(mObjectDetLease.get().classifyByPath(filePath, mDetectOptions));
+                }
+                Log.d(TAG, "end objDetect. Stage latencies\n" + mObjectDetLease.get().getMetrics());
                 endTime = System.currentTimeMillis();
                 final double diffTime = (double) (endTime - startTime) / 1000;
                 runOnUiThread(new Runnable() {
@@ -122,14 +207,18 @@ public class ObjectDetectActivity extends Activity {
                     }
                 });
             }
-            File beDeletedFile = new File(filePath);
-            if (beDeletedFile.exists()) {
-                beDeletedFile.delete();
-            } else {
-                Log.d(TAG, "file does not exist " + filePath);
+            if (filePath != null) {
+                if (mmInputBitmap == null) {
+                    mmInputBitmap = new BitmapDecoder().decodeFile(filePath, DETECT_MIN_SIDE, false);
+                }
+                File beDeletedFile = new File(filePath);
+                if (beDeletedFile.exists()) {
+                    beDeletedFile.delete();
+                } else {
+                    Log.d(TAG, "file does not exist " + filePath);
+                }
             }
 
-            mObjectDet.deInit();
             return ret;
         }
 
@@ -139,19 +228,16 @@ public class ObjectDetectActivity extends Activity {
             if (mmDialog != null) {
                 mmDialog.dismiss();
             }
-            // TODO: Remvoe it
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = 4;
-            String retImgPath = "/sdcard/temp.jpg";
-            Bitmap bitmap = BitmapFactory.decodeFile(retImgPath, options);
-
-            Drawable d = new BitmapDrawable(getResources(), bitmap);
-            Card card = new Card.Builder(ObjectDetectActivity.this)
-                    .withProvider(BigImageCardProvider.class)
-                    .setDrawable(d)
-                    .endConfig()
-                    .build();
-            mListView.add(card);
+            if (mmInputBitmap != null) {
+                Drawable d = new BitmapDrawable(getResources(), mmInputBitmap);
+                Card card = new Card.Builder(ObjectDetectActivity.this)
+                        .withProvider(BigImageCardProvider.class)
+                        .setDescription("Input image")
+                        .setDrawable(d)
+                        .endConfig()
+                        .build();
+                mListView.add(card);
+            }
             for (VisionDetRet item : rets) {
                 StringBuilder sb = new StringBuilder();
                 sb.append(item.getLabel())
@@ -164,22 +250,14 @@ public class ObjectDetectActivity extends Activity {
                         .append(']');
                 Log.d(TAG, sb.toString());
 
-                if (!item.getLabel().equalsIgnoreCase("background")) {
-                    card = new Card.Builder(ObjectDetectActivity.this)
-                            .withProvider(BigImageCardProvider.class)
-                            .setTitle("Detect Result")
-                            .setDescription(sb.toString())
-                            .endConfig()
-                            .build();
-                    mListView.add(card);
-                }
-            }
-
-            File beDeletedFile = new File(retImgPath);
-            if (beDeletedFile.exists()) {
-                beDeletedFile.delete();
+                Card card = new Card.Builder(ObjectDetectActivity.this)
+                        .withProvider(BigImageCardProvider.class)
+                        .setTitle("Detect Result")
+                        .setDescription(sb.toString())
+                        .endConfig()
+                        .build();
+                mListView.add(card);
             }
-
         }
     }
 }
@@ -19,7 +19,6 @@ package com.tzutalin.vision.demo;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -30,6 +29,8 @@ import android.view.MenuItem;
 import android.view.Window;
 import android.widget.Toast;
 
+import com.tzutalin.vision.visionrecognition.BitmapDecoder;
+import com.tzutalin.vision.visionrecognition.ModelRegistry;
 import com.tzutalin.vision.visionrecognition.R;
 import com.tzutalin.vision.visionrecognition.SceneClassifier;
 import com.tzutalin.vision.visionrecognition.VisionClassifierCreator;
@@ -44,9 +45,13 @@ import java.util.List;
 
 public class SceneRecognitionActivity extends Activity {
     private final static String TAG = "SceneRecognitionActivity";
+    private final static int MODEL_DIM = 224;
+    private final static long CAPTURE_TIMEOUT_MS = 5000;
     // UI
     MaterialListView mListView;
-    private SceneClassifier mClassifier;
+    // Written by the predict task and released by onDestroy, whichever sees the other last
+    private volatile ModelRegistry.Lease<SceneClassifier> mClassifierLease;
+    private volatile boolean mDestroyed;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,36 +59,30 @@ public class SceneRecognitionActivity extends Activity {
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.activity_scene_recognition);
         mListView = (MaterialListView) findViewById(R.id.material_listview);
-        final String key = Camera2BasicFragment.KEY_IMGPATH;
-        String imgPath = getIntent().getExtras().getString(key);
-        if (!new File(imgPath).exists()) {
+        Bundle extras = getIntent().getExtras();
+        long captureId = extras.getLong(Camera2BasicFragment.KEY_CAPTURE_ID, -1);
+        String imgPath = extras.getString(Camera2BasicFragment.KEY_IMGPATH);
+        if (captureId < 0 && (imgPath == null || !new File(imgPath).exists())) {
             Toast.makeText(this, "No file path", Toast.LENGTH_SHORT).show();
             this.finish();
             return;
         }
 
-        PredictTask task = new PredictTask();
+        PredictTask task = new PredictTask(captureId);
         task.execute(imgPath);
-
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = 4;
-        Bitmap bm = BitmapFactory.decodeFile(imgPath, options);
-        Drawable d = new BitmapDrawable(getResources(), bm);
-
-        Card card = new Card.Builder(SceneRecognitionActivity.this)
-                .withProvider(BigImageCardProvider.class)
-                .setDescription("Input image")
-                .setDrawable(d)
-                .endConfig()
-                .build();
-        mListView.add(card);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mClassifier != null) {
-            mClassifier.deInit();
+        mDestroyed = true;
+        if (isFinishing()) {
+            // Kept until now so that the activity recreated after a rotation finds the capture
+            CaptureChannel.release(getIntent().getLongExtra(Camera2BasicFragment.KEY_CAPTURE_ID, -1));
+        }
+        ModelRegistry.Lease<SceneClassifier> lease = mClassifierLease;
+        if (lease != null) {
+            lease.release();
         }
     }
 
@@ -114,6 +113,13 @@ public class SceneRecognitionActivity extends Activity {
     // ==========================================================
     private class PredictTask extends AsyncTask<String, Void, List<VisionDetRet>> {
         private ProgressDialog mmDialog;
+        private final long mmCaptureId;
+        // Decoded once, used both as the model input and as the displayed image
+        private Bitmap mmInputBitmap;
+
+        PredictTask(long captureId) {
+            mmCaptureId = captureId;
+        }
 
         @Override
         protected void onPreExecute() {
@@ -129,16 +135,24 @@ public class SceneRecognitionActivity extends Activity {
             final String filePath = strings[0];
             List<VisionDetRet> rets = new ArrayList<>();
             Log.d(TAG, "PredictTask filePath:" + filePath);
-            if (mClassifier != null) {
-
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inSampleSize = 4;
-                Log.d(TAG, "format:" + options.inPreferredConfig);
-                Bitmap bitmapImg = BitmapFactory.decodeFile(filePath, options);
+            if (mmCaptureId >= 0) {
+                try {
+                    byte[] jpeg = CaptureChannel.await(mmCaptureId, CAPTURE_TIMEOUT_MS);
+                    if (jpeg != null) {
+                        mmInputBitmap = CaptureChannel.decode(jpeg, MODEL_DIM);
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting for capture " + mmCaptureId);
+                }
+            } else if (filePath != null) {
+                mmInputBitmap = new BitmapDecoder().decodeFile(filePath, MODEL_DIM, false);
+            }
+            if (!mDestroyed && mClassifierLease != null && mmInputBitmap != null) {
                 startTime = System.currentTimeMillis();
-                rets.addAll(mClassifier.classify(bitmapImg));
+                rets.addAll(mClassifierLease.get().classify(mmInputBitmap));
 
                 endTime = System.currentTimeMillis();
+                Log.d(TAG, "Stage latencies\n" + mClassifierLease.get().getMetrics());
                 final double diffTime = (double) (endTime - startTime) / 1000;
                 runOnUiThread(new Runnable() {
                     @Override
@@ -147,11 +161,13 @@ public class SceneRecognitionActivity extends Activity {
                     }
                 });
             }
-            File beDeletedFile = new File(filePath);
-            if (beDeletedFile.exists()) {
-                beDeletedFile.delete();
-            } else {
-                Log.d(TAG, "file does not exist " + filePath);
+            if (filePath != null) {
+                File beDeletedFile = new File(filePath);
+                if (beDeletedFile.exists()) {
+                    beDeletedFile.delete();
+                } else {
+                    Log.d(TAG, "file does not exist " + filePath);
+                }
             }
             return rets;
         }
@@ -163,6 +179,17 @@ public class SceneRecognitionActivity extends Activity {
                 mmDialog.dismiss();
             }
 
+            if (mmInputBitmap != null) {
+                Drawable d = new BitmapDrawable(getResources(), mmInputBitmap);
+                Card card = new Card.Builder(SceneRecognitionActivity.this)
+                        .withProvider(BigImageCardProvider.class)
+                        .setDescription("Input image")
+                        .setDrawable(d)
+                        .endConfig()
+                        .build();
+                mListView.add(card);
+            }
+
             ArrayList<String> items = new ArrayList<>();
             for (VisionDetRet each : rets) {
                 items.add("[" + each.getLabel() + "] Prob: " + each.getConfidence());
@@ -185,12 +212,19 @@ public class SceneRecognitionActivity extends Activity {
     // Private methods
     // ==========================================================
     private void initCaffeMobile() {
-        if (mClassifier == null) {
+        if (mClassifierLease == null) {
             try {
-                mClassifier = VisionClassifierCreator.createSceneClassifier(getApplicationContext());
+                SceneClassifier classifier = VisionClassifierCreator.createSceneClassifier(getApplicationContext());
                 Log.d(TAG, "Start Load model");
                 // TODO : Fix it
-                mClassifier.init(224,224);  // init once
+                // Preloaded by VisionApplication and shared through the registry, which waits for the
+                // preload if it is still running
+                ModelRegistry.Lease<SceneClassifier> lease =
+                        ModelRegistry.getInstance(getApplicationContext()).acquire(classifier, 224, 224);
+                mClassifierLease = lease;
+                if (mDestroyed) {
+                    lease.release();
+                }
                 Log.d(TAG, "End Load model");
             } catch (IllegalAccessException e) {
                 e.printStackTrace();
@@ -0,0 +1,75 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.demo;
+
+import android.app.Application;
+import android.util.Log;
+
+import com.tzutalin.vision.visionrecognition.ModelPreloader;
+import com.tzutalin.vision.visionrecognition.VisionClassifierCreator;
+
+/**
+ * Preloads the demo models, so taking the first picture does not wait for them to load.
+ */
+public class VisionApplication extends Application {
+    private static final String TAG = "VisionApplication";
+    private static final int WARMUP_RUNS = 2;
+    private static final int WARMUP_SIZE = 224;
+
+    private ModelPreloader mPreloader;
+
+    /**
+     * Start loading the models in the background unless they are loading or loaded. The models are read
+     * from external storage, so call it once the storage permission is granted.
+     */
+    public synchronized void preloadModels() {
+        if (mPreloader != null && mPreloader.getState() != ModelPreloader.State.FAILED) {
+            return;
+        }
+        if (mPreloader != null) {
+            mPreloader.release();
+        }
+        try {
+            // Same sizes as the activities, so they lease the preloaded instances
+            mPreloader = new ModelPreloader.Builder(this)
+                    .add(VisionClassifierCreator.createSceneClassifier(this), 224, 224)
+                    .add(VisionClassifierCreator.createObjectDetector(this), 0, 0)
+                    .setWarmupRuns(WARMUP_RUNS)
+                    .setWarmupSize(WARMUP_SIZE, WARMUP_SIZE)
+                    .build();
+            mPreloader.start();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            mPreloader = null;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            // Let the registry release the models once the activities are done with them
+            synchronized (this) {
+                if (mPreloader != null) {
+                    Log.d(TAG, "Release preloaded models");
+                    mPreloader.release();
+                    mPreloader = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.tzutalin.vision.demo;
+
+import android.media.Image;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameSlotTest {
+
+    @Test
+    public void takesTheNewestFrameAndClosesTheOthers() {
+        CountingSlot slot = new CountingSlot();
+        slot.put(null, 1, 10);
+        slot.put(null, 2, 11);
+
+        FrameSlot.Frame frame = slot.take();
+
+        assertEquals(2, frame.arrivalTime);
+        assertEquals(11, frame.trackerFrame);
+        assertEquals(1, slot.mClosed);
+        assertEquals(1, slot.getDroppedCount());
+        assertNull(slot.take());
+        assertTrue(slot.isEmpty());
+    }
+
+    @Test
+    public void recyclesTheFrameHolders() {
+        CountingSlot slot = new CountingSlot();
+        Set<FrameSlot.Frame> holders = Collections.newSetFromMap(new IdentityHashMap<FrameSlot.Frame, Boolean>());
+
+        for (int i = 0; i != 1000; i++) {
+            // A slow consumer: several frames replace each other before one is taken
+            slot.put(null, i, i);
+            slot.put(null, i, i);
+            FrameSlot.Frame frame = slot.take();
+            holders.add(frame);
+            slot.recycle(frame);
+        }
+
+        assertTrue(holders.size() + " holders", holders.size() <= 3);
+        assertEquals(1000, slot.mClosed);
+    }
+
+    @Test
+    public void aFrameKeptByTheConsumerIsNotReused() {
+        CountingSlot slot = new CountingSlot();
+        slot.put(null, 1, 1);
+        FrameSlot.Frame kept = slot.take();
+
+        for (int i = 0; i != 10; i++) {
+            slot.put(null, 2, 2);
+        }
+
+        assertEquals(1, kept.arrivalTime);
+        assertNotNull(slot.take());
+    }
+
+    @Test
+    public void clearClosesTheWaitingFrame() {
+        CountingSlot slot = new CountingSlot();
+        slot.put(null, 1, 1);
+
+        slot.clear();
+
+        assertEquals(1, slot.mClosed);
+        assertTrue(slot.isEmpty());
+    }
+
+    /**
+     * Counts the closed images, which are null as tests cannot create any.
+     */
+    private static final class CountingSlot extends FrameSlot {
+        int mClosed;
+
+        @Override
+        void close(Image image) {
+            mClosed++;
+        }
+    }
+}
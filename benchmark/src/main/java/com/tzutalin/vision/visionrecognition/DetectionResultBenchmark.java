@@ -0,0 +1,111 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an {@link ObjectDetector} on a {@link SimulatedBackend} without latency, so the numbers are those
+ * of the Java side of a call: reading the detections into the reused {@link DetectionBatch}, turning them
+ * into {@link VisionDetRet}s, and the {@link DetectionPostProcessor}. {@link #backendOnly()} is the share
+ * of the simulated forward pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetectionResultBenchmark {
+    // The PASCAL VOC classes and the background
+    private static final int CLASS_COUNT = 21;
+
+    @Param({"30", "300"})
+    public int detectionCount;
+
+    private File mSynsetFile;
+    private File mImageFile;
+    private String mImagePath;
+    private SimulatedBackend mBackend;
+    private ObjectDetector mDetector;
+    private ClassifyOptions mPostProcessed;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSynsetFile = NativeStandIn.writeSynsetFile(CLASS_COUNT);
+        mImageFile = NativeStandIn.writeImageFile();
+        mImagePath = mImageFile.getAbsolutePath();
+        mBackend = SimulatedBackend.forDetection(CLASS_COUNT, detectionCount);
+        mDetector = new ObjectDetector(null, "model", "weights", null, mSynsetFile.getAbsolutePath(), mBackend);
+        mDetector.init(0, 0);
+        mPostProcessed = mDetector.getOptions().buildUpon()
+                .setPostProcessor(new DetectionPostProcessor.Builder()
+                        .dropClass(0)
+                        .setDefaultThreshold(0.3f)
+                        .setMaxDetections(20)
+                        .build())
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDetector.deInit();
+        mSynsetFile.delete();
+        mImageFile.delete();
+    }
+
+    @Benchmark
+    public int backendOnly() {
+        return mBackend.runPath(mImagePath);
+    }
+
+    @Benchmark
+    public DetectionBatch packed() {
+        return mDetector.classifyPackedByPath(mImagePath);
+    }
+
+    @Benchmark
+    public List<VisionDetRet> list() {
+        return mDetector.classifyByPath(mImagePath);
+    }
+
+    @Benchmark
+    public DetectionBatch packedPostProcessed() {
+        return mDetector.classifyPackedByPath(mImagePath, mPostProcessed);
+    }
+
+    @Benchmark
+    public List<VisionDetRet> listPostProcessed() {
+        return mDetector.classifyByPath(mImagePath, mPostProcessed);
+    }
+}
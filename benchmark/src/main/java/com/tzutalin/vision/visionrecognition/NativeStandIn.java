@@ -0,0 +1,118 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Produces the inputs of the benchmarks from a fixed seed: synset files, an image file and the output of
+ * a softmax layer, so the Java code around the native calls can be benchmarked on a desktop JVM.
+ */
+final class NativeStandIn {
+    private static final int SEED = 0x5eed;
+
+    private NativeStandIn() throws InstantiationException {
+        throw new InstantiationException("This class is not for initialization");
+    }
+
+    /**
+     * @return Labels shaped like the synset file entries, "n00000000" onwards
+     */
+    static String[] createSynsets(int count) {
+        String[] synsets = new String[count];
+        for (int i = 0; i != count; i++) {
+            synsets[i] = String.format("n%08d", i);
+        }
+        return synsets;
+    }
+
+    /**
+     * Write a synset file in the ImageNet format, such as "n01440764 tench, Tinca tinca".
+     */
+    static File writeSynsetFile(int count) throws IOException {
+        File file = File.createTempFile("synset", ".txt");
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        try {
+            String[] synsets = createSynsets(count);
+            for (int i = 0; i != count; i++) {
+                writer.write(synsets[i] + " label " + i + ", description of the label " + i + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Write a small file standing in for an image. {@link SimulatedBackend} only reads its path, length and
+     * modification time.
+     */
+    static File writeImageFile() throws IOException {
+        File file = File.createTempFile("image", ".jpg");
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("not a jpeg");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return The output of the softmax layer of a classifier, as jniClassifyBitmap returns it
+     */
+    static float[] createProbabilities(int count) {
+        Random random = new Random(SEED);
+        float[] probabilities = new float[count];
+        float sum = 0;
+        for (int i = 0; i != count; i++) {
+            // Skewed so a few classes dominate, like a real softmax
+            float value = random.nextFloat();
+            probabilities[i] = value * value * value * value;
+            sum += probabilities[i];
+        }
+        for (int i = 0; i != count; i++) {
+            probabilities[i] /= sum;
+        }
+        return probabilities;
+    }
+
+    /**
+     * A linear congruential generator, so the data does not depend on the JDK's Random.
+     */
+    private static final class Random {
+        private long mState;
+
+        Random(long seed) {
+            mState = seed;
+        }
+
+        float nextFloat() {
+            return (next() >>> 8) / (float) (1 << 24);
+        }
+
+        private int next() {
+            mState = mState * 6364136223846793005L + 1442695040888963407L;
+            return (int) (mState >>> 32);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link SceneClassifier} on a {@link SimulatedBackend} without latency, so the numbers are those of
+ * the Java side of a call: the top-K selection and the results. {@link #backendOnly()} is the share of the
+ * simulated forward pass, and {@link #sortPrediction()} the full sort the classifier used to do instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneResultBenchmark {
+    // Places205 and ImageNet
+    @Param({"205", "1000"})
+    public int classCount;
+
+    private File mSynsetFile;
+    private File mImageFile;
+    private String mImagePath;
+    private SimulatedBackend mBackend;
+    private SceneClassifier mClassifier;
+    private ClassifyOptions mTop1;
+    private String[] mSynsets;
+    private float[] mProbabilities;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSynsetFile = NativeStandIn.writeSynsetFile(classCount);
+        mImageFile = NativeStandIn.writeImageFile();
+        mImagePath = mImageFile.getAbsolutePath();
+        mBackend = SimulatedBackend.forClassification(classCount);
+        mClassifier = new SceneClassifier(null, "model", "weights", null, mSynsetFile.getAbsolutePath(),
+                mBackend);
+        mClassifier.init(224, 224);
+        mTop1 = mClassifier.getOptions().buildUpon().setTopK(1).build();
+        mSynsets = NativeStandIn.createSynsets(classCount);
+        mProbabilities = NativeStandIn.createProbabilities(classCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mClassifier.deInit();
+        mSynsetFile.delete();
+        mImageFile.delete();
+    }
+
+    @Benchmark
+    public int backendOnly() {
+        return mBackend.runPath(mImagePath);
+    }
+
+    @Benchmark
+    public List<VisionDetRet> classify() {
+        return mClassifier.classifyByPath(mImagePath);
+    }
+
+    @Benchmark
+    public List<VisionDetRet> classifyTop1() {
+        return mClassifier.classifyByPath(mImagePath, mTop1);
+    }
+
+    @Benchmark
+    public Map<String, Float> sortPrediction() {
+        return Utils.sortPrediction(mSynsets, mProbabilities);
+    }
+}
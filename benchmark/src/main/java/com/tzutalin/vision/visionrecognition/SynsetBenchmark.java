@@ -0,0 +1,75 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the labels of a synset file, mapped and indexed by {@link LabelTable} as
+ * {@link CaffeClassifier#init(int, int)} does, and looks labels up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynsetBenchmark {
+    @Param({"205", "1000"})
+    public int classCount;
+
+    private File mSynsetFile;
+    private LabelTable mLabels;
+    private int mNextClassId;
+
+    @Setup
+    public void setUp() throws IOException {
+        mSynsetFile = NativeStandIn.writeSynsetFile(classCount);
+        mLabels = LabelTable.open(mSynsetFile.getAbsolutePath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSynsetFile.delete();
+    }
+
+    @Benchmark
+    public LabelTable mapLabelTable() {
+        return LabelTable.map(mSynsetFile);
+    }
+
+    @Benchmark
+    public String getLabel() {
+        mNextClassId = (mNextClassId + 1) % classCount;
+        return mLabels.getLabel(mNextClassId);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a {@link CaffeClassifier} on its own inference thread, so callers such as camera callbacks
+ * never block on a forward pass.
+ * <p>
+ * Requests wait in a bounded queue. What happens when it is full is decided by the
+ * {@link OverflowPolicy}. The classifier must be initialized by the caller, must not be used
+ * directly while this object runs, and is not released by {@link #shutdown()}.
+ *
+ * @param <T> The result type of the classifier
+ */
+public final class AsyncClassifier<T> {
+    private static final String TAG = "AsyncClassifier";
+
+    /**
+     * What to do with a request when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Fail the new request with a {@link RejectedExecutionException}.
+         */
+        REJECT,
+        /**
+         * Cancel the oldest queued request to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Cancel every queued request as soon as a new one arrives, whatever the capacity.
+         * Suited to camera frames where only the newest one matters.
+         */
+        LATEST_WINS
+    }
+
+    /**
+     * Receives the outcome of a request on the delivery {@link Executor}.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /**
+         * @param error The failure of the classifier, a {@link CancellationException} if the request was
+         *              dropped, or a {@link RejectedExecutionException} if it was rejected
+         */
+        void onError(Throwable error);
+    }
+
+    private final CaffeClassifier<T> mClassifier;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final ArrayDeque<Request> mQueue;
+    private final Thread mWorker;
+    private boolean mShutdown;
+    private long mDroppedCount;
+
+    private final class Request extends FutureTask<T> {
+        private final Executor mExecutor;
+        private final Callback<T> mCallback;
+
+        Request(Callable<T> callable, @Nullable Executor executor, @Nullable Callback<T> callback) {
+            super(callable);
+            mExecutor = executor;
+            mCallback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null) {
+                return;
+            }
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCallback.onResult(get());
+                    } catch (CancellationException e) {
+                        mCallback.onError(e);
+                    } catch (ExecutionException e) {
+                        mCallback.onError(e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            if (mExecutor != null) {
+                mExecutor.execute(delivery);
+            } else {
+                delivery.run();
+            }
+        }
+
+        void reject() {
+            setException(new RejectedExecutionException("Queue is full"));
+        }
+    }
+
+    /**
+     * @param classifier An initialized classifier
+     * @param capacity   The number of requests that can wait for the inference thread
+     * @param policy     What to do when the queue is full
+     */
+    public AsyncClassifier(@NonNull CaffeClassifier<T> classifier, int capacity, @NonNull OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive");
+        }
+        mClassifier = classifier;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mQueue = new ArrayDeque<>(capacity);
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processRequests();
+            }
+        }, TAG + "-" + classifier.getClass().getSimpleName());
+        mWorker.start();
+    }
+
+    /**
+     * Queue a bitmap. The bitmap must not be recycled before the request completes.
+     *
+     * @return The pending result
+     */
+    @NonNull
+    public Future<T> submit(@NonNull Bitmap bitmap) {
+        return submit(bitmap, null, null);
+    }
+
+    /**
+     * Queue a bitmap. The bitmap must not be recycled before the request completes.
+     *
+     * @param executor Runs the callback, or null to run it on the inference thread
+     * @param callback Receives the outcome
+     * @return The pending result
+     */
+    @NonNull
+    public Future<T> submit(@NonNull final Bitmap bitmap, @Nullable Executor executor, @Nullable Callback<T> callback) {
+        return enqueue(new Request(new Callable<T>() {
+            @Override
+            public T call() {
+                return mClassifier.classify(bitmap);
+            }
+        }, executor, callback));
+    }
+
+    /**
+     * Queue a YUV frame, see {@link CaffeClassifier#classify(YuvFrame, Rect, int)}. The frame buffers must
+     * stay valid until the request completes, so release them from the callback, which is also called
+     * when the request is dropped.
+     *
+     * @param executor Runs the callback, or null to run it on the inference thread
+     * @param callback Receives the outcome
+     * @return The pending result
+     */
+    @NonNull
+    public Future<T> submit(@NonNull YuvFrame frame, @Nullable Rect crop, int rotationDegrees,
+                            @Nullable Executor executor, @Nullable Callback<T> callback) {
+        return submit(frame, crop, rotationDegrees, null, executor, callback);
+    }
+
+    /**
+     * Queue a YUV frame with the options of this request, see
+     * {@link CaffeClassifier#classify(YuvFrame, Rect, int, ClassifyOptions)}.
+     *
+     * @param options  The settings of this request, or null for the options of the classifier
+     * @param executor Runs the callback, or null to run it on the inference thread
+     * @param callback Receives the outcome
+     * @return The pending result
+     */
+    @NonNull
+    public Future<T> submit(@NonNull final YuvFrame frame, @Nullable final Rect crop, final int rotationDegrees,
+                            @Nullable final ClassifyOptions options, @Nullable Executor executor,
+                            @Nullable Callback<T> callback) {
+        return enqueue(new Request(new Callable<T>() {
+            @Override
+            public T call() {
+                if (options == null) {
+                    return mClassifier.classify(frame, crop, rotationDegrees);
+                }
+                return mClassifier.classify(frame, crop, rotationDegrees, options);
+            }
+        }, executor, callback));
+    }
+
+    /**
+     * Queue an image file.
+     *
+     * @param executor Runs the callback, or null to run it on the inference thread
+     * @param callback Receives the outcome
+     * @return The pending result
+     */
+    @NonNull
+    public Future<T> submitPath(@NonNull final String imgPath, @Nullable Executor executor, @Nullable Callback<T> callback) {
+        return enqueue(new Request(new Callable<T>() {
+            @Override
+            public T call() {
+                return mClassifier.classifyByPath(imgPath);
+            }
+        }, executor, callback));
+    }
+
+    private Future<T> enqueue(Request request) {
+        List<Request> dropped = new ArrayList<>();
+        boolean rejected = false;
+        synchronized (this) {
+            if (mShutdown) {
+                rejected = true;
+            } else if (mPolicy == OverflowPolicy.LATEST_WINS) {
+                dropped.addAll(mQueue);
+                mQueue.clear();
+                mQueue.addLast(request);
+            } else if (mQueue.size() < mCapacity) {
+                mQueue.addLast(request);
+            } else if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+                dropped.add(mQueue.pollFirst());
+                mQueue.addLast(request);
+            } else {
+                rejected = true;
+            }
+            mDroppedCount += dropped.size();
+            notifyAll();
+        }
+
+        // Complete the futures outside the lock since callbacks may run inline
+        for (Request old : dropped) {
+            old.cancel(false);
+        }
+        if (rejected) {
+            request.reject();
+        }
+        return request;
+    }
+
+    private void processRequests() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mShutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "Inference thread interrupted");
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+                request = mQueue.pollFirst();
+            }
+            request.run();
+        }
+    }
+
+    /**
+     * @return The number of requests waiting for the inference thread
+     */
+    public synchronized int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return The number of requests dropped by {@link OverflowPolicy#DROP_OLDEST} or
+     * {@link OverflowPolicy#LATEST_WINS} so far
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Cancel the queued requests and stop the inference thread once the running request, if any, is done.
+     * New requests are rejected.
+     */
+    public void shutdown() {
+        List<Request> pending;
+        synchronized (this) {
+            mShutdown = true;
+            pending = new ArrayList<>(mQueue);
+            mQueue.clear();
+            notifyAll();
+        }
+        for (Request request : pending) {
+            request.cancel(false);
+        }
+    }
+
+    /**
+     * Wait until the inference thread has stopped after {@link #shutdown()}.
+     *
+     * @param millis The maximum time to wait, 0 to wait forever
+     */
+    public void awaitTermination(long millis) throws InterruptedException {
+        mWorker.join(millis);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+/**
+ * How {@link CaffeClassifier#classifyBatch(java.util.List, BatchOptions, CaffeClassifier.BatchCallback)}
+ * prepares the images and delivers the results. Immutable, build it with {@link Builder}.
+ */
+public final class BatchOptions {
+    private static final int DEFAULT_DECODE_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final int mDecodeThreads;
+    private final int mMaxInFlight;
+    private final int mTargetSize;
+    private final boolean mOrdered;
+
+    private BatchOptions(Builder builder) {
+        mDecodeThreads = builder.mDecodeThreads;
+        mMaxInFlight = builder.mMaxInFlight > 0 ? builder.mMaxInFlight : 2 * builder.mDecodeThreads;
+        mTargetSize = builder.mTargetSize;
+        mOrdered = builder.mOrdered;
+    }
+
+    /**
+     * @return The options used when none are given
+     */
+    @NonNull
+    public static BatchOptions defaults() {
+        return new Builder().build();
+    }
+
+    public int getDecodeThreads() {
+        return mDecodeThreads;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public int getTargetSize() {
+        return mTargetSize;
+    }
+
+    public boolean isOrdered() {
+        return mOrdered;
+    }
+
+    /**
+     * Builder of {@link BatchOptions}.
+     */
+    public static final class Builder {
+        private int mDecodeThreads = DEFAULT_DECODE_THREADS;
+        private int mMaxInFlight;
+        private int mTargetSize;
+        private boolean mOrdered = true;
+
+        /**
+         * @param threads The number of threads decoding and downscaling images while the net runs
+         */
+        @NonNull
+        public Builder setDecodeThreads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads should be positive");
+            }
+            mDecodeThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param maxInFlight The number of images decoded ahead of the net, which bounds the memory used.
+         *                    Twice the decode threads by default
+         */
+        @NonNull
+        public Builder setMaxInFlight(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight should be positive");
+            }
+            mMaxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * @param minSide Downscale images so their short side is close to, but not under, this size.
+         *                0, the default, uses the size given to {@link CaffeClassifier#init(int, int)}, or
+         *                keeps the full size if there is none
+         */
+        @NonNull
+        public Builder setTargetSize(int minSide) {
+            if (minSide < 0) {
+                throw new IllegalArgumentException("minSide should not be negative");
+            }
+            mTargetSize = minSide;
+            return this;
+        }
+
+        /**
+         * @param ordered true to deliver results in the order of the inputs, false to classify images as
+         *                soon as they are decoded and deliver them in that order
+         */
+        @NonNull
+        public Builder setOrdered(boolean ordered) {
+            mOrdered = ordered;
+            return this;
+        }
+
+        @NonNull
+        public BatchOptions build() {
+            return new BatchOptions(this);
+        }
+    }
+}
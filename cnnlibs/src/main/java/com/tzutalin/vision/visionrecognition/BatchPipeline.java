@@ -0,0 +1,275 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Classifies a list of images with one classifier: a pool of threads decodes and downscales the next
+ * images while the calling thread runs the net, so the net does not wait for the decoder.
+ * <p>
+ * With a {@link ResultCache} set on the classifier, image files are looked up by content on the decoder
+ * threads before being decoded, and a hit skips both the decoding and the net. The key includes the
+ * target size, since the net sees the decoded image rather than the file.
+ */
+final class BatchPipeline {
+    private static final String TAG = "BatchPipeline";
+    private static final long POOL_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Turns an input into the bitmap given to the net.
+     */
+    interface Loader<I> {
+        @NonNull
+        Bitmap load(I input, int targetSize) throws Exception;
+
+        /**
+         * @return The image file of the input, to look its results up in the cache, or null if it has none
+         */
+        @Nullable
+        String pathOf(I input);
+
+        /**
+         * Dispose of the loaded bitmap once classified, if it belongs to the pipeline.
+         */
+        void release(I input, Bitmap loaded);
+    }
+
+    /**
+     * Decodes the files of every batch, into the bitmaps the previous images were decoded into.
+     */
+    private static final BitmapDecoder DECODER = new BitmapDecoder(new BitmapPool(POOL_BYTES));
+
+    static final Loader<String> PATH_LOADER = new Loader<String>() {
+        @NonNull
+        @Override
+        public Bitmap load(String imgPath, int targetSize) throws IOException {
+            Bitmap bitmap = DECODER.decodeFile(imgPath, targetSize, false);
+            if (bitmap == null) {
+                throw new IOException("Cannot decode " + imgPath);
+            }
+            return bitmap;
+        }
+
+        @Override
+        public String pathOf(String imgPath) {
+            return imgPath;
+        }
+
+        @Override
+        public void release(String imgPath, Bitmap loaded) {
+            DECODER.release(loaded);
+        }
+    };
+
+    static final Loader<Bitmap> BITMAP_LOADER = new Loader<Bitmap>() {
+        @NonNull
+        @Override
+        public Bitmap load(Bitmap bitmap, int targetSize) {
+            int shortSide = Math.min(bitmap.getWidth(), bitmap.getHeight());
+            if (targetSize <= 0 || shortSide <= targetSize) {
+                return bitmap;
+            }
+            float scale = (float) targetSize / shortSide;
+            return StagingBitmaps.scale(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)));
+        }
+
+        @Override
+        public String pathOf(Bitmap bitmap) {
+            return null;
+        }
+
+        @Override
+        public void release(Bitmap bitmap, Bitmap loaded) {
+            if (loaded != bitmap) {
+                StagingBitmaps.release(loaded);
+            }
+        }
+    };
+
+    private static final class Loaded {
+        final int index;
+        final Bitmap bitmap;
+        final Throwable error;
+        // The key of the input in the result cache, or null if it is not cached
+        final String cacheKey;
+        // The results found in the cache, in which case there is no bitmap
+        final List<VisionDetRet> cached;
+
+        Loaded(int index, Bitmap bitmap, Throwable error, String cacheKey, List<VisionDetRet> cached) {
+            this.index = index;
+            this.bitmap = bitmap;
+            this.error = error;
+            this.cacheKey = cacheKey;
+            this.cached = cached;
+        }
+    }
+
+    private BatchPipeline() throws InstantiationException {
+        throw new InstantiationException("This class is not for instantiation");
+    }
+
+    /**
+     * Classify every input, calling the callback on the calling thread. Returns once every input is done,
+     * or early if the thread is interrupted.
+     */
+    static <I, T> void run(@NonNull final CaffeClassifier<T> classifier, @NonNull final List<I> inputs,
+                           @NonNull final Loader<I> loader, @NonNull BatchOptions options,
+                           @NonNull CaffeClassifier.BatchCallback<T> callback) {
+        if (inputs.isEmpty()) {
+            return;
+        }
+        final int targetSize = options.getTargetSize() > 0
+                ? options.getTargetSize() : classifier.getInputMinSide();
+        final ResultCache cache = classifier.getResultCache();
+        final ClassifierMetrics metrics = classifier.getMetrics();
+        int threads = Math.min(options.getDecodeThreads(), inputs.size());
+        ExecutorService decoders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + mCount++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Loaded> completion = new ExecutorCompletionService<>(decoders);
+        ArrayDeque<Future<Loaded>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            for (int done = 0; done != inputs.size(); done++) {
+                // Keep the decoders ahead of the net, within the memory bound
+                while (next != inputs.size() && pending.size() < options.getMaxInFlight()) {
+                    final int index = next++;
+                    Callable<Loaded> task = new Callable<Loaded>() {
+                        @Override
+                        public Loaded call() {
+                            I input = inputs.get(index);
+                            String path = cache != null ? loader.pathOf(input) : null;
+                            String cacheKey = path != null ? cacheKeyOf(cache, classifier, path, targetSize) : null;
+                            if (cacheKey != null) {
+                                List<VisionDetRet> cached = cache.get(cacheKey);
+                                if (cached != null) {
+                                    return new Loaded(index, null, null, cacheKey, cached);
+                                }
+                            }
+                            // Failures are delivered with the index, which a failed Future would lose
+                            try {
+                                long start = System.nanoTime();
+                                Bitmap bitmap = loader.load(input, targetSize);
+                                metrics.add(ClassifierMetrics.Stage.STAGING, System.nanoTime() - start);
+                                return new Loaded(index, bitmap, null, cacheKey, null);
+                            } catch (Exception | OutOfMemoryError e) {
+                                return new Loaded(index, null, e, cacheKey, null);
+                            }
+                        }
+                    };
+                    // In order, results are taken from the futures and the completion queue is not needed
+                    pending.addLast(options.isOrdered() ? decoders.submit(task) : completion.submit(task));
+                }
+
+                Future<Loaded> future = options.isOrdered() ? pending.peekFirst() : completion.take();
+                pending.remove(future);
+                Loaded loaded;
+                try {
+                    loaded = future.get();
+                } catch (ExecutionException e) {
+                    // The task catches its failures, so this is a bug
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (loaded.error != null) {
+                    callback.onError(loaded.index, loaded.error);
+                    continue;
+                }
+                if (loaded.cached != null) {
+                    callback.onResult(loaded.index, BatchPipeline.<T>asResult(loaded.cached));
+                    continue;
+                }
+
+                T result;
+                try {
+                    result = classifier.classify(loaded.bitmap);
+                } catch (RuntimeException e) {
+                    callback.onError(loaded.index, e);
+                    continue;
+                } finally {
+                    loader.release(inputs.get(loaded.index), loaded.bitmap);
+                }
+                if (loaded.cacheKey != null && result != null) {
+                    cache.put(loaded.cacheKey, asCached(result));
+                }
+                callback.onResult(loaded.index, result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            decoders.shutdownNow();
+            for (Future<Loaded> future : pending) {
+                releaseQuietly(future, inputs, loader);
+            }
+        }
+    }
+
+    /**
+     * @return The cache key of an image file decoded to the target size, or null if it cannot be read
+     */
+    @Nullable
+    static String cacheKeyOf(ResultCache cache, CaffeClassifier<?> classifier, String path, int targetSize) {
+        String key = cache.keyOf(classifier, path, classifier.getOptions());
+        return key != null ? key + "|batch" + targetSize : null;
+    }
+
+    // Every classifier returns a list of VisionDetRet, which is what the cache holds
+    @SuppressWarnings("unchecked")
+    private static <T> T asResult(List<VisionDetRet> cached) {
+        return (T) cached;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<VisionDetRet> asCached(T result) {
+        return (List<VisionDetRet>) result;
+    }
+
+    private static <I> void releaseQuietly(Future<Loaded> future, List<I> inputs, Loader<I> loader) {
+        if (!future.cancel(true) && future.isDone()) {
+            try {
+                Loaded loaded = future.get();
+                if (loaded.bitmap != null) {
+                    loader.release(inputs.get(loaded.index), loaded.bitmap);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // Nothing to release
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Decodes images straight to about the size a model needs. The bounds are read first and the image is
+ * subsampled by the largest power of two that keeps its short side at least the target size, so a
+ * 4000x3000 photo for a 224x224 model is decoded at 500x375 instead of full size.
+ * <p>
+ * A center crop can be decoded alone through {@link BitmapRegionDecoder}. With a {@link BitmapPool}, the
+ * pixels go into a released bitmap when one is large enough; give the bitmaps back with
+ * {@link #release(Bitmap)} once used. A decoder is safe to use from several threads.
+ */
+public final class BitmapDecoder {
+    private static final String TAG = "BitmapDecoder";
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final BitmapPool mPool;
+
+    /**
+     * A decoder allocating a new bitmap for every image.
+     */
+    public BitmapDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param pool The bitmaps to decode into, or null to always allocate
+     */
+    public BitmapDecoder(@Nullable BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @param imgPath    The image file
+     * @param minSide    The smallest short side wanted, 0 to decode at full size
+     * @param centerCrop true to decode only the centered square of the image
+     * @return The bitmap, or null if the file cannot be decoded
+     */
+    @Nullable
+    public Bitmap decodeFile(@NonNull String imgPath, int minSide, boolean centerCrop) {
+        return decode(imgPath, null, minSide, centerCrop);
+    }
+
+    /**
+     * @param data       The encoded image, such as a JPEG capture
+     * @param minSide    The smallest short side wanted, 0 to decode at full size
+     * @param centerCrop true to decode only the centered square of the image
+     * @return The bitmap, or null if the data cannot be decoded
+     */
+    @Nullable
+    public Bitmap decodeByteArray(@NonNull byte[] data, int minSide, boolean centerCrop) {
+        return decode(null, data, minSide, centerCrop);
+    }
+
+    /**
+     * Give a decoded bitmap back to the pool, or recycle it if there is no pool.
+     */
+    public void release(@NonNull Bitmap bitmap) {
+        if (mPool != null) {
+            mPool.release(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return The largest power of two dividing the short side while keeping it at least minSide
+     */
+    public static int computeSampleSize(int width, int height, int minSide) {
+        int sampleSize = 1;
+        if (minSide <= 0) {
+            return sampleSize;
+        }
+        int shortSide = Math.min(width, height);
+        while (shortSide / (sampleSize * 2) >= minSide) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decode(String imgPath, byte[] data, int minSide, boolean centerCrop) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeFull(imgPath, data, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+
+        Rect region = null;
+        if (centerCrop && width != height) {
+            int side = Math.min(width, height);
+            int left = (width - side) / 2;
+            int top = (height - side) / 2;
+            region = new Rect(left, top, left + side, top + side);
+            width = side;
+            height = side;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(width, height, minSide);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (mPool != null) {
+            options.inMutable = true;
+            // Decoders round up, so the output is at most this size
+            int outWidth = (width + options.inSampleSize - 1) / options.inSampleSize;
+            int outHeight = (height + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = mPool.get(outWidth * outHeight * BYTES_PER_PIXEL);
+        }
+
+        Bitmap bitmap = null;
+        if (region != null) {
+            bitmap = decodeRegion(imgPath, data, region, options);
+        }
+        if (bitmap == null) {
+            bitmap = decodeWithReuse(imgPath, data, options);
+            if (bitmap != null && region != null) {
+                bitmap = cropCenter(bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeWithReuse(String imgPath, byte[] data, BitmapFactory.Options options) {
+        Bitmap reused = options.inBitmap;
+        try {
+            return decodeFull(imgPath, data, options);
+        } catch (IllegalArgumentException e) {
+            if (reused == null) {
+                throw e;
+            }
+            // The pooled bitmap does not fit this image after all, decode into a new one
+            options.inBitmap = null;
+            mPool.release(reused);
+            return decodeFull(imgPath, data, options);
+        }
+    }
+
+    private static Bitmap decodeFull(String imgPath, byte[] data, BitmapFactory.Options options) {
+        if (imgPath != null) {
+            return BitmapFactory.decodeFile(imgPath, options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Decode only the region, for the formats {@link BitmapRegionDecoder} supports.
+     *
+     * @return The bitmap, or null to fall back to a full decode
+     */
+    private Bitmap decodeRegion(String imgPath, byte[] data, Rect region, BitmapFactory.Options options) {
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = imgPath != null
+                    ? BitmapRegionDecoder.newInstance(imgPath, false)
+                    : BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                return decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                mPool.release(options.inBitmap);
+                options.inBitmap = null;
+                return decoder.decodeRegion(region, options);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "No region decoder for the image, decode it whole: " + e.getMessage());
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private Bitmap cropCenter(Bitmap bitmap) {
+        int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (bitmap.getWidth() == side && bitmap.getHeight() == side) {
+            return bitmap;
+        }
+        Bitmap cropped = Bitmap.createBitmap(bitmap, (bitmap.getWidth() - side) / 2,
+                (bitmap.getHeight() - side) / 2, side, side);
+        if (cropped != bitmap) {
+            release(bitmap);
+        }
+        return cropped;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps mutable bitmaps that are no longer used, so {@link BitmapDecoder} can decode into them through
+ * {@code inBitmap} instead of allocating. Bitmaps are bucketed by allocation size, one bucket per power of
+ * two, so finding one large enough looks at two buckets at most. Safe to use from several threads.
+ */
+public final class BitmapPool {
+    private static final int BUCKET_COUNT = 32;
+
+    private final long mMaxBytes;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Bitmap>[] mBuckets = new ArrayDeque[BUCKET_COUNT];
+    private long mBytes;
+
+    /**
+     * @param maxBytes The total allocation size of the kept bitmaps. Bitmaps released beyond it are recycled
+     */
+    public BitmapPool(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes should be positive");
+        }
+        mMaxBytes = maxBytes;
+        for (int i = 0; i != BUCKET_COUNT; i++) {
+            mBuckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Take a bitmap whose allocation holds at least the given size.
+     *
+     * @return The bitmap, removed from the pool, or null if none is large enough
+     */
+    @Nullable
+    public synchronized Bitmap get(int byteCount) {
+        int bucket = bucketOf(byteCount);
+        // Bitmaps of the bucket of the size may be smaller, the ones of the next bucket never are
+        for (int i = bucket; i < BUCKET_COUNT && i <= bucket + 1; i++) {
+            Iterator<Bitmap> it = mBuckets[i].iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    it.remove();
+                    mBytes -= bitmap.getAllocationByteCount();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Give back a bitmap that is no longer used. Immutable or recycled bitmaps are ignored.
+     */
+    public void release(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (mBytes + byteCount <= mMaxBytes) {
+                mBuckets[bucketOf(byteCount)].addLast(bitmap);
+                mBytes += byteCount;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycle every kept bitmap.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> bucket : mBuckets) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+            bucket.clear();
+        }
+        mBytes = 0;
+    }
+
+    /**
+     * @return The smallest b such that byteCount <= 2^b
+     */
+    private static int bucketOf(int byteCount) {
+        if (byteCount <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 32 - Integer.numberOfLeadingZeros(byteCount - 1));
+    }
+}
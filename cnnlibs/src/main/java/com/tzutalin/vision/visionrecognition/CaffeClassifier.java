@@ -18,44 +18,65 @@ package com.tzutalin.vision.visionrecognition;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
+import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Base class for using caffe
+ * <p>
+ * A classifier can be used from several threads at once. Each call stages its input and reads its
+ * results on its own; only the forward pass and the reading of its output take a lock, shared by every
+ * instance of the same backend when it keeps one net per process.
  *
  * @param <T>
  */
 public abstract class CaffeClassifier<T> {
+    private static final String TAG = "CaffeClassifier";
     protected static boolean sInitialized;
-    static {
-        try {
-            System.loadLibrary("objrek");
-            System.loadLibrary("objrek_jni");
-            jniNativeClassInit();
-            sInitialized = true;
-            android.util.Log.d("CaffeClassifier", "jniNativeClassInit success");
-        } catch (UnsatisfiedLinkError e) {
-            android.util.Log.d("CaffeClassifier", "objrek objrek_jni library not found!");
-        }
-    }
+    private static boolean sLibraryLoaded;
+    // Keyed by backend class: each one drives the process-wide net of its own JNI class
+    private static final Map<Class<?>, Object> sProcessWideLocks = new HashMap<>();
 
     protected Context mContext;
     protected String mModelPath;
     protected String mWeightsPath;
     protected String mMeanPath;
     protected String mSynsetPath;
-    protected String[] mSynsets;
+    protected LabelTable mLabels;
     protected int mImgWidth;
     protected int mImgHeight;
-    private String mSelectedLabel;
+    private final Object mForwardLock = new Object();
+    private volatile ClassifyOptions mOptions = ClassifyOptions.defaults();
+    private InferenceBackend mBackend;
+    private boolean mBackendTimed;
+    private volatile ResultCache mResultCache;
+    private volatile String mModelKey;
+    protected final ClassifierMetrics mMetrics = new ClassifierMetrics();
+
+    /**
+     * Receives the outcome of each image of a batch, on the thread calling the batch method.
+     */
+    public interface BatchCallback<T> {
+        /**
+         * @param index The position of the image in the batch
+         */
+        void onResult(int index, T result);
+
+        /**
+         * @param index The position of the image in the batch
+         * @param error Why the image could not be decoded or classified
+         */
+        void onError(int index, Throwable error);
+    }
 
     /**
      *
@@ -72,6 +93,49 @@ public abstract class CaffeClassifier<T> {
         mSynsetPath = synsetFile;
     }
 
+    /**
+     * Load the Caffe JNI library, once. Called by the JNI backends of the subclasses, so a classifier
+     * running on another {@link InferenceBackend} does not need the library.
+     */
+    static synchronized void loadNativeLibrary() {
+        if (sLibraryLoaded) {
+            return;
+        }
+        sLibraryLoaded = true;
+        try {
+            System.loadLibrary("objrek");
+            System.loadLibrary("objrek_jni");
+            jniNativeClassInit();
+            sInitialized = true;
+            android.util.Log.d("CaffeClassifier", "jniNativeClassInit success");
+        } catch (UnsatisfiedLinkError e) {
+            android.util.Log.d("CaffeClassifier", "objrek objrek_jni library not found!");
+        }
+    }
+
+    /**
+     * Set the backend running the network. Called once by the subclass constructors.
+     */
+    void setBackend(@NonNull InferenceBackend backend) {
+        setBackend(backend, false);
+    }
+
+    /**
+     * @param timed true if the backend adds its staging and forward time to {@link #mMetrics} itself,
+     *              false to count the whole forward pass call as {@link ClassifierMetrics.Stage#FORWARD}
+     */
+    void setBackend(@NonNull InferenceBackend backend, boolean timed) {
+        mBackend = backend;
+        mBackendTimed = timed;
+    }
+
+    /**
+     * @return The backend running the network
+     */
+    protected InferenceBackend getBackend() {
+        return mBackend;
+    }
+
     /**
      * Init image width and height and start to load model, weight, allocate byte buffer, etc.
      *
@@ -79,66 +143,290 @@ public abstract class CaffeClassifier<T> {
      * @param imgHeight The height of the image
      */
     public void init(int imgWidth, int imgHeight) {
-        mSynsets = getSynsetsFromFile(mContext);
+        long start = System.nanoTime();
+        mLabels = getLabelsFromFile(mContext);
         mImgWidth = imgWidth;
         mImgHeight = imgHeight;
+        // Stamp the files as they are loaded, so that a file replaced later does not take their results
+        mModelKey = computeModelKey();
+        mBackend.load(mModelPath, mWeightsPath, mMeanPath, mSynsetPath);
+        mMetrics.record(ClassifierMetrics.Stage.MODEL_LOAD, System.nanoTime() - start);
     }
 
      /**
+     * Pass the image path to do classifiction or detection, with the options of the classifier
+     * @param imgPath image path
+     * @return
+     */
+    public T classifyByPath(String imgPath) {
+        return classifyByPath(imgPath, mOptions);
+    }
+
+    /**
      * Pass the image path to do classifiction or detection
      * @param imgPath image path
+     * @param options The settings of this call
      * @return
      */
-    public abstract T classifyByPath(String imgPath);
+    public abstract T classifyByPath(String imgPath, @NonNull ClassifyOptions options);
+
+    /**
+     * Pass {@link android.graphics.Bitmap} graphic object to do classifiction or detection, with the options
+     * of the classifier
+     * @param bitmap
+     * @return
+     */
+    public T classify(Bitmap bitmap) {
+        return classify(bitmap, mOptions);
+    }
 
     /**
      * Pass {@link android.graphics.Bitmap} graphic object to do classifiction or detection
      * @param bitmap
+     * @param options The settings of this call
      * @return
      */
-    public abstract T classify(Bitmap bitmap);
+    public abstract T classify(Bitmap bitmap, @NonNull ClassifyOptions options);
+
+    /**
+     * Pass the planes of a YUV 4:2:0 camera frame to do classifiction or detection, with the options of
+     * the classifier. The frame is cropped, rotated and resized straight to the input size of the model,
+     * without a full size ARGB copy.
+     * @param frame The planes of the frame, which must stay valid until the call returns
+     * @param crop The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     * @return
+     */
+    public T classify(YuvFrame frame, Rect crop, int rotationDegrees) {
+        return classify(frame, crop, rotationDegrees, mOptions);
+    }
+
+    /**
+     * Pass the planes of a YUV 4:2:0 camera frame to do classifiction or detection.
+     * @param frame The planes of the frame, which must stay valid until the call returns
+     * @param crop The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     * @param options The settings of this call
+     * @return
+     */
+    public abstract T classify(YuvFrame frame, Rect crop, int rotationDegrees, @NonNull ClassifyOptions options);
+
+    /**
+     * Classify bitmaps, downscaling them on a pool of threads while the net runs on the calling thread.
+     * The calling thread blocks until the whole batch is done.
+     * @param bitmaps The images, which must not be recycled before the call returns
+     * @param options How to prepare the images and deliver the results
+     * @param callback Receives the result of each image
+     */
+    public void classifyBatch(@NonNull List<Bitmap> bitmaps, @NonNull BatchOptions options,
+                              @NonNull BatchCallback<T> callback) {
+        BatchPipeline.run(this, bitmaps, BatchPipeline.BITMAP_LOADER, options, callback);
+    }
+
+    /**
+     * Classify image files, decoding them on a pool of threads while the net runs on the calling thread.
+     * The calling thread blocks until the whole batch is done.
+     * @param imgPaths The image paths
+     * @param options How to decode the images and deliver the results
+     * @param callback Receives the result of each image
+     */
+    public void classifyBatchByPath(@NonNull List<String> imgPaths, @NonNull BatchOptions options,
+                                    @NonNull BatchCallback<T> callback) {
+        BatchPipeline.run(this, imgPaths, BatchPipeline.PATH_LOADER, options, callback);
+    }
+
+    /**
+     * Classify bitmaps with the default {@link BatchOptions}.
+     * @return The results in the order of the bitmaps, null for the images that failed
+     */
+    @NonNull
+    public List<T> classifyBatch(@NonNull List<Bitmap> bitmaps) {
+        List<T> results = newResultList(bitmaps.size());
+        classifyBatch(bitmaps, BatchOptions.defaults(), collect(results));
+        return results;
+    }
+
+    /**
+     * Classify image files with the default {@link BatchOptions}.
+     * @return The results in the order of the paths, null for the images that failed
+     */
+    @NonNull
+    public List<T> classifyBatchByPath(@NonNull List<String> imgPaths) {
+        List<T> results = newResultList(imgPaths.size());
+        classifyBatchByPath(imgPaths, BatchOptions.defaults(), collect(results));
+        return results;
+    }
+
+    private static <T> List<T> newResultList(int size) {
+        return new ArrayList<>(Collections.<T>nCopies(size, null));
+    }
+
+    private static <T> BatchCallback<T> collect(final List<T> results) {
+        return new BatchCallback<T>() {
+            @Override
+            public void onResult(int index, T result) {
+                results.set(index, result);
+            }
+
+            @Override
+            public void onError(int index, Throwable error) {
+                Log.w(TAG, "Cannot classify image " + index, error);
+            }
+        };
+    }
+
+    /**
+     * @return The short side of the input given to {@link #init(int, int)}, or 0 if there is none
+     */
+    int getInputMinSide() {
+        if (mImgWidth <= 0 || mImgHeight <= 0) {
+            return 0;
+        }
+        return Math.min(mImgWidth, mImgHeight);
+    }
 
     /**
      * Release the resource, model, weight, deallocate the buffer
      */
     public void deInit() {
+        mBackend.release();
     }
 
 
-    public void setSelectedLabel(String label) {
-        mSelectedLabel = label;
-    }
-
-    public void clearSelectedLabel() {
-        mSelectedLabel = null;
-    }
-
-    private String[] getSynsetsFromFile(Context context) {
-        if (!TextUtils.isEmpty(mSynsetPath)) {
-            File file = new File(mSynsetPath);
-            BufferedReader br = null;
-            try {
-                br = new BufferedReader(new FileReader(file));
-                String line;
-                List<String> lines = new ArrayList<>();
-                while ((line = br.readLine()) != null) {
-                    String temp = line.substring(line.lastIndexOf("/") + 1);
-                    lines.add(temp.split(" ")[0]);
-                }
-                return lines.toArray(new String[0]);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (br != null) {
-                    try {
-                        br.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * @return The options of the calls made without any
+     */
+    @NonNull
+    public ClassifyOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * Set the options of the calls made without any. Calls already running keep the previous ones.
+     */
+    public synchronized void setOptions(@NonNull ClassifyOptions options) {
+        mOptions = options;
+    }
+
+    public synchronized void setSelectedLabel(String label) {
+        mOptions = mOptions.buildUpon().setSelectedLabel(label).build();
+    }
+
+    public synchronized void clearSelectedLabel() {
+        setSelectedLabel(null);
+    }
+
+    /**
+     * @return The time spent in each stage of {@link #init(int, int)} and of the classifications
+     */
+    public ClassifierMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return The lock to hold from a forward pass to the reading of its output: one per classifier, or one
+     * per backend class if the backend keeps one net per process
+     */
+    protected Object getForwardLock() {
+        if (!isBackendProcessWide()) {
+            return mForwardLock;
+        }
+        synchronized (sProcessWideLocks) {
+            Object lock = sProcessWideLocks.get(mBackend.getClass());
+            if (lock == null) {
+                lock = new Object();
+                sProcessWideLocks.put(mBackend.getClass(), lock);
             }
+            return lock;
+        }
+    }
+
+    /**
+     * Run the backend on a bitmap, timing the forward pass. Call it with the forward lock held.
+     */
+    protected int runBackend(Bitmap bitmap, ClassifyOptions options) {
+        mBackend.setSelectedLabel(options.getSelectedLabel());
+        long start = System.nanoTime();
+        int count = mBackend.run(bitmap);
+        if (!mBackendTimed) {
+            mMetrics.add(ClassifierMetrics.Stage.FORWARD, System.nanoTime() - start);
+        }
+        return count;
+    }
+
+    /**
+     * Run the backend on an image file, timing the forward pass. Call it with the forward lock held.
+     */
+    protected int runBackendByPath(String imgPath, ClassifyOptions options) {
+        mBackend.setSelectedLabel(options.getSelectedLabel());
+        long start = System.nanoTime();
+        int count = mBackend.runPath(imgPath);
+        if (!mBackendTimed) {
+            mMetrics.add(ClassifierMetrics.Stage.FORWARD, System.nanoTime() - start);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the state of the backend is shared by every instance in the process, as with the Caffe
+     * JNI library, so that two instances cannot run at the same time
+     */
+    boolean isBackendProcessWide() {
+        return false;
+    }
+
+    /**
+     * Answer {@link #classifyByPath(String)} from the cache when the file content was classified before
+     * with the same model and settings.
+     *
+     * @param cache The cache, possibly shared with other classifiers, or null to always run the net
+     */
+    public void setResultCache(ResultCache cache) {
+        mResultCache = cache;
+    }
+
+    /**
+     * @return The result cache, or null if there is none
+     */
+    protected ResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * @return A key identifying the results of an input: the model and the settings changing the results
+     */
+    String getResultKey(ClassifyOptions options) {
+        return getModelKey() + '|' + options;
+    }
+
+    /**
+     * @return A key identifying the loaded network: the classifier and backend types and the model, weights,
+     * mean and synset files, with their length and modification time when they were loaded, so that a file
+     * replaced at the same path gives another key
+     */
+    String getModelKey() {
+        String key = mModelKey;
+        return key != null ? key : computeModelKey();
+    }
+
+    private String computeModelKey() {
+        return getClass().getName() + '|' + mBackend.getClass().getName() + '|' + stampOf(mModelPath) + '|'
+                + stampOf(mWeightsPath) + '|' + stampOf(mMeanPath) + '|' + stampOf(mSynsetPath);
+    }
+
+    private static String stampOf(String path) {
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        return path + '@' + file.length() + ':' + file.lastModified();
+    }
+
+    private LabelTable getLabelsFromFile(Context context) {
+        if (TextUtils.isEmpty(mSynsetPath)) {
+            return null;
         }
-        return null;
+        return LabelTable.open(mSynsetPath);
     }
 
     private native static void jniNativeClassInit();
@@ -0,0 +1,173 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The time a {@link CaffeClassifier} spends in each stage, one {@link LatencyHistogram} per stage.
+ * <p>
+ * The time of a stage is summed over a classification and recorded once the classification completes,
+ * so a snapshot counts classifications rather than calls. The time is summed per thread, so several
+ * threads can classify at once; snapshots can be taken from any thread.
+ */
+public final class ClassifierMetrics {
+
+    /**
+     * The stages of a classification.
+     */
+    public enum Stage {
+        /**
+         * Reading the labels and loading the network, once per {@link CaffeClassifier#init(int, int)}
+         */
+        MODEL_LOAD,
+        /**
+         * Copying or converting the input into the buffer the network reads
+         */
+        STAGING,
+        /**
+         * The forward pass. For image paths it includes decoding the file
+         */
+        FORWARD,
+        /**
+         * Reading the output of the network and building the results
+         */
+        MARSHALLING,
+        /**
+         * Thresholds and non-maximum suppression of detections
+         */
+        POST_PROCESSING
+    }
+
+    /**
+     * Receives the metrics every few classifications, on the classifying thread.
+     */
+    public interface Listener {
+        void onReport(@NonNull ClassifierMetrics metrics);
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    private final ThreadLocal<long[]> mPendingNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[STAGES.length];
+        }
+    };
+    private final AtomicInteger mCallsSinceReport = new AtomicInteger();
+    private volatile Listener mListener;
+    private volatile int mReportInterval = 1;
+
+    public ClassifierMetrics() {
+        for (int i = 0; i != mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param listener       The listener, or null to remove it
+     * @param reportInterval Call the listener every this many classifications
+     */
+    public void setListener(@Nullable Listener listener, int reportInterval) {
+        if (reportInterval <= 0) {
+            throw new IllegalArgumentException("reportInterval should be positive");
+        }
+        mReportInterval = reportInterval;
+        mListener = listener;
+    }
+
+    /**
+     * @return The durations recorded for the stage so far
+     */
+    @NonNull
+    public LatencyHistogram.Snapshot getSnapshot(@NonNull Stage stage) {
+        return mHistograms[stage.ordinal()].snapshot();
+    }
+
+    /**
+     * Forget every recorded duration.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Forget the durations recorded for a stage.
+     */
+    public void reset(@NonNull Stage stage) {
+        mHistograms[stage.ordinal()].reset();
+    }
+
+    /**
+     * Add time to a stage of the classification running on the calling thread. {@link InferenceBackend}
+     * implementations may use it to report their own stages.
+     *
+     * @param stage The stage
+     * @param nanos The time spent, from {@link System#nanoTime()}
+     */
+    public void add(@NonNull Stage stage, long nanos) {
+        mPendingNanos.get()[stage.ordinal()] += nanos;
+    }
+
+    /**
+     * Record a duration on its own, outside of any classification.
+     */
+    void record(@NonNull Stage stage, long nanos) {
+        mHistograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record the time the calling thread added to each stage since its last classification completed,
+     * and report if due.
+     */
+    void completeCall() {
+        long[] pendingNanos = mPendingNanos.get();
+        for (int i = 0; i != pendingNanos.length; i++) {
+            if (pendingNanos[i] > 0) {
+                mHistograms[i].record(pendingNanos[i]);
+                pendingNanos[i] = 0;
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null && mCallsSinceReport.incrementAndGet() >= mReportInterval) {
+            mCallsSinceReport.set(0);
+            listener.onReport(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : STAGES) {
+            LatencyHistogram.Snapshot snapshot = getSnapshot(stage);
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(stage).append(": ").append(snapshot);
+        }
+        return sb.toString();
+    }
+}
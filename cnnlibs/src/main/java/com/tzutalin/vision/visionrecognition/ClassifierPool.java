@@ -0,0 +1,427 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs several instances of the same classifier, each on its own thread, so that bulk jobs use every core.
+ * <p>
+ * Each instance has its own queue. A request goes to an idle instance if there is one, otherwise to the
+ * queues in turn; an instance whose queue is empty takes the newest request of the longest other queue,
+ * so a slow image does not hold back the requests queued behind it.
+ * <p>
+ * The Caffe JNI library keeps one net per process, so a pool of classifiers on its backend holds a single
+ * instance and only queues the requests: it brings no parallelism on the device. To keep that net busy,
+ * classify files with {@link CaffeClassifier#classifyBatchByPath}, which decodes the next images while
+ * the net runs. Backends holding their own net, such as {@link SimulatedBackend}, get as many as asked.
+ *
+ * @param <T> The result type of the classifier
+ */
+public final class ClassifierPool<T> {
+    private static final String TAG = "ClassifierPool";
+
+    private final List<Worker> mWorkers;
+    // Guards the queues, the idle flags and the shutdown flag, and is notified when a request is queued
+    private final Object mLock = new Object();
+    private final long mStartNanos = System.nanoTime();
+    private int mNextWorker;
+    private boolean mShutdown;
+
+    /**
+     * Creates the instances of a pool, already configured but not initialized.
+     */
+    public interface Factory<T> {
+        @NonNull
+        CaffeClassifier<T> create() throws IllegalAccessException;
+    }
+
+    /**
+     * Builds a {@link ClassifierPool}.
+     */
+    public static final class Builder<T> {
+        private final Factory<T> mFactory;
+        private final int mImgWidth;
+        private final int mImgHeight;
+        private int mSize = Runtime.getRuntime().availableProcessors();
+        private long mMemoryBudget;
+        private long mInstanceBytes;
+
+        /**
+         * @param factory   Creates the instances
+         * @param imgWidth  The width passed to {@link CaffeClassifier#init(int, int)}
+         * @param imgHeight The height passed to {@link CaffeClassifier#init(int, int)}
+         */
+        public Builder(@NonNull Factory<T> factory, int imgWidth, int imgHeight) {
+            mFactory = factory;
+            mImgWidth = imgWidth;
+            mImgHeight = imgHeight;
+        }
+
+        /**
+         * @param size The most instances to run. The default is the number of cores.
+         */
+        public Builder<T> setMaxSize(int size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("size should be positive");
+            }
+            mSize = size;
+            return this;
+        }
+
+        /**
+         * Run no more instances than fit in a memory budget.
+         *
+         * @param budgetBytes   The memory the instances may use together
+         * @param instanceBytes The memory one loaded instance uses, such as the size of its weights file
+         */
+        public Builder<T> setMemoryBudget(long budgetBytes, long instanceBytes) {
+            if (budgetBytes <= 0 || instanceBytes <= 0) {
+                throw new IllegalArgumentException("The budget and instance size should be positive");
+            }
+            mMemoryBudget = budgetBytes;
+            mInstanceBytes = instanceBytes;
+            return this;
+        }
+
+        /**
+         * Create and initialize the instances, in parallel. Returns once they are all loaded.
+         * @throws RuntimeException The exception of an instance failing to initialize
+         */
+        public ClassifierPool<T> build() throws IllegalAccessException {
+            int size = mSize;
+            if (mMemoryBudget > 0) {
+                size = (int) Math.max(1, Math.min(size, mMemoryBudget / mInstanceBytes));
+            }
+            List<CaffeClassifier<T>> classifiers = new ArrayList<>(size);
+            classifiers.add(mFactory.create());
+            if (classifiers.get(0).isBackendProcessWide()) {
+                if (size > 1) {
+                    Log.w(TAG, "The backend has one net per process, so the pool holds a single instance");
+                }
+                size = 1;
+            }
+            while (classifiers.size() < size) {
+                classifiers.add(mFactory.create());
+            }
+            return new ClassifierPool<>(classifiers, mImgWidth, mImgHeight);
+        }
+    }
+
+    /**
+     * The activity of one instance since the pool was built.
+     */
+    public static final class InstanceStats {
+        private final long mTaskCount;
+        private final long mStolenCount;
+        private final long mBusyNanos;
+        private final long mElapsedNanos;
+
+        InstanceStats(long taskCount, long stolenCount, long busyNanos, long elapsedNanos) {
+            mTaskCount = taskCount;
+            mStolenCount = stolenCount;
+            mBusyNanos = busyNanos;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return The number of requests the instance ran
+         */
+        public long getTaskCount() {
+            return mTaskCount;
+        }
+
+        /**
+         * @return The number of those requests taken from the queue of another instance
+         */
+        public long getStolenCount() {
+            return mStolenCount;
+        }
+
+        /**
+         * @return The time the instance spent running requests
+         */
+        public long getBusyNanos() {
+            return mBusyNanos;
+        }
+
+        /**
+         * @return The part of the time the instance spent running requests, between 0 and 1
+         */
+        public float getUtilization() {
+            return mElapsedNanos > 0 ? Math.min(1f, (float) mBusyNanos / mElapsedNanos) : 0f;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "tasks=%d stolen=%d busy=%.1f%%",
+                    mTaskCount, mStolenCount, getUtilization() * 100);
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final CaffeClassifier<T> classifier;
+        final ArrayDeque<FutureTask<T>> queue = new ArrayDeque<>();
+        final Thread thread;
+        boolean idle;
+        // Written by the worker thread only
+        volatile long taskCount;
+        volatile long stolenCount;
+        volatile long busyNanos;
+        volatile RuntimeException initError;
+        private final int mImgWidth;
+        private final int mImgHeight;
+        private final CountDownLatch mLoaded;
+
+        Worker(int index, CaffeClassifier<T> classifier, int imgWidth, int imgHeight, CountDownLatch loaded) {
+            this.classifier = classifier;
+            mImgWidth = imgWidth;
+            mImgHeight = imgHeight;
+            mLoaded = loaded;
+            thread = new Thread(this, TAG + "-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                classifier.init(mImgWidth, mImgHeight);
+            } catch (RuntimeException e) {
+                initError = e;
+                return;
+            } finally {
+                mLoaded.countDown();
+            }
+            try {
+                while (true) {
+                    FutureTask<T> task;
+                    boolean stolen = false;
+                    synchronized (mLock) {
+                        while (true) {
+                            if (mShutdown) {
+                                return;
+                            }
+                            task = queue.pollFirst();
+                            if (task == null) {
+                                task = steal();
+                                stolen = task != null;
+                            }
+                            if (task != null) {
+                                break;
+                            }
+                            idle = true;
+                            mLock.wait();
+                        }
+                        idle = false;
+                    }
+                    long start = System.nanoTime();
+                    task.run();
+                    busyNanos += System.nanoTime() - start;
+                    taskCount++;
+                    if (stolen) {
+                        stolenCount++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Shut down
+            } finally {
+                classifier.deInit();
+            }
+        }
+
+        /**
+         * Called with the lock held.
+         */
+        private FutureTask<T> steal() {
+            Worker victim = null;
+            int longest = 0;
+            for (Worker worker : mWorkers) {
+                int size = worker.queue.size();
+                if (worker != this && size > longest) {
+                    victim = worker;
+                    longest = size;
+                }
+            }
+            return victim != null ? victim.queue.pollLast() : null;
+        }
+    }
+
+    private ClassifierPool(List<CaffeClassifier<T>> classifiers, int imgWidth, int imgHeight) {
+        CountDownLatch loaded = new CountDownLatch(classifiers.size());
+        List<Worker> workers = new ArrayList<>(classifiers.size());
+        for (int i = 0; i != classifiers.size(); i++) {
+            workers.add(new Worker(i, classifiers.get(i), imgWidth, imgHeight, loaded));
+        }
+        mWorkers = Collections.unmodifiableList(workers);
+        for (Worker worker : mWorkers) {
+            worker.thread.start();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Worker worker : mWorkers) {
+            if (worker.initError != null) {
+                shutdown();
+                throw worker.initError;
+            }
+        }
+    }
+
+    /**
+     * @return The number of instances
+     */
+    public int getSize() {
+        return mWorkers.size();
+    }
+
+    /**
+     * Classify a bitmap on the next available instance.
+     * @param bitmap The image, which must not be recycled before the result is available
+     * @return The result, failing with the exception of the classifier if it threw
+     */
+    @NonNull
+    public Future<T> submit(@NonNull final Bitmap bitmap) {
+        return submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return currentClassifier().classify(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Classify an image file on the next available instance.
+     * @return The result, failing with the exception of the classifier if it threw
+     */
+    @NonNull
+    public Future<T> submitByPath(@NonNull final String imgPath) {
+        return submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return currentClassifier().classifyByPath(imgPath);
+            }
+        });
+    }
+
+    private Future<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        synchronized (mLock) {
+            // Checked under the lock, so that shutdown() cancels every request it lets in
+            if (mShutdown) {
+                throw new IllegalStateException("The pool is shut down");
+            }
+            pickWorker().queue.addLast(task);
+            // Wake the idle instances, any of which may take the request
+            mLock.notifyAll();
+        }
+        return task;
+    }
+
+    /**
+     * Called with the lock held.
+     * @return An idle instance, or the next one in turn if they are all busy
+     */
+    private Worker pickWorker() {
+        int start = (mNextWorker++ & Integer.MAX_VALUE) % mWorkers.size();
+        for (int i = 0; i != mWorkers.size(); i++) {
+            Worker worker = mWorkers.get((start + i) % mWorkers.size());
+            if (worker.idle && worker.queue.isEmpty()) {
+                return worker;
+            }
+        }
+        return mWorkers.get(start);
+    }
+
+    private CaffeClassifier<T> currentClassifier() {
+        for (Worker worker : mWorkers) {
+            if (worker.thread == Thread.currentThread()) {
+                return worker.classifier;
+            }
+        }
+        throw new IllegalStateException("Not a thread of the pool");
+    }
+
+    /**
+     * @return The activity of each instance since the pool was built
+     */
+    @NonNull
+    public List<InstanceStats> getInstanceStats() {
+        long elapsed = System.nanoTime() - mStartNanos;
+        List<InstanceStats> stats = new ArrayList<>(mWorkers.size());
+        for (Worker worker : mWorkers) {
+            stats.add(new InstanceStats(worker.taskCount, worker.stolenCount, worker.busyNanos, elapsed));
+        }
+        return stats;
+    }
+
+    /**
+     * @return The metrics of an instance
+     */
+    @NonNull
+    public ClassifierMetrics getMetrics(int index) {
+        return mWorkers.get(index).classifier.getMetrics();
+    }
+
+    /**
+     * Cancel the queued requests and release the instances once their current request is done.
+     */
+    public void shutdown() {
+        List<FutureTask<T>> cancelled = new ArrayList<>();
+        synchronized (mLock) {
+            mShutdown = true;
+            for (Worker worker : mWorkers) {
+                cancelled.addAll(worker.queue);
+                worker.queue.clear();
+            }
+            mLock.notifyAll();
+        }
+        for (FutureTask<T> task : cancelled) {
+            task.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        List<InstanceStats> stats = getInstanceStats();
+        for (int i = 0; i != stats.size(); i++) {
+            sb.append('#').append(i).append(' ').append(stats.get(i)).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * The settings of one classification: the selected label, how many scenes are returned and how detections
+ * are post-processed. Immutable, so requests on several threads can each use their own options on one
+ * classifier. Build it with {@link Builder}, or derive it from the current options of a classifier with
+ * {@link #buildUpon()}.
+ */
+public final class ClassifyOptions {
+    private static final int DEFAULT_TOP_K = 10;
+
+    private final String mSelectedLabel;
+    private final int mTopK;
+    private final float mMinConfidence;
+    private final DetectionPostProcessor mPostProcessor;
+    private final int mInputScale;
+
+    private ClassifyOptions(Builder builder) {
+        mSelectedLabel = builder.mSelectedLabel;
+        mTopK = builder.mTopK;
+        mMinConfidence = builder.mMinConfidence;
+        mPostProcessor = builder.mPostProcessor;
+        mInputScale = builder.mInputScale;
+    }
+
+    /**
+     * @return The options used when none are given
+     */
+    @NonNull
+    public static ClassifyOptions defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return A builder starting from these options
+     */
+    @NonNull
+    public Builder buildUpon() {
+        return new Builder()
+                .setSelectedLabel(mSelectedLabel)
+                .setTopK(mTopK)
+                .setMinConfidence(mMinConfidence)
+                .setPostProcessor(mPostProcessor)
+                .setInputScale(mInputScale);
+    }
+
+    @Nullable
+    public String getSelectedLabel() {
+        return mSelectedLabel;
+    }
+
+    public int getTopK() {
+        return mTopK;
+    }
+
+    public float getMinConfidence() {
+        return mMinConfidence;
+    }
+
+    @Nullable
+    public DetectionPostProcessor getPostProcessor() {
+        return mPostProcessor;
+    }
+
+    /**
+     * @return The short side YUV frames are scaled down to before detection, or 0 for the input scale of
+     *         the detector
+     */
+    public int getInputScale() {
+        return mInputScale;
+    }
+
+    /**
+     * @return The settings, equal for options that give the same results
+     */
+    @Override
+    public String toString() {
+        return "label=" + mSelectedLabel
+                + "|top=" + mTopK
+                + "|min=" + mMinConfidence
+                + "|post=" + mPostProcessor
+                + "|scale=" + mInputScale;
+    }
+
+    /**
+     * Builder of {@link ClassifyOptions}.
+     */
+    public static final class Builder {
+        private String mSelectedLabel;
+        private int mTopK = DEFAULT_TOP_K;
+        private float mMinConfidence;
+        private DetectionPostProcessor mPostProcessor;
+        private int mInputScale;
+
+        /**
+         * @param label Restrict detection to this label, or null, the default, to detect every label
+         */
+        @NonNull
+        public Builder setSelectedLabel(@Nullable String label) {
+            mSelectedLabel = label;
+            return this;
+        }
+
+        /**
+         * @param topK The maximum number of scenes returned. The default is 10
+         */
+        @NonNull
+        public Builder setTopK(int topK) {
+            if (topK <= 0) {
+                throw new IllegalArgumentException("topK should be positive");
+            }
+            mTopK = topK;
+            return this;
+        }
+
+        /**
+         * @param minConfidence The confidence below which a scene is not returned. The default is 0
+         */
+        @NonNull
+        public Builder setMinConfidence(float minConfidence) {
+            mMinConfidence = minConfidence;
+            return this;
+        }
+
+        /**
+         * @param postProcessor The thresholds and non-maximum suppression applied to detections, or null,
+         *                      the default, to return the detections of the network as they are. It is not
+         *                      thread-safe, so concurrent requests sharing it take turns post-processing
+         */
+        @NonNull
+        public Builder setPostProcessor(@Nullable DetectionPostProcessor postProcessor) {
+            mPostProcessor = postProcessor;
+            return this;
+        }
+
+        /**
+         * @param inputScale The short side YUV frames are scaled down to before detection, or 0, the default,
+         *                   for the input scale of the detector. The scene classifier ignores it
+         */
+        @NonNull
+        public Builder setInputScale(int inputScale) {
+            if (inputScale < 0) {
+                throw new IllegalArgumentException("inputScale should not be negative");
+            }
+            mInputScale = inputScale;
+            return this;
+        }
+
+        @NonNull
+        public ClassifyOptions build() {
+            return new ClassifyOptions(this);
+        }
+    }
+}
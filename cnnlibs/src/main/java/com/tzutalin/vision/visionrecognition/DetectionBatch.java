@@ -0,0 +1,310 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All the detections of one frame packed in a single reused direct buffer, so that reading and
+ * post-processing them allocates nothing.
+ * <p>
+ * The buffer is laid out as struct-of-arrays of {@link #getCapacity()} entries each:
+ * class ids (int32), scores, left, top, right and bottom (float32), in native byte order.
+ * <p>
+ * A batch is owned and reused by its {@link ObjectDetector}, so its content is only valid until
+ * the next detection call. Use {@link #toList()} to keep the results.
+ * <p>
+ * Class ids are lines of the synset file. A label returned by the native side that is not in the file
+ * gets an id past its last line, so the label is kept through post-processing.
+ */
+public final class DetectionBatch {
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int FIELD_COUNT = 6;
+    private static final int BYTES_PER_FIELD = 4;
+
+    private ByteBuffer mBuffer;
+    private IntBuffer mClassIds;
+    private FloatBuffer mScores;
+    private FloatBuffer mLefts;
+    private FloatBuffer mTops;
+    private FloatBuffer mRights;
+    private FloatBuffer mBottoms;
+    private int mCapacity;
+    private int mSize;
+    private LabelTable mLabels;
+    // The labels missing from the synset file, by class id minus the number of synset labels
+    private final List<String> mExtraLabels = new ArrayList<>();
+
+    public DetectionBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of detections the buffer can hold before it grows
+     */
+    public DetectionBatch(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity * FIELD_COUNT * BYTES_PER_FIELD)
+                .order(ByteOrder.nativeOrder());
+        mClassIds = slice(0).asIntBuffer();
+        mScores = slice(1).asFloatBuffer();
+        mLefts = slice(2).asFloatBuffer();
+        mTops = slice(3).asFloatBuffer();
+        mRights = slice(4).asFloatBuffer();
+        mBottoms = slice(5).asFloatBuffer();
+        mSize = 0;
+    }
+
+    private ByteBuffer slice(int field) {
+        int segment = mCapacity * BYTES_PER_FIELD;
+        ByteBuffer dup = mBuffer.duplicate();
+        dup.position(field * segment);
+        dup.limit((field + 1) * segment);
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Grow the buffer so that it holds at least the given number of detections.
+     * The current content is dropped when the buffer grows.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mCapacity) {
+            allocate(Math.max(capacity, mCapacity * 2));
+        }
+    }
+
+    /**
+     * Set the number of detections written with {@link #set}.
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > mCapacity) {
+            throw new IllegalArgumentException("Invalid size " + size + " for capacity " + mCapacity);
+        }
+        mSize = size;
+    }
+
+    void setLabels(LabelTable labels) {
+        mLabels = labels;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mExtraLabels.clear();
+    }
+
+    /**
+     * @return The class id of a label: its line in the synset file, or an id past the last line if the
+     *         label is not in the file
+     */
+    int classIdOf(String label) {
+        int classId = mLabels != null ? mLabels.indexOf(label) : -1;
+        if (classId >= 0) {
+            return classId;
+        }
+        int extra = mExtraLabels.indexOf(label);
+        if (extra < 0) {
+            extra = mExtraLabels.size();
+            mExtraLabels.add(label);
+        }
+        return labelCount() + extra;
+    }
+
+    private int labelCount() {
+        return mLabels != null ? mLabels.size() : 0;
+    }
+
+    /**
+     * Write a detection. Used by {@link InferenceBackend} implementations, within the capacity of the batch.
+     */
+    public void set(int index, int classId, float score, float left, float top, float right, float bottom) {
+        mClassIds.put(index, classId);
+        mScores.put(index, score);
+        mLefts.put(index, left);
+        mTops.put(index, top);
+        mRights.put(index, right);
+        mBottoms.put(index, bottom);
+    }
+
+    /**
+     * Copy the content of another batch into this one.
+     */
+    public void copyFrom(DetectionBatch other) {
+        ensureCapacity(other.mSize);
+        for (int i = 0; i != other.mSize; i++) {
+            set(i, other.getClassId(i), other.getScore(i), other.getLeft(i), other.getTop(i),
+                    other.getRight(i), other.getBottom(i));
+        }
+        mSize = other.mSize;
+        mLabels = other.mLabels;
+        mExtraLabels.clear();
+        mExtraLabels.addAll(other.mExtraLabels);
+    }
+
+    /**
+     * Append the detections of another batch, keeping the current content. The boxes are scaled, then
+     * offset, such as to map the detections of a crop back to the image.
+     */
+    public void append(DetectionBatch other, float scale, float dx, float dy) {
+        if (mLabels == null) {
+            mLabels = other.mLabels;
+        }
+        int size = mSize + other.mSize;
+        if (size > mCapacity) {
+            DetectionBatch current = new DetectionBatch(mSize);
+            current.copyFrom(this);
+            allocate(Math.max(size, mCapacity * 2));
+            for (int i = 0; i != current.mSize; i++) {
+                set(i, current.getClassId(i), current.getScore(i), current.getLeft(i), current.getTop(i),
+                        current.getRight(i), current.getBottom(i));
+            }
+            mSize = current.mSize;
+        }
+        for (int i = 0; i != other.mSize; i++) {
+            int classId = other.getClassId(i);
+            if (classId >= other.labelCount() && !other.mExtraLabels.isEmpty()) {
+                // The extra labels of the other batch have ids of their own
+                classId = classIdOf(other.getLabel(i));
+            }
+            set(mSize + i, classId, other.getScore(i),
+                    other.getLeft(i) * scale + dx, other.getTop(i) * scale + dy,
+                    other.getRight(i) * scale + dx, other.getBottom(i) * scale + dy);
+        }
+        mSize = size;
+    }
+
+    /**
+     * Scale, then offset the boxes of the batch, such as to map them from a resized image back to the original.
+     */
+    public void transform(float scale, float dx, float dy) {
+        for (int i = 0; i != mSize; i++) {
+            mLefts.put(i, mLefts.get(i) * scale + dx);
+            mTops.put(i, mTops.get(i) * scale + dy);
+            mRights.put(i, mRights.get(i) * scale + dx);
+            mBottoms.put(i, mBottoms.get(i) * scale + dy);
+        }
+    }
+
+    /**
+     * @return The number of detections in the batch
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of detections the batch can hold without growing
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The index of the detected label in the synset file, or an id past its last line for a label
+     *         missing from the file
+     */
+    public int getClassId(int index) {
+        checkIndex(index);
+        return mClassIds.get(index);
+    }
+
+    /**
+     * @return The label of the detection, or null if the class id is unknown
+     */
+    public String getLabel(int index) {
+        int classId = getClassId(index);
+        int extra = classId - labelCount();
+        if (extra >= 0) {
+            return extra < mExtraLabels.size() ? mExtraLabels.get(extra) : null;
+        }
+        return mLabels != null ? mLabels.getLabel(classId) : null;
+    }
+
+    /**
+     * @return A confidence factor between 0 and 1
+     */
+    public float getScore(int index) {
+        checkIndex(index);
+        return mScores.get(index);
+    }
+
+    /**
+     * @return The X coordinate of the left side of the detection
+     */
+    public float getLeft(int index) {
+        checkIndex(index);
+        return mLefts.get(index);
+    }
+
+    /**
+     * @return The Y coordinate of the top of the detection
+     */
+    public float getTop(int index) {
+        checkIndex(index);
+        return mTops.get(index);
+    }
+
+    /**
+     * @return The X coordinate of the right side of the detection
+     */
+    public float getRight(int index) {
+        checkIndex(index);
+        return mRights.get(index);
+    }
+
+    /**
+     * @return The Y coordinate of the bottom of the detection
+     */
+    public float getBottom(int index) {
+        checkIndex(index);
+        return mBottoms.get(index);
+    }
+
+    /**
+     * @return A {@link VisionDetRet} copy of the detection at the given index
+     */
+    public VisionDetRet toDetRet(int index) {
+        return new VisionDetRet(getLabel(index), getScore(index),
+                Math.round(getLeft(index)), Math.round(getTop(index)),
+                Math.round(getRight(index)), Math.round(getBottom(index)));
+    }
+
+    /**
+     * @return {@link VisionDetRet} copies of all the detections
+     */
+    public List<VisionDetRet> toList() {
+        List<VisionDetRet> ret = new ArrayList<>(mSize);
+        for (int i = 0; i != mSize; i++) {
+            ret.add(toDetRet(i));
+        }
+        return ret;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Prunes a {@link DetectionBatch} in place before any {@link VisionDetRet} or label string is created:
+ * per-class score thresholds, non-maximum suppression (per class or across classes, hard or soft) and
+ * a cap on the number of detections.
+ * <p>
+ * Overlap checks only look at boxes sharing a cell of a uniform grid laid over the detections, so the
+ * cost stays close to linear for hundreds of scattered proposals. Scratch arrays are reused, so an
+ * instance must not be used by two threads at once.
+ */
+public final class DetectionPostProcessor {
+    private static final int MAX_GRID_SIZE = 32;
+
+    /**
+     * How overlapping detections are suppressed.
+     */
+    public enum NmsMode {
+        /**
+         * Keep overlapping detections.
+         */
+        NONE,
+        /**
+         * Only detections of the same class suppress each other.
+         */
+        PER_CLASS,
+        /**
+         * Detections suppress each other whatever their class.
+         */
+        CLASS_AGNOSTIC
+    }
+
+    private final float mDefaultThreshold;
+    private final float[] mClassThresholds;
+    private final NmsMode mNmsMode;
+    private final float mIouThreshold;
+    private final boolean mSoftNms;
+    private final float mSoftNmsSigma;
+    private final int mMaxDetections;
+
+    // Scratch state, reused between calls
+    private int mCount;
+    private int[] mClassIds = new int[0];
+    private float[] mScores = new float[0];
+    private float[] mLefts = new float[0];
+    private float[] mTops = new float[0];
+    private float[] mRights = new float[0];
+    private float[] mBottoms = new float[0];
+    private int[] mSelected = new int[0];
+    private long[] mSortKeys = new long[0];
+    private int[] mStamps = new int[0];
+    private int mStamp;
+    private float[] mHeapScores = new float[0];
+    private int[] mHeapIndices = new int[0];
+    private final SpatialGrid mGrid = new SpatialGrid();
+
+    /**
+     * Builds a {@link DetectionPostProcessor}.
+     */
+    public static final class Builder {
+        private float mDefaultThreshold;
+        private float[] mClassThresholds = new float[0];
+        private NmsMode mNmsMode = NmsMode.PER_CLASS;
+        private float mIouThreshold = 0.3f;
+        private boolean mSoftNms;
+        private float mSoftNmsSigma = 0.5f;
+        private int mMaxDetections = Integer.MAX_VALUE;
+
+        /**
+         * @param threshold The minimum score of classes without their own threshold. The default is 0.
+         */
+        public Builder setDefaultThreshold(float threshold) {
+            mDefaultThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * @param classId   The index of the class in the synset file
+         * @param threshold The minimum score of the class
+         */
+        public Builder setClassThreshold(int classId, float threshold) {
+            if (classId < 0) {
+                throw new IllegalArgumentException("Invalid class id " + classId);
+            }
+            if (classId >= mClassThresholds.length) {
+                int oldLength = mClassThresholds.length;
+                mClassThresholds = Arrays.copyOf(mClassThresholds, classId + 1);
+                Arrays.fill(mClassThresholds, oldLength, mClassThresholds.length, Float.NaN);
+            }
+            mClassThresholds[classId] = threshold;
+            return this;
+        }
+
+        /**
+         * Drop every detection of a class, such as the background class of Fast R-CNN.
+         * Negative ids, as returned for unknown labels, are ignored.
+         */
+        public Builder dropClass(int classId) {
+            if (classId >= 0) {
+                setClassThreshold(classId, Float.POSITIVE_INFINITY);
+            }
+            return this;
+        }
+
+        /**
+         * @param mode How overlapping detections are suppressed. The default is {@link NmsMode#PER_CLASS}.
+         */
+        public Builder setNmsMode(@NonNull NmsMode mode) {
+            mNmsMode = mode;
+            return this;
+        }
+
+        /**
+         * @param iouThreshold Hard NMS drops a detection overlapping a better one by more than this
+         *                     intersection over union. The default is 0.3.
+         */
+        public Builder setIouThreshold(float iouThreshold) {
+            mIouThreshold = iouThreshold;
+            return this;
+        }
+
+        /**
+         * Decay the score of overlapping detections by exp(-iou^2 / sigma) instead of dropping them.
+         * Detections whose decayed score falls below their class threshold are dropped.
+         */
+        public Builder setSoftNms(boolean softNms, float sigma) {
+            if (softNms && sigma <= 0) {
+                throw new IllegalArgumentException("sigma should be positive");
+            }
+            mSoftNms = softNms;
+            mSoftNmsSigma = sigma;
+            return this;
+        }
+
+        /**
+         * @param maxDetections The maximum number of detections kept, the best ones first
+         */
+        public Builder setMaxDetections(int maxDetections) {
+            if (maxDetections <= 0) {
+                throw new IllegalArgumentException("maxDetections should be positive");
+            }
+            mMaxDetections = maxDetections;
+            return this;
+        }
+
+        public DetectionPostProcessor build() {
+            return new DetectionPostProcessor(this);
+        }
+    }
+
+    private DetectionPostProcessor(Builder builder) {
+        mDefaultThreshold = builder.mDefaultThreshold;
+        mClassThresholds = builder.mClassThresholds.clone();
+        mNmsMode = builder.mNmsMode;
+        mIouThreshold = builder.mIouThreshold;
+        mSoftNms = builder.mSoftNms;
+        mSoftNmsSigma = builder.mSoftNmsSigma;
+        mMaxDetections = builder.mMaxDetections;
+    }
+
+    /**
+     * @return The configuration, equal for post-processors that give the same results
+     */
+    @Override
+    public String toString() {
+        return "threshold=" + mDefaultThreshold
+                + ", classThresholds=" + Arrays.toString(mClassThresholds)
+                + ", nms=" + mNmsMode
+                + ", iou=" + mIouThreshold
+                + (mSoftNms ? ", softNmsSigma=" + mSoftNmsSigma : "")
+                + ", maxDetections=" + mMaxDetections;
+    }
+
+    /**
+     * Prune the batch in place. The kept detections are sorted by descending score.
+     */
+    public void process(@NonNull DetectionBatch batch) {
+        load(batch);
+        int selectedCount;
+        if (mNmsMode == NmsMode.NONE) {
+            selectedCount = selectByScore();
+        } else if (mSoftNms) {
+            selectedCount = selectSoftNms();
+        } else {
+            selectedCount = selectHardNms();
+        }
+        store(batch, selectedCount);
+    }
+
+    private float getThreshold(int classId) {
+        if (classId >= 0 && classId < mClassThresholds.length && !Float.isNaN(mClassThresholds[classId])) {
+            return mClassThresholds[classId];
+        }
+        return mDefaultThreshold;
+    }
+
+    /**
+     * Copy the detections above their threshold into the scratch arrays.
+     */
+    private void load(DetectionBatch batch) {
+        int size = batch.size();
+        ensureCapacity(size);
+        mCount = 0;
+        for (int i = 0; i != size; i++) {
+            int classId = batch.getClassId(i);
+            float score = batch.getScore(i);
+            if (!(score >= getThreshold(classId))) {
+                continue;
+            }
+            mClassIds[mCount] = classId;
+            mScores[mCount] = score;
+            mLefts[mCount] = batch.getLeft(i);
+            mTops[mCount] = batch.getTop(i);
+            mRights[mCount] = batch.getRight(i);
+            mBottoms[mCount] = batch.getBottom(i);
+            mCount++;
+        }
+    }
+
+    private void store(DetectionBatch batch, int selectedCount) {
+        for (int i = 0; i != selectedCount; i++) {
+            int index = mSelected[i];
+            batch.set(i, mClassIds[index], mScores[index],
+                    mLefts[index], mTops[index], mRights[index], mBottoms[index]);
+        }
+        batch.setSize(selectedCount);
+    }
+
+    private void ensureCapacity(int size) {
+        if (mScores.length >= size) {
+            return;
+        }
+        mClassIds = new int[size];
+        mScores = new float[size];
+        mLefts = new float[size];
+        mTops = new float[size];
+        mRights = new float[size];
+        mBottoms = new float[size];
+        mSelected = new int[size];
+        mSortKeys = new long[size];
+        mStamps = new int[size];
+        mHeapScores = new float[size];
+        mHeapIndices = new int[size];
+    }
+
+    /**
+     * Sort the scratch detections by descending score into mSelected. Scores are non-negative
+     * after thresholding, so their bit patterns sort like the values.
+     */
+    private void sortByScore() {
+        for (int i = 0; i != mCount; i++) {
+            int bits = Float.floatToIntBits(Math.max(0f, mScores[i]));
+            mSortKeys[i] = ((long) bits << 32) | (mCount - 1 - i);
+        }
+        Arrays.sort(mSortKeys, 0, mCount);
+        for (int i = 0; i != mCount; i++) {
+            mSelected[i] = mCount - 1 - (int) mSortKeys[mCount - 1 - i];
+        }
+    }
+
+    private int selectByScore() {
+        sortByScore();
+        return Math.min(mCount, mMaxDetections);
+    }
+
+    private int selectHardNms() {
+        sortByScore();
+        mGrid.reset(mLefts, mTops, mRights, mBottoms, mCount);
+        int kept = 0;
+        for (int i = 0; i != mCount && kept < mMaxDetections; i++) {
+            int candidate = mSelected[i];
+            if (!isSuppressed(candidate)) {
+                mGrid.insert(candidate, mLefts[candidate], mTops[candidate],
+                        mRights[candidate], mBottoms[candidate]);
+                mSelected[kept++] = candidate;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return true if a box already in the grid overlaps the candidate by more than the IoU threshold
+     */
+    private boolean isSuppressed(int candidate) {
+        int stamp = nextStamp();
+        SpatialGrid grid = mGrid;
+        int x0 = grid.cellX(mLefts[candidate]);
+        int x1 = grid.cellX(mRights[candidate]);
+        int y0 = grid.cellY(mTops[candidate]);
+        int y1 = grid.cellY(mBottoms[candidate]);
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                for (int e = grid.head(cx, cy); e >= 0; e = grid.next(e)) {
+                    int other = grid.box(e);
+                    if (mStamps[other] == stamp) {
+                        continue;
+                    }
+                    mStamps[other] = stamp;
+                    if (mNmsMode == NmsMode.PER_CLASS && mClassIds[other] != mClassIds[candidate]) {
+                        continue;
+                    }
+                    if (iou(candidate, other) > mIouThreshold) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Soft-NMS: repeatedly select the best remaining detection and decay the scores of the detections
+     * it overlaps. Scores only decrease, so a lazy max-heap re-inserts entries whose score went stale.
+     */
+    private int selectSoftNms() {
+        mGrid.reset(mLefts, mTops, mRights, mBottoms, mCount);
+        int heapSize = 0;
+        for (int i = 0; i != mCount; i++) {
+            mGrid.insert(i, mLefts[i], mTops[i], mRights[i], mBottoms[i]);
+            heapSize = heapPush(heapSize, i, mScores[i]);
+        }
+
+        // mStamps marks selected or dropped detections with -1
+        Arrays.fill(mStamps, 0, mCount, 0);
+        int kept = 0;
+        while (heapSize > 0 && kept < mMaxDetections) {
+            int best = mHeapIndices[0];
+            float heapScore = mHeapScores[0];
+            heapSize = heapPop(heapSize);
+            if (mStamps[best] < 0) {
+                continue;
+            }
+            if (heapScore > mScores[best]) {
+                // Decayed since it was pushed
+                heapSize = heapPush(heapSize, best, mScores[best]);
+                continue;
+            }
+            if (!(mScores[best] >= getThreshold(mClassIds[best]))) {
+                mStamps[best] = -1;
+                continue;
+            }
+            mStamps[best] = -1;
+            mSelected[kept++] = best;
+            decayNeighbors(best);
+        }
+        return kept;
+    }
+
+    private void decayNeighbors(int selected) {
+        SpatialGrid grid = mGrid;
+        int x0 = grid.cellX(mLefts[selected]);
+        int x1 = grid.cellX(mRights[selected]);
+        int y0 = grid.cellY(mTops[selected]);
+        int y1 = grid.cellY(mBottoms[selected]);
+        // Positive stamps dedupe boxes spanning several cells, -1 stays for finished ones
+        int stamp = nextStamp();
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                for (int e = grid.head(cx, cy); e >= 0; e = grid.next(e)) {
+                    int other = grid.box(e);
+                    if (mStamps[other] < 0 || mStamps[other] == stamp) {
+                        continue;
+                    }
+                    mStamps[other] = stamp;
+                    if (mNmsMode == NmsMode.PER_CLASS && mClassIds[other] != mClassIds[selected]) {
+                        continue;
+                    }
+                    float iou = iou(selected, other);
+                    if (iou > 0) {
+                        mScores[other] *= (float) Math.exp(-(iou * iou) / mSoftNmsSigma);
+                    }
+                }
+            }
+        }
+    }
+
+    private int nextStamp() {
+        mStamp++;
+        if (mStamp == Integer.MAX_VALUE) {
+            mStamp = 1;
+            for (int i = 0; i != mStamps.length; i++) {
+                if (mStamps[i] > 0) {
+                    mStamps[i] = 0;
+                }
+            }
+        }
+        return mStamp;
+    }
+
+    private float iou(int a, int b) {
+        float interWidth = Math.min(mRights[a], mRights[b]) - Math.max(mLefts[a], mLefts[b]);
+        float interHeight = Math.min(mBottoms[a], mBottoms[b]) - Math.max(mTops[a], mTops[b]);
+        if (interWidth <= 0 || interHeight <= 0) {
+            return 0;
+        }
+        float inter = interWidth * interHeight;
+        float areaA = (mRights[a] - mLefts[a]) * (mBottoms[a] - mTops[a]);
+        float areaB = (mRights[b] - mLefts[b]) * (mBottoms[b] - mTops[b]);
+        float union = areaA + areaB - inter;
+        return union > 0 ? inter / union : 0;
+    }
+
+    private int heapPush(int size, int index, float score) {
+        int pos = size;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (mHeapScores[parent] >= score) {
+                break;
+            }
+            mHeapScores[pos] = mHeapScores[parent];
+            mHeapIndices[pos] = mHeapIndices[parent];
+            pos = parent;
+        }
+        mHeapScores[pos] = score;
+        mHeapIndices[pos] = index;
+        return size + 1;
+    }
+
+    private int heapPop(int size) {
+        size--;
+        float score = mHeapScores[size];
+        int index = mHeapIndices[size];
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && mHeapScores[child + 1] > mHeapScores[child]) {
+                child++;
+            }
+            if (mHeapScores[child] <= score) {
+                break;
+            }
+            mHeapScores[pos] = mHeapScores[child];
+            mHeapIndices[pos] = mHeapIndices[child];
+            pos = child;
+        }
+        if (size > 0) {
+            mHeapScores[pos] = score;
+            mHeapIndices[pos] = index;
+        }
+        return size;
+    }
+
+    /**
+     * A uniform grid over the extent of the detections. Each cell holds a linked list of the boxes
+     * overlapping it, stored in primitive arrays.
+     */
+    private static final class SpatialGrid {
+        private int mColumns;
+        private int mRows;
+        private float mMinX;
+        private float mMinY;
+        private float mCellWidth;
+        private float mCellHeight;
+        private int[] mHeads = new int[0];
+        private int[] mNext = new int[0];
+        private int[] mBoxes = new int[0];
+        private int mEntryCount;
+
+        void reset(float[] lefts, float[] tops, float[] rights, float[] bottoms, int count) {
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int i = 0; i != count; i++) {
+                minX = Math.min(minX, lefts[i]);
+                minY = Math.min(minY, tops[i]);
+                maxX = Math.max(maxX, rights[i]);
+                maxY = Math.max(maxY, bottoms[i]);
+            }
+            if (count == 0) {
+                minX = minY = 0;
+                maxX = maxY = 1;
+            }
+            int size = Math.max(1, Math.min(MAX_GRID_SIZE, (int) Math.ceil(Math.sqrt(count))));
+            mColumns = size;
+            mRows = size;
+            mMinX = minX;
+            mMinY = minY;
+            mCellWidth = Math.max(1e-3f, (maxX - minX) / size);
+            mCellHeight = Math.max(1e-3f, (maxY - minY) / size);
+            if (mHeads.length < size * size) {
+                mHeads = new int[size * size];
+            }
+            Arrays.fill(mHeads, 0, size * size, -1);
+            mEntryCount = 0;
+        }
+
+        int cellX(float x) {
+            int cell = (int) ((x - mMinX) / mCellWidth);
+            return cell < 0 ? 0 : (cell >= mColumns ? mColumns - 1 : cell);
+        }
+
+        int cellY(float y) {
+            int cell = (int) ((y - mMinY) / mCellHeight);
+            return cell < 0 ? 0 : (cell >= mRows ? mRows - 1 : cell);
+        }
+
+        void insert(int box, float left, float top, float right, float bottom) {
+            int x0 = cellX(left);
+            int x1 = cellX(right);
+            int y0 = cellY(top);
+            int y1 = cellY(bottom);
+            for (int cy = y0; cy <= y1; cy++) {
+                for (int cx = x0; cx <= x1; cx++) {
+                    if (mEntryCount == mNext.length) {
+                        int capacity = Math.max(16, mNext.length * 2);
+                        mNext = Arrays.copyOf(mNext, capacity);
+                        mBoxes = Arrays.copyOf(mBoxes, capacity);
+                    }
+                    int cell = cy * mColumns + cx;
+                    mBoxes[mEntryCount] = box;
+                    mNext[mEntryCount] = mHeads[cell];
+                    mHeads[cell] = mEntryCount;
+                    mEntryCount++;
+                }
+            }
+        }
+
+        int head(int cx, int cy) {
+            return mHeads[cy * mColumns + cx];
+        }
+
+        int next(int entry) {
+            return mNext[entry];
+        }
+
+        int box(int entry) {
+            return mBoxes[entry];
+        }
+    }
+}
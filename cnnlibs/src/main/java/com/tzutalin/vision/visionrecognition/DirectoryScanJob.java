@@ -0,0 +1,516 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Classifies every image under a directory and appends one CSV line per image to an output file:
+ * <pre>
+ * relative/path.jpg,label:0.8123,label:0.0912
+ * </pre>
+ * A result with a box is written as {@code label:0.8123@left/top/right/bottom}. Paths use '/' and are
+ * quoted when they hold a comma or a quote.
+ * <p>
+ * The output is also the checkpoint: it is synced every few images, and a new run over the same output
+ * skips the images already in it after dropping a line cut by a crash. Images that fail are logged but
+ * not written, so the next run tries them again.
+ * <p>
+ * The job runs on the calling thread and uses the classifier, which must be initialized, from it only.
+ */
+public final class DirectoryScanJob {
+    private static final String TAG = "DirectoryScanJob";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] DEFAULT_EXTENSIONS = {"jpg", "jpeg", "png", "webp", "bmp"};
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 32;
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Receives the progress of the job at each checkpoint, on the job thread.
+     */
+    public interface Listener {
+        void onCheckpoint(@NonNull Summary progress);
+    }
+
+    /**
+     * The counts of a run of the job.
+     */
+    public static final class Summary {
+        private final long mClassified;
+        private final long mSkipped;
+        private final long mFailed;
+        private final long mElapsedMs;
+        private final boolean mComplete;
+
+        Summary(long classified, long skipped, long failed, long elapsedMs, boolean complete) {
+            mClassified = classified;
+            mSkipped = skipped;
+            mFailed = failed;
+            mElapsedMs = elapsedMs;
+            mComplete = complete;
+        }
+
+        /**
+         * @return The number of images classified and written by this run
+         */
+        public long getClassifiedCount() {
+            return mClassified;
+        }
+
+        /**
+         * @return The number of images found in the output from previous runs
+         */
+        public long getSkippedCount() {
+            return mSkipped;
+        }
+
+        public long getFailedCount() {
+            return mFailed;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMs;
+        }
+
+        /**
+         * @return false if the run was cancelled or interrupted before the end of the tree
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        public float getImagesPerSecond() {
+            return mElapsedMs > 0 ? mClassified * 1000f / mElapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "classified=%d, skipped=%d, failed=%d, %.1f images/s%s",
+                    mClassified, mSkipped, mFailed, getImagesPerSecond(), mComplete ? "" : ", incomplete");
+        }
+    }
+
+    private final CaffeClassifier<List<VisionDetRet>> mClassifier;
+    private final File mRoot;
+    private final File mOutput;
+    private final Set<String> mExtensions;
+    private final int mCheckpointInterval;
+    private final BatchOptions mBatchOptions;
+    private final Listener mListener;
+    private volatile boolean mCancelled;
+
+    private Writer mWriter;
+    private FileOutputStream mStream;
+    private long mClassified;
+    private long mSkipped;
+    private long mFailed;
+    private long mStartTime;
+    private int mSinceCheckpoint;
+
+    private DirectoryScanJob(Builder builder) {
+        mClassifier = builder.mClassifier;
+        mRoot = builder.mRoot;
+        mOutput = builder.mOutput;
+        mExtensions = new HashSet<>(Arrays.asList(builder.mExtensions));
+        mCheckpointInterval = builder.mCheckpointInterval;
+        mBatchOptions = builder.mBatchOptions;
+        mListener = builder.mListener;
+    }
+
+    /**
+     * Stop the job after the current image, or after the current batch when decoding in Java. It can be
+     * called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Scan the tree, skipping the images already in the output.
+     *
+     * @return The counts of this run
+     * @throws IOException if the output cannot be read or written
+     */
+    @NonNull
+    public Summary run() throws IOException {
+        if (!mRoot.isDirectory()) {
+            throw new IllegalArgumentException(mRoot + " is not a directory");
+        }
+        mStartTime = System.currentTimeMillis();
+        mClassified = 0;
+        mFailed = 0;
+        mSinceCheckpoint = 0;
+        Set<String> done = readDone(mOutput);
+        mSkipped = 0;
+
+        mStream = new FileOutputStream(mOutput, true);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mStream, UTF_8));
+        boolean complete = false;
+        try {
+            complete = scan(done);
+        } finally {
+            try {
+                checkpoint();
+            } finally {
+                mWriter.close();
+                mWriter = null;
+                mStream = null;
+            }
+        }
+        return summary(complete);
+    }
+
+    /**
+     * Walk the tree depth first, in name order, so runs over the same tree see the images in the same order.
+     */
+    private boolean scan(Set<String> done) throws IOException {
+        ArrayDeque<File> directories = new ArrayDeque<>();
+        directories.push(mRoot);
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        while (!directories.isEmpty()) {
+            File[] children = directories.pop().listFiles();
+            if (children == null) {
+                continue;
+            }
+            Arrays.sort(children);
+            // Pushed in reverse so the first subdirectory is scanned first
+            for (int i = children.length - 1; i >= 0; i--) {
+                if (children[i].isDirectory()) {
+                    directories.push(children[i]);
+                }
+            }
+            for (File child : children) {
+                if (!child.isFile() || !isImage(child.getName())) {
+                    continue;
+                }
+                if (done.contains(relativePath(child))) {
+                    mSkipped++;
+                    continue;
+                }
+                batch.add(child.getPath());
+                if (batch.size() == BATCH_SIZE) {
+                    if (!classify(batch)) {
+                        return false;
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        return classify(batch);
+    }
+
+    /**
+     * @return false if the job was cancelled
+     */
+    private boolean classify(final List<String> imgPaths) throws IOException {
+        if (imgPaths.isEmpty()) {
+            return !isCancelled();
+        }
+        if (mBatchOptions != null) {
+            final IOException[] writeError = new IOException[1];
+            mClassifier.classifyBatchByPath(imgPaths, mBatchOptions, new CaffeClassifier.BatchCallback<List<VisionDetRet>>() {
+                @Override
+                public void onResult(int index, List<VisionDetRet> result) {
+                    try {
+                        if (writeError[0] == null) {
+                            write(imgPaths.get(index), result);
+                        }
+                    } catch (IOException e) {
+                        writeError[0] = e;
+                    }
+                }
+
+                @Override
+                public void onError(int index, Throwable error) {
+                    fail(imgPaths.get(index), error);
+                }
+            });
+            if (writeError[0] != null) {
+                throw writeError[0];
+            }
+            return !isCancelled();
+        }
+
+        for (String imgPath : imgPaths) {
+            if (isCancelled()) {
+                return false;
+            }
+            List<VisionDetRet> result;
+            try {
+                result = mClassifier.classifyByPath(imgPath);
+            } catch (RuntimeException e) {
+                fail(imgPath, e);
+                continue;
+            }
+            write(imgPath, result);
+        }
+        return !isCancelled();
+    }
+
+    private boolean isCancelled() {
+        return mCancelled || Thread.currentThread().isInterrupted();
+    }
+
+    private void fail(String imgPath, Throwable error) {
+        mFailed++;
+        Log.w(TAG, "Cannot classify " + imgPath + ": " + error);
+    }
+
+    private void write(String imgPath, @Nullable List<VisionDetRet> result) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        appendField(sb, relativePath(new File(imgPath)));
+        if (result != null) {
+            for (VisionDetRet ret : result) {
+                sb.append(',');
+                appendField(sb, ret.getLabel() + ':' + formatConfidence(ret.getConfidence()) + formatBox(ret));
+            }
+        }
+        sb.append('\n');
+        mWriter.write(sb.toString());
+        mClassified++;
+        if (++mSinceCheckpoint >= mCheckpointInterval) {
+            checkpoint();
+            if (mListener != null) {
+                mListener.onCheckpoint(summary(false));
+            }
+        }
+    }
+
+    /**
+     * Push the written lines to the disk, so a crash loses at most the images since the last checkpoint.
+     */
+    private void checkpoint() throws IOException {
+        mWriter.flush();
+        mStream.getFD().sync();
+        mSinceCheckpoint = 0;
+    }
+
+    private Summary summary(boolean complete) {
+        return new Summary(mClassified, mSkipped, mFailed, System.currentTimeMillis() - mStartTime, complete);
+    }
+
+    private boolean isImage(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && mExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    private String relativePath(File file) {
+        String root = mRoot.getPath();
+        String path = file.getPath();
+        if (path.startsWith(root)) {
+            path = path.substring(root.length());
+            while (path.startsWith(File.separator)) {
+                path = path.substring(1);
+            }
+        }
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+
+    private static String formatConfidence(float confidence) {
+        int value = Math.round(Math.max(0, Math.min(1, confidence)) * 10000);
+        StringBuilder sb = new StringBuilder(6).append(value / 10000).append('.');
+        String fraction = Integer.toString(value % 10000);
+        for (int i = fraction.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+
+    private static String formatBox(VisionDetRet ret) {
+        if (ret.getLeft() == 0 && ret.getTop() == 0 && ret.getRight() == 0 && ret.getBottom() == 0) {
+            return "";
+        }
+        return "@" + ret.getLeft() + '/' + ret.getTop() + '/' + ret.getRight() + '/' + ret.getBottom();
+    }
+
+    private static void appendField(StringBuilder sb, String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+            sb.append(field);
+            return;
+        }
+        sb.append('"').append(field.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * Read the paths of the previous runs, dropping the last line if a crash cut it.
+     */
+    private static Set<String> readDone(File output) throws IOException {
+        Set<String> done = new HashSet<>();
+        if (!output.exists()) {
+            return done;
+        }
+        truncateToLastLine(output);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(output), UTF_8));
+        try {
+            String line;
+            StringBuilder pending = null;
+            while ((line = reader.readLine()) != null) {
+                // A quoted path may hold a line break, so join lines until its quote is closed
+                if (pending != null) {
+                    line = pending.append('\n').append(line).toString();
+                    pending = null;
+                }
+                String path = readFirstField(line);
+                if (path == null) {
+                    pending = new StringBuilder(line);
+                    continue;
+                }
+                done.add(path);
+            }
+        } finally {
+            reader.close();
+        }
+        return done;
+    }
+
+    /**
+     * @return The first field of a CSV line, or null if its quote is not closed on this line
+     */
+    @Nullable
+    private static String readFirstField(String line) {
+        if (!line.startsWith("\"")) {
+            int comma = line.indexOf(',');
+            return comma >= 0 ? line.substring(0, comma) : line;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c != '"') {
+                sb.append(c);
+            } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                sb.append('"');
+                i++;
+            } else {
+                return sb.toString();
+            }
+        }
+        return null;
+    }
+
+    private static void truncateToLastLine(File output) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        try {
+            long length = file.length();
+            long end = length;
+            while (end > 0) {
+                file.seek(end - 1);
+                if (file.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end != length) {
+                Log.w(TAG, "Drop " + (length - end) + " bytes of an unfinished line in " + output);
+                file.setLength(end);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Builder of {@link DirectoryScanJob}.
+     */
+    public static final class Builder {
+        private final CaffeClassifier<List<VisionDetRet>> mClassifier;
+        private final File mRoot;
+        private final File mOutput;
+        private String[] mExtensions = DEFAULT_EXTENSIONS;
+        private int mCheckpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        private BatchOptions mBatchOptions;
+        private Listener mListener;
+
+        /**
+         * @param classifier An initialized classifier
+         * @param root       The directory to scan
+         * @param output     The file the results are appended to, created if needed
+         */
+        public Builder(@NonNull CaffeClassifier<List<VisionDetRet>> classifier, @NonNull File root,
+                       @NonNull File output) {
+            mClassifier = classifier;
+            mRoot = root;
+            mOutput = output;
+        }
+
+        /**
+         * @param extensions The lower case extensions of the files to classify, jpg, jpeg, png, webp and bmp
+         *                   by default
+         */
+        @NonNull
+        public Builder setExtensions(@NonNull String... extensions) {
+            mExtensions = extensions.clone();
+            return this;
+        }
+
+        /**
+         * @param images The number of images between two syncs of the output
+         */
+        @NonNull
+        public Builder setCheckpointInterval(int images) {
+            if (images <= 0) {
+                throw new IllegalArgumentException("images should be positive");
+            }
+            mCheckpointInterval = images;
+            return this;
+        }
+
+        /**
+         * Decode the images in Java on a pool of threads while the net runs, see
+         * {@link CaffeClassifier#classifyBatchByPath(List, BatchOptions, CaffeClassifier.BatchCallback)}.
+         * By default each path is given to {@link CaffeClassifier#classifyByPath(String)}.
+         *
+         * @param options The pipeline options, or null to classify by path
+         */
+        @NonNull
+        public Builder setBatchOptions(@Nullable BatchOptions options) {
+            mBatchOptions = options;
+            return this;
+        }
+
+        @NonNull
+        public Builder setListener(@Nullable Listener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        @NonNull
+        public DirectoryScanJob build() {
+            return new DirectoryScanJob(this);
+        }
+    }
+}
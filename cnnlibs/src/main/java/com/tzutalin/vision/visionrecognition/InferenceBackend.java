@@ -0,0 +1,80 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Runs the network behind a {@link CaffeClassifier}. The classifiers use the Caffe JNI library by default;
+ * another backend can be given to their constructor, such as {@link SimulatedBackend} to exercise the Java
+ * pipeline without the native library.
+ * <p>
+ * A backend belongs to one classifier, which calls it with its forward lock held, from setting the selected
+ * label to reading the outputs, so it is called from one thread at a time.
+ */
+public interface InferenceBackend {
+    /**
+     * Load the network. Called by {@link CaffeClassifier#init(int, int)}.
+     *
+     * @param modelPath   The network definition
+     * @param weightsPath The trained weights
+     * @param meanPath    The mean file, or null
+     * @param synsetPath  The labels, one per line
+     */
+    void load(String modelPath, String weightsPath, @Nullable String meanPath, String synsetPath);
+
+    /**
+     * Release the network. Called by {@link CaffeClassifier#deInit()}.
+     */
+    void release();
+
+    /**
+     * Restrict detection to a label, or detect every label if null. Classification backends ignore it.
+     */
+    void setSelectedLabel(@Nullable String label);
+
+    /**
+     * Run a forward pass on a bitmap.
+     *
+     * @return The number of outputs: scores for a classification network, detections for a detection network
+     */
+    int run(@NonNull Bitmap bitmap);
+
+    /**
+     * Run a forward pass on an image file.
+     *
+     * @return The number of outputs: scores for a classification network, detections for a detection network
+     */
+    int runPath(@NonNull String imgPath);
+
+    /**
+     * @return The scores of the last forward pass of a classification network, indexed by class id,
+     * or null if there are none
+     */
+    @Nullable
+    float[] getScores();
+
+    /**
+     * Copy the detections of the last forward pass of a detection network into the batch.
+     *
+     * @param batch Receives the detections, with the class ids indexing the synset file
+     * @param count The number of detections returned by the forward pass
+     */
+    void getDetections(@NonNull DetectionBatch batch, int count);
+}
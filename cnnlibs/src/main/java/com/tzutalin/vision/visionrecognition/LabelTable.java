@@ -0,0 +1,254 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The labels of a synset file, one per line. The file is memory-mapped and indexed by line offsets, so
+ * loading it is a single pass over the bytes and no String exists until a label is asked for.
+ * <p>
+ * The label of a line is the first word after its last '/', as the classifiers always read it:
+ * "n01440764 tench, Tinca tinca" gives "n01440764" and "/a/abbey 0" gives "abbey". The whole line stays
+ * available through {@link #getDescription(int)}.
+ * <p>
+ * Tables opened with {@link #open(String)} are shared by every classifier using the same file. A table is
+ * safe to use from several threads.
+ */
+public final class LabelTable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Map<String, WeakReference<LabelTable>> sTables = new HashMap<>();
+
+    private final ByteBuffer mArena;
+    private final int[] mLineStarts;
+    private final int[] mLineEnds;
+    private final int[] mLabelStarts;
+    private final int[] mLabelEnds;
+    private final String[] mLabelCache;
+    private final long mFileLength;
+    private final long mFileModified;
+    private Map<String, Integer> mIndex;
+
+    private LabelTable(ByteBuffer arena, long fileLength, long fileModified) {
+        mArena = arena;
+        mFileLength = fileLength;
+        mFileModified = fileModified;
+
+        int limit = arena.limit();
+        int count = 0;
+        for (int i = 0; i < limit; i++) {
+            if (arena.get(i) == '\n') {
+                count++;
+            }
+        }
+        if (limit > 0 && arena.get(limit - 1) != '\n') {
+            count++;
+        }
+        mLineStarts = new int[count];
+        mLineEnds = new int[count];
+        mLabelStarts = new int[count];
+        mLabelEnds = new int[count];
+        mLabelCache = new String[count];
+
+        int line = 0;
+        int start = 0;
+        for (int i = 0; i <= limit && line < count; i++) {
+            if (i == limit || arena.get(i) == '\n') {
+                int end = i;
+                if (end > start && arena.get(end - 1) == '\r') {
+                    end--;
+                }
+                indexLine(line++, start, end);
+                start = i + 1;
+            }
+        }
+    }
+
+    private void indexLine(int line, int start, int end) {
+        int labelStart = start;
+        for (int i = end - 1; i >= start; i--) {
+            if (mArena.get(i) == '/') {
+                labelStart = i + 1;
+                break;
+            }
+        }
+        int labelEnd = labelStart;
+        while (labelEnd < end && mArena.get(labelEnd) != ' ') {
+            labelEnd++;
+        }
+        mLineStarts[line] = start;
+        mLineEnds[line] = end;
+        mLabelStarts[line] = labelStart;
+        mLabelEnds[line] = labelEnd;
+    }
+
+    /**
+     * Get the table of a synset file, mapping the file if no classifier uses it yet or if it changed.
+     *
+     * @param synsetPath The path of the synset file
+     * @return The table, or null if the file cannot be read
+     */
+    @Nullable
+    public static LabelTable open(@NonNull String synsetPath) {
+        File file = new File(synsetPath);
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException e) {
+            key = file.getAbsolutePath();
+        }
+        synchronized (sTables) {
+            WeakReference<LabelTable> ref = sTables.get(key);
+            LabelTable table = ref != null ? ref.get() : null;
+            if (table != null && table.mFileLength == file.length() && table.mFileModified == file.lastModified()) {
+                return table;
+            }
+            table = map(file);
+            if (table != null) {
+                sTables.put(key, new WeakReference<>(table));
+            } else {
+                sTables.remove(key);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Map a file without going through the shared tables.
+     */
+    static LabelTable map(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long length = raf.length();
+            long modified = file.lastModified();
+            // The mapping stays valid after the channel is closed
+            ByteBuffer arena = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new LabelTable(arena, length, modified);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build a table holding the given labels, packed in memory.
+     */
+    @NonNull
+    public static LabelTable of(@NonNull String... labels) {
+        StringBuilder sb = new StringBuilder();
+        for (String label : labels) {
+            sb.append(label).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(UTF_8);
+        return new LabelTable(ByteBuffer.wrap(bytes), -1, -1);
+    }
+
+    /**
+     * @return The number of labels
+     */
+    public int size() {
+        return mLineStarts.length;
+    }
+
+    /**
+     * @param classId The line of the synset file
+     * @return The label of the line, or null if there is no such line
+     */
+    @Nullable
+    public String getLabel(int classId) {
+        if (classId < 0 || classId >= mLabelCache.length) {
+            return null;
+        }
+        String label = mLabelCache[classId];
+        if (label == null) {
+            // Racing threads build equal strings, so the cache needs no lock
+            label = decode(mLabelStarts[classId], mLabelEnds[classId]);
+            mLabelCache[classId] = label;
+        }
+        return label;
+    }
+
+    /**
+     * @param classId The line of the synset file
+     * @return The whole line, such as "n01440764 tench, Tinca tinca", or null if there is no such line
+     */
+    @Nullable
+    public String getDescription(int classId) {
+        if (classId < 0 || classId >= mLineStarts.length) {
+            return null;
+        }
+        return decode(mLineStarts[classId], mLineEnds[classId]);
+    }
+
+    /**
+     * @return The class id of the first line with the label, or -1 if there is none
+     */
+    public int indexOf(String label) {
+        Map<String, Integer> index;
+        synchronized (this) {
+            if (mIndex == null) {
+                mIndex = new HashMap<>(mLabelCache.length * 2);
+                for (int i = mLabelCache.length - 1; i >= 0; i--) {
+                    mIndex.put(getLabel(i), i);
+                }
+            }
+            index = mIndex;
+        }
+        Integer id = index.get(label);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return Every label, as a new array
+     */
+    @NonNull
+    public String[] toArray() {
+        String[] labels = new String[mLabelCache.length];
+        for (int i = 0; i != labels.length; i++) {
+            labels[i] = getLabel(i);
+        }
+        return labels;
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i != bytes.length; i++) {
+            bytes[i] = mArena.get(start + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
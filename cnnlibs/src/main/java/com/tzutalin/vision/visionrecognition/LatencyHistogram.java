@@ -0,0 +1,179 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed log-scaled buckets, 8 per power of two of microseconds, so recording is a few
+ * arithmetic operations and an atomic increment, and percentiles are within 12.5% of the real value.
+ * Recording and taking snapshots can happen on different threads.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^36 us, about 19 hours
+    private static final int MAX_OCTAVE = 36;
+    private static final int BUCKET_COUNT = (MAX_OCTAVE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    /**
+     * @param nanos A duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mCounts.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSumMicros.addAndGet(micros);
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    /**
+     * Forget every recorded duration.
+     */
+    public void reset() {
+        for (int i = 0; i != BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSumMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    /**
+     * @return A copy of the current counts. Durations recorded while it is taken may be partly missing.
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i != BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSumMicros.get(), mMaxMicros.get());
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(micros);
+        if (octave > MAX_OCTAVE) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (micros >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The largest duration, in microseconds, falling in the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long base = (long) (SUB_BUCKETS + sub) << (octave - SUB_BUCKET_BITS);
+        return base + (1L << (octave - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The counts of a {@link LatencyHistogram} at some point in time. All durations are in microseconds.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSumMicros;
+        private final long mMaxMicros;
+
+        Snapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+            mCounts = counts;
+            mCount = count;
+            mSumMicros = sumMicros;
+            mMaxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanMicros() {
+            return mCount > 0 ? mSumMicros / mCount : 0;
+        }
+
+        public long getMaxMicros() {
+            return mMaxMicros;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return The upper bound of the bucket holding the percentile, capped by the maximum, or 0 if empty
+         */
+        public long getPercentileMicros(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Invalid percentile " + percentile);
+            }
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i != mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+
+        public long getP50Micros() {
+            return getPercentileMicros(50);
+        }
+
+        public long getP95Micros() {
+            return getPercentileMicros(95);
+        }
+
+        public long getP99Micros() {
+            return getPercentileMicros(99);
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder()
+                    .append("n=").append(mCount)
+                    .append(", p50=").append(getP50Micros())
+                    .append("us, p95=").append(getP95Micros())
+                    .append("us, p99=").append(getP99Micros())
+                    .append("us, max=").append(mMaxMicros)
+                    .append("us").toString();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads classifiers into the {@link ModelRegistry} on a background thread and warms them up on a
+ * synthetic frame, so the first real classification does not pay for the cold start.
+ * <p>
+ * The preloader holds a lease on each model until {@link #release()}. Leases acquired elsewhere while
+ * a model is still loading or warming up wait for it, so callers can simply acquire from the registry.
+ */
+public final class ModelPreloader {
+    private static final String TAG = "ModelPreloader";
+    private static final int DEFAULT_WARMUP_RUNS = 1;
+    private static final int DEFAULT_WARMUP_SIZE = 224;
+
+    /**
+     * The progress of a preloader.
+     */
+    public enum State {
+        IDLE,
+        LOADING,
+        READY,
+        /**
+         * At least one model failed to load, the others are loaded
+         */
+        FAILED,
+        RELEASED
+    }
+
+    private static final class Model {
+        final CaffeClassifier<?> classifier;
+        final int imgWidth;
+        final int imgHeight;
+
+        Model(CaffeClassifier<?> classifier, int imgWidth, int imgHeight) {
+            this.classifier = classifier;
+            this.imgWidth = imgWidth;
+            this.imgHeight = imgHeight;
+        }
+    }
+
+    private final ModelRegistry mRegistry;
+    private final List<Model> mModels;
+    private final int mWarmupRuns;
+    private final int mWarmupWidth;
+    private final int mWarmupHeight;
+    private final FutureTask<Void> mTask;
+    private final List<ModelRegistry.Lease<?>> mLeases = new ArrayList<>();
+    private volatile State mState = State.IDLE;
+    private boolean mStarted;
+
+    private ModelPreloader(Builder builder) {
+        mRegistry = ModelRegistry.getInstance(builder.mContext);
+        mModels = new ArrayList<>(builder.mModels);
+        mWarmupRuns = builder.mWarmupRuns;
+        mWarmupWidth = builder.mWarmupWidth;
+        mWarmupHeight = builder.mWarmupHeight;
+        mTask = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                preload();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Start loading on a background thread. Calling it more than once has no effect.
+     */
+    public synchronized void start() {
+        if (mStarted || mState == State.RELEASED) {
+            return;
+        }
+        mStarted = true;
+        mState = State.LOADING;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mTask.run();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Completes once every model is loaded and warmed up, or with the first load failure
+     */
+    @NonNull
+    public Future<Void> getReadyFuture() {
+        return mTask;
+    }
+
+    @NonNull
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Give the leases back to the registry, which releases the models after its idle timeout unless
+     * they are in use. Models still loading are given back once loaded.
+     */
+    public void release() {
+        List<ModelRegistry.Lease<?>> leases;
+        synchronized (this) {
+            mState = State.RELEASED;
+            leases = new ArrayList<>(mLeases);
+            mLeases.clear();
+        }
+        for (ModelRegistry.Lease<?> lease : leases) {
+            lease.release();
+        }
+    }
+
+    private void preload() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Bitmap frame = null;
+        if (mWarmupRuns > 0) {
+            frame = Bitmap.createBitmap(mWarmupWidth, mWarmupHeight, Bitmap.Config.ARGB_8888);
+            frame.eraseColor(Color.GRAY);
+        }
+
+        Exception failure = null;
+        try {
+            for (Model model : mModels) {
+                if (mState == State.RELEASED) {
+                    break;
+                }
+                ModelRegistry.Lease<?> lease;
+                try {
+                    lease = mRegistry.acquire(model.classifier, model.imgWidth, model.imgHeight, frame, mWarmupRuns);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Cannot preload " + model.classifier.getModelKey(), e);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    if (mState == State.RELEASED) {
+                        lease.release();
+                        break;
+                    }
+                    mLeases.add(lease);
+                }
+            }
+        } finally {
+            if (frame != null) {
+                frame.recycle();
+            }
+        }
+
+        int loaded;
+        synchronized (this) {
+            if (mState != State.RELEASED) {
+                mState = failure != null ? State.FAILED : State.READY;
+            }
+            loaded = mLeases.size();
+        }
+        Log.d(TAG, "Preloaded " + loaded + " of " + mModels.size() + " models in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Builder of {@link ModelPreloader}.
+     */
+    public static final class Builder {
+        private final Context mContext;
+        private final List<Model> mModels = new ArrayList<>();
+        private int mWarmupRuns = DEFAULT_WARMUP_RUNS;
+        private int mWarmupWidth = DEFAULT_WARMUP_SIZE;
+        private int mWarmupHeight = DEFAULT_WARMUP_SIZE;
+
+        public Builder(@NonNull Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        /**
+         * Add a model to load, in the order models are added.
+         *
+         * @param classifier A classifier, usually fresh from {@link VisionClassifierCreator}
+         * @param imgWidth   The width passed to {@link CaffeClassifier#init(int, int)}
+         * @param imgHeight  The height passed to {@link CaffeClassifier#init(int, int)}
+         */
+        @NonNull
+        public Builder add(@NonNull CaffeClassifier<?> classifier, int imgWidth, int imgHeight) {
+            mModels.add(new Model(classifier, imgWidth, imgHeight));
+            return this;
+        }
+
+        /**
+         * @param runs The number of classifications of the synthetic frame per model, 0 to only load
+         */
+        @NonNull
+        public Builder setWarmupRuns(int runs) {
+            if (runs < 0) {
+                throw new IllegalArgumentException("runs should not be negative");
+            }
+            mWarmupRuns = runs;
+            return this;
+        }
+
+        /**
+         * @param width  The width of the synthetic frame, ideally the size of real inputs
+         * @param height The height of the synthetic frame
+         */
+        @NonNull
+        public Builder setWarmupSize(int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Invalid warm-up size " + width + "x" + height);
+            }
+            mWarmupWidth = width;
+            mWarmupHeight = height;
+            return this;
+        }
+
+        @NonNull
+        public ModelPreloader build() {
+            return new ModelPreloader(this);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide owner of loaded {@link CaffeClassifier} instances.
+ * <p>
+ * Classifiers are keyed by their type and model, weights, mean and synset files. Callers get a
+ * ref-counted {@link Lease}; the native net is only released once no lease is held for the idle
+ * timeout, or right away when the system reports memory pressure.
+ * <p>
+ * The JNI library keeps one net per classifier class for the whole process, so the registry holds at most
+ * one entry per such class. Leasing another model of the same class unloads the previous one if it is idle,
+ * and fails while it is leased.
+ */
+public final class ModelRegistry implements ComponentCallbacks2 {
+    private static final String TAG = "ModelRegistry";
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+    private static ModelRegistry sInstance;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    // The entry holding each net, by the slot of the net
+    private final Map<String, Entry> mSlots = new HashMap<>();
+    // The entries released outside the lock, until their net is gone
+    private final Map<String, Entry> mUnloading = new HashMap<>();
+    private final ScheduledExecutorService mReaper;
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private static final class Entry {
+        final String key;
+        final String slot;
+        final CaffeClassifier<?> classifier;
+        int refCount;
+        boolean loaded;
+        boolean warmedUp;
+        // Set once the net is gone, under the lock of the entry
+        boolean unloaded;
+        // An entry of the same slot whose net is still being released
+        Entry previous;
+        ScheduledFuture<?> pendingRelease;
+
+        Entry(String key, String slot, CaffeClassifier<?> classifier) {
+            this.key = key;
+            this.slot = slot;
+            this.classifier = classifier;
+        }
+    }
+
+    /**
+     * A reference to a shared classifier. Release it when done; the classifier must not be used afterwards.
+     *
+     * @param <C> The classifier type
+     */
+    public static final class Lease<C extends CaffeClassifier<?>> implements Closeable {
+        private final ModelRegistry mRegistry;
+        private final Entry mEntry;
+        private final C mClassifier;
+        private boolean mReleased;
+
+        private Lease(ModelRegistry registry, Entry entry, C classifier) {
+            mRegistry = registry;
+            mEntry = entry;
+            mClassifier = classifier;
+        }
+
+        /**
+         * @return The loaded classifier
+         */
+        @NonNull
+        public C get() {
+            if (mReleased) {
+                throw new IllegalStateException("Lease already released");
+            }
+            return mClassifier;
+        }
+
+        /**
+         * Give the classifier back to the registry. Calling it more than once has no effect.
+         */
+        public void release() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            mRegistry.release(mEntry);
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    ModelRegistry() {
+        ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.setRemoveOnCancelPolicy(true);
+        mReaper = reaper;
+    }
+
+    /**
+     * @return The registry of this process. It listens to memory pressure of the application.
+     */
+    @NonNull
+    public static synchronized ModelRegistry getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ModelRegistry();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Set how long a classifier stays loaded once its last lease is released.
+     *
+     * @param timeout The idle timeout, 0 to release right away
+     * @param unit    The unit of timeout
+     */
+    public synchronized void setIdleTimeout(long timeout, @NonNull TimeUnit unit) {
+        mIdleTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * Lease a loaded classifier equivalent to the given one. If the registry already holds one with the
+     * same type and files, the given classifier is not used; otherwise it is initialized and kept.
+     * Loading happens on the calling thread.
+     *
+     * @throws IllegalStateException if the classifier uses the JNI library and another model of its class
+     *                               is leased
+     *
+     * @param classifier A classifier, usually fresh from {@link VisionClassifierCreator}
+     * @param imgWidth   The width passed to {@link CaffeClassifier#init(int, int)}
+     * @param imgHeight  The height passed to {@link CaffeClassifier#init(int, int)}
+     * @return A lease on the loaded classifier
+     */
+    @NonNull
+    public <C extends CaffeClassifier<?>> Lease<C> acquire(@NonNull C classifier, int imgWidth, int imgHeight) {
+        return acquire(classifier, imgWidth, imgHeight, null, 0);
+    }
+
+    /**
+     * Lease a loaded classifier, and run it on a frame a few times if it has not been warmed up since it
+     * was loaded. Other leases of the classifier wait for the warm-up, so it never runs on two threads.
+     *
+     * @param warmupFrame The frame to classify, or null to skip the warm-up
+     * @param warmupRuns  The number of times to classify it
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    <C extends CaffeClassifier<?>> Lease<C> acquire(@NonNull C classifier, int imgWidth, int imgHeight,
+                                                    @Nullable Bitmap warmupFrame, int warmupRuns) {
+        String key = classifier.getModelKey();
+        Entry entry;
+        Entry evicted = null;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                String slot = slotOf(classifier, key);
+                Entry holder = mSlots.get(slot);
+                if (holder != null) {
+                    if (holder.refCount > 0) {
+                        throw new IllegalStateException("Cannot load " + key + " while " + holder.key
+                                + " is leased: the native library holds one net per process");
+                    }
+                    detach(holder);
+                    evicted = holder;
+                }
+                entry = new Entry(key, slot, classifier);
+                entry.previous = mUnloading.get(slot);
+                mEntries.put(key, entry);
+                mSlots.put(slot, entry);
+            }
+            entry.refCount++;
+            if (entry.pendingRelease != null) {
+                entry.pendingRelease.cancel(false);
+                entry.pendingRelease = null;
+            }
+        }
+        if (evicted != null) {
+            deInit(evicted);
+        }
+
+        try {
+            synchronized (entry) {
+                if (!entry.loaded) {
+                    if (entry.previous != null) {
+                        awaitUnloaded(entry.previous);
+                        entry.previous = null;
+                    }
+                    Log.d(TAG, "Load " + key);
+                    entry.classifier.init(imgWidth, imgHeight);
+                    entry.loaded = true;
+                }
+                if (warmupFrame != null && warmupRuns > 0 && !entry.warmedUp) {
+                    warmUp(entry, warmupFrame, warmupRuns);
+                    entry.warmedUp = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            release(entry);
+            throw e;
+        }
+        // The key contains the class name, so the entry holds the same type
+        return new Lease<>(this, entry, (C) entry.classifier);
+    }
+
+    private static void warmUp(Entry entry, Bitmap frame, int runs) {
+        CaffeClassifier<?> classifier = entry.classifier;
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i != runs; i++) {
+            classifier.classify(frame);
+        }
+        Log.d(TAG, "Warmed up " + entry.key + " in " + (System.currentTimeMillis() - startTime) + " ms");
+        // Keep the cold runs out of the latencies callers see
+        ClassifierMetrics metrics = classifier.getMetrics();
+        for (ClassifierMetrics.Stage stage : ClassifierMetrics.Stage.values()) {
+            if (stage != ClassifierMetrics.Stage.MODEL_LOAD) {
+                metrics.reset(stage);
+            }
+        }
+    }
+
+    private void release(final Entry entry) {
+        synchronized (this) {
+            entry.refCount--;
+            if (entry.refCount > 0) {
+                return;
+            }
+            if (mIdleTimeoutMs > 0) {
+                entry.pendingRelease = mReaper.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        unload(entry);
+                    }
+                }, mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        unload(entry);
+    }
+
+    /**
+     * @return The net an entry holds: the classifier class for the JNI library, which keeps one net per
+     * class, or the model key otherwise
+     */
+    private static String slotOf(CaffeClassifier<?> classifier, String key) {
+        return classifier.isBackendProcessWide() ? classifier.getBackend().getClass().getName() : key;
+    }
+
+    /**
+     * Release the native net of an entry if it is still unused.
+     */
+    private void unload(Entry entry) {
+        synchronized (this) {
+            if (entry.refCount > 0 || mEntries.get(entry.key) != entry) {
+                return;
+            }
+            detach(entry);
+        }
+        deInit(entry);
+    }
+
+    /**
+     * Remove an entry from the registry, to be released with {@link #deInit(Entry)} outside the lock. Until
+     * then, an entry created for the same slot waits for the net to be gone before loading its own.
+     */
+    private void detach(Entry entry) {
+        mEntries.remove(entry.key);
+        mSlots.remove(entry.slot);
+        mUnloading.put(entry.slot, entry);
+        if (entry.pendingRelease != null) {
+            entry.pendingRelease.cancel(false);
+            entry.pendingRelease = null;
+        }
+    }
+
+    private void deInit(Entry entry) {
+        synchronized (entry) {
+            if (entry.loaded) {
+                Log.d(TAG, "Release " + entry.key);
+                entry.classifier.deInit();
+                entry.loaded = false;
+                entry.warmedUp = false;
+            }
+            entry.unloaded = true;
+            entry.notifyAll();
+        }
+        synchronized (this) {
+            if (mUnloading.get(entry.slot) == entry) {
+                mUnloading.remove(entry.slot);
+            }
+        }
+    }
+
+    private static void awaitUnloaded(Entry entry) {
+        boolean interrupted = false;
+        synchronized (entry) {
+            while (!entry.unloaded) {
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                    // Loading over a net being released would corrupt it, so keep waiting
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Release every classifier that has no lease right now, without waiting for the idle timeout.
+     */
+    public void releaseIdle() {
+        List<Entry> idle = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : mEntries.values()) {
+                if (entry.refCount == 0) {
+                    idle.add(entry);
+                }
+            }
+            for (Entry entry : idle) {
+                detach(entry);
+            }
+        }
+        for (Entry entry : idle) {
+            deInit(entry);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            releaseIdle();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        releaseIdle();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -19,12 +19,13 @@ package com.tzutalin.vision.visionrecognition;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,7 +34,22 @@ import java.util.List;
  */
 public class ObjectDetector extends CaffeClassifier <List<VisionDetRet>>{
     private static final String TAG = "ObjectDetector";
-    private ByteBuffer _handler;
+    // Fast R-CNN rescales its input to a 600 pixel short side
+    private static final int DEFAULT_INPUT_SCALE = 600;
+    // Each thread detects into its own batch and converts frames with its own converter
+    private final ThreadLocal<DetectionBatch> mBatches = new ThreadLocal<DetectionBatch>() {
+        @Override
+        protected DetectionBatch initialValue() {
+            return new DetectionBatch();
+        }
+    };
+    private final ThreadLocal<YuvConverter> mYuvConverters = new ThreadLocal<YuvConverter>() {
+        @Override
+        protected YuvConverter initialValue() {
+            return new YuvConverter();
+        }
+    };
+    private int mInputScale = DEFAULT_INPUT_SCALE;
 
     /**
      * Creates a ObjectDetector, configured with its model path, trained weights, etc.
@@ -51,103 +67,391 @@ public class ObjectDetector extends CaffeClassifier <List<VisionDetRet>>{
                 !new File(mSynsetPath).exists() ) {
             throw new IllegalAccessException("ObjectDetector cannot find model");
         }
+        setBackend(new NativeBackend(), true);
     }
 
+    /**
+     * Creates a ObjectDetector running on the given backend instead of the Caffe JNI library.
+     * @param context Context
+     * @param modelPath Caffe's model
+     * @param wieghtsPath Caffe's trained wieght
+     * @param manefile The file path of the image image
+     * @param synsetFile The file path to load label's titles
+     * @param backend The backend running the network
+     */
+    public ObjectDetector(Context context, String modelPath, String wieghtsPath, String manefile, String synsetFile,
+                          @NonNull InferenceBackend backend) {
+        super(context, modelPath, wieghtsPath, manefile, synsetFile);
+        setBackend(backend);
+    }
+
+    /**
+     * Init the detector. A non-zero image size sets the input scale to its short side.
+     *
+     * @param imgWidth  The width of the image, or 0 for an input scale of {@value #DEFAULT_INPUT_SCALE}
+     * @param imgHeight The height of the image, or 0 for an input scale of {@value #DEFAULT_INPUT_SCALE}
+     */
     @Override
     public void init(int imgWidth, int imgHeight) {
         super.init(imgWidth, imgHeight);
-        jniLoadModel(mModelPath, mWeightsPath, mMeanPath, mSynsetPath);
+        mInputScale = imgWidth > 0 && imgHeight > 0 ? Math.min(imgWidth, imgHeight) : DEFAULT_INPUT_SCALE;
     }
 
-    @Override
-    public void deInit() {
-        super.deInit();
-        jniRelease();
+    /**
+     * @return The short side YUV frames are scaled down to before detection, unless the options of the
+     *         call give another one with {@link ClassifyOptions.Builder#setInputScale(int)}
+     */
+    public int getInputScale() {
+        return mInputScale;
     }
 
-    @Override
-    public void setSelectedLabel(String label) {
-        super.setSelectedLabel(label);
-        jniSetSelectedLabel(label);
+    /**
+     * @return true if a smaller input scale makes the forward pass faster. The net of the Caffe JNI library
+     *         rescales its input to {@value #DEFAULT_INPUT_SCALE} pixels, so a smaller scale only loses
+     *         small objects there.
+     */
+    public boolean isInputScaleAdaptive() {
+        return !(getBackend() instanceof NativeBackend);
     }
 
-    @Override
-    public void clearSelectedLabel() {
-        super.clearSelectedLabel();
-        jniSetSelectedLabel("");
+    /**
+     * Set the thresholds and non-maximum suppression applied to the raw detections before they are returned
+     * by the calls made without options. A detector leased from the {@link ModelRegistry} is shared, so
+     * pass the post-processor in the {@link ClassifyOptions} of each call instead.
+     * @param postProcessor The post-processor, or null to return the detections of the network as they are
+     */
+    public synchronized void setPostProcessor(DetectionPostProcessor postProcessor) {
+        setOptions(getOptions().buildUpon().setPostProcessor(postProcessor).build());
     }
 
     /**
      * Detect and locate objects according to the given image path
      * @param imgPath image path
+     * @param options The selected label and post-processor of this call
      * @return The list of the result {@link VisionDetRet} which objected are detected
      * @throws IllegalArgumentException if the Bitmap dimensions don't match
      *               the dimensions defined at initialization or the given array
      *               is not sized equal to the width and hegiht defined at initialization
      */
     @Override
-    public List<VisionDetRet> classifyByPath(String imgPath) {
-        List<VisionDetRet> ret = new ArrayList<>();
-
-        if (TextUtils.isEmpty(imgPath) || !new File(imgPath).exists()) {
-            Log.e(TAG, "classifyByPath. Invalid Input path");
-            return ret;
+    public List<VisionDetRet> classifyByPath(String imgPath, @NonNull ClassifyOptions options) {
+        ResultCache cache = getResultCache();
+        String cacheKey = cache != null && !TextUtils.isEmpty(imgPath) ? cache.keyOf(this, imgPath, options) : null;
+        if (cacheKey != null) {
+            List<VisionDetRet> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
         }
 
-        int numObjs = jniClassifyImgByPath(imgPath);
-        for (int i = 0; i != numObjs; i++) {
-            VisionDetRet det = new VisionDetRet();
-            int success = jniGetDetRet(det, i);
-            if (success >= 0)
-                ret.add(det);
-
+        List<VisionDetRet> ret = toList(detectByPath(imgPath, options));
+        if (cacheKey != null) {
+            cache.put(cacheKey, ret);
         }
         return ret;
     }
 
+    /**
+     * Detect and locate objects according to the given image path, without creating an object per detection
+     * @param imgPath image path
+     * @return The detections, owned by the calling thread and overwritten by its next call
+     */
+    public DetectionBatch classifyPackedByPath(String imgPath) {
+        return classifyPackedByPath(imgPath, getOptions());
+    }
+
+    /**
+     * Detect and locate objects according to the given image path, without creating an object per detection
+     * @param imgPath image path
+     * @param options The selected label and post-processor of this call
+     * @return The detections, owned by the calling thread and overwritten by its next call
+     */
+    public DetectionBatch classifyPackedByPath(String imgPath, @NonNull ClassifyOptions options) {
+        DetectionBatch batch = detectByPath(imgPath, options);
+        mMetrics.completeCall();
+        return batch;
+    }
+
     /**
      * Detect and locate objects according to the given bitmap
      * @param bitmap bitmap object {@link android.graphics.Bitmap} graphic object.
+     * @param options The selected label and post-processor of this call
      * @return The list of the result {@link VisionDetRet} which objected are detected
      * @throws IllegalArgumentException if the Bitmap dimensions don't match
      *               the dimensions defined at initialization or the given array
      *               is not sized equal to the width and hegiht defined at initialization
      */
     @Override
-    public List<VisionDetRet> classify(Bitmap bitmap) {
-        List<VisionDetRet> ret = new ArrayList<>();
+    public List<VisionDetRet> classify(Bitmap bitmap, @NonNull ClassifyOptions options) {
+        return toList(detect(bitmap, options));
+    }
+
+    /**
+     * Detect and locate objects according to the given bitmap, without creating an object per detection
+     * @param bitmap bitmap object {@link android.graphics.Bitmap} graphic object.
+     * @return The detections, owned by the calling thread and overwritten by its next call
+     */
+    public DetectionBatch classifyPacked(Bitmap bitmap) {
+        return classifyPacked(bitmap, getOptions());
+    }
+
+    /**
+     * Detect and locate objects according to the given bitmap, without creating an object per detection
+     * @param bitmap bitmap object {@link android.graphics.Bitmap} graphic object.
+     * @param options The selected label and post-processor of this call
+     * @return The detections, owned by the calling thread and overwritten by its next call
+     */
+    public DetectionBatch classifyPacked(Bitmap bitmap, @NonNull ClassifyOptions options) {
+        DetectionBatch batch = detect(bitmap, options);
+        mMetrics.completeCall();
+        return batch;
+    }
+
+    /**
+     * Detect and locate objects according to the given YUV frame
+     * @param frame The planes of the frame
+     * @param crop The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     * @param options The selected label and post-processor of this call
+     * @return The list of the result {@link VisionDetRet} which objected are detected, in the coordinates
+     *         of the rotated crop
+     */
+    @Override
+    public List<VisionDetRet> classify(YuvFrame frame, Rect crop, int rotationDegrees,
+                                       @NonNull ClassifyOptions options) {
+        return toList(detect(frame, crop, rotationDegrees, options));
+    }
+
+    /**
+     * Detect and locate objects according to the given YUV frame, without creating an object per detection.
+     * The rotated crop is scaled down so that its short side is at most the input scale, and the boxes
+     * are mapped back to the coordinates of the rotated crop.
+     * @param frame The planes of the frame
+     * @param crop The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     * @return The detections, owned by the calling thread and overwritten by its next call
+     */
+    public DetectionBatch classifyPacked(YuvFrame frame, Rect crop, int rotationDegrees) {
+        return classifyPacked(frame, crop, rotationDegrees, getOptions());
+    }
+
+    /**
+     * Detect and locate objects according to the given YUV frame, without creating an object per detection.
+     * The rotated crop is scaled down so that its short side is at most the input scale, and the boxes
+     * are mapped back to the coordinates of the rotated crop.
+     * @param frame The planes of the frame
+     * @param crop The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     * @param options The selected label and post-processor of this call
+     * @return The detections, owned by the calling thread and overwritten by its next call
+     */
+    public DetectionBatch classifyPacked(YuvFrame frame, Rect crop, int rotationDegrees,
+                                         @NonNull ClassifyOptions options) {
+        DetectionBatch batch = detect(frame, crop, rotationDegrees, options);
+        mMetrics.completeCall();
+        return batch;
+    }
+
+    /**
+     * @return 0, so that batches give the detector images at full size and the boxes are in the
+     *         coordinates of the images
+     */
+    @Override
+    int getInputMinSide() {
+        return 0;
+    }
+
+    @Override
+    boolean isBackendProcessWide() {
+        return getBackend() instanceof NativeBackend;
+    }
+
+    private DetectionBatch detectByPath(String imgPath, ClassifyOptions options) {
+        DetectionBatch batch = mBatches.get();
+        batch.clear();
+        batch.setLabels(mLabels);
+
+        if (TextUtils.isEmpty(imgPath) || !new File(imgPath).exists()) {
+            Log.e(TAG, "classifyByPath. Invalid Input path");
+            return batch;
+        }
+
+        synchronized (getForwardLock()) {
+            readDetections(batch, runBackendByPath(imgPath, options));
+        }
+        postProcess(batch, options);
+        return batch;
+    }
+
+    private DetectionBatch detect(Bitmap bitmap, ClassifyOptions options) {
+        return detect(bitmap, options, 1f);
+    }
+
+    /**
+     * @param boxScale The factor mapping the boxes on the bitmap to the coordinates to return
+     */
+    private DetectionBatch detect(Bitmap bitmap, ClassifyOptions options, float boxScale) {
+        DetectionBatch batch = mBatches.get();
+        batch.clear();
+        batch.setLabels(mLabels);
 
         // Check input
         if (bitmap == null) {
             Log.e(TAG, "classify. Invalid Input bitmap");
-            return ret;
+            return batch;
         }
 
-        storeBitmap(bitmap);
+        synchronized (getForwardLock()) {
+            readDetections(batch, runBackend(bitmap, options));
+        }
+        if (boxScale != 1f) {
+            batch.transform(boxScale, 0f, 0f);
+        }
+        postProcess(batch, options);
+        return batch;
+    }
 
-        int numObjs = jniClassifyBitmap(_handler);
-        for (int i = 0; i != numObjs; i++) {
-            VisionDetRet det = new VisionDetRet();
-            int success = jniGetDetRet(det, i);
-            if (success >= 0)
-                ret.add(det);
+    private DetectionBatch detect(YuvFrame frame, Rect crop, int rotationDegrees, ClassifyOptions options) {
+        if (frame == null) {
+            DetectionBatch batch = mBatches.get();
+            batch.clear();
+            Log.e(TAG, "classify. Invalid Input frame");
+            return batch;
         }
+        int width = crop != null ? crop.width() : frame.getWidth();
+        int height = crop != null ? crop.height() : frame.getHeight();
+        if (rotationDegrees % 180 != 0) {
+            int temp = width;
+            width = height;
+            height = temp;
+        }
+        int inputScale = options.getInputScale() > 0 ? options.getInputScale() : mInputScale;
+        float scale = Math.min(1f, (float) inputScale / Math.min(width, height));
+        int dstWidth = Math.max(1, Math.round(width * scale));
+        int dstHeight = Math.max(1, Math.round(height * scale));
+        long start = System.nanoTime();
+        Bitmap bitmap = mYuvConverters.get().convert(frame, crop, rotationDegrees, dstWidth, dstHeight);
+        mMetrics.add(ClassifierMetrics.Stage.STAGING, System.nanoTime() - start);
+        // Map the boxes back to the rotated crop, so that they do not depend on the input scale
+        return detect(bitmap, options, (float) width / dstWidth);
+    }
 
-        freeBitmap();
+    private List<VisionDetRet> toList(DetectionBatch batch) {
+        long start = System.nanoTime();
+        List<VisionDetRet> ret = batch.toList();
+        mMetrics.add(ClassifierMetrics.Stage.MARSHALLING, System.nanoTime() - start);
+        mMetrics.completeCall();
         return ret;
     }
 
-    private void storeBitmap(final Bitmap bitmap) {
-        if (_handler != null)
-            freeBitmap();
-        _handler = jniStoreBitmapData(bitmap);
+    /**
+     * Copy the detections of the last forward pass into the batch. Call it with the forward lock held, so
+     * that no other forward pass replaces them first.
+     */
+    private void readDetections(DetectionBatch batch, int numObjs) {
+        if (numObjs <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        getBackend().getDetections(batch, numObjs);
+        mMetrics.add(ClassifierMetrics.Stage.MARSHALLING, System.nanoTime() - start);
     }
 
-    private void freeBitmap() {
-        if (_handler == null)
+    private void postProcess(DetectionBatch batch, ClassifyOptions options) {
+        DetectionPostProcessor postProcessor = options.getPostProcessor();
+        if (postProcessor == null || batch.size() == 0) {
             return;
-        jniFreeBitmapData(_handler);
-        _handler = null;
+        }
+        long start = System.nanoTime();
+        // The post-processor keeps scratch arrays, so the requests sharing it take turns
+        synchronized (postProcessor) {
+            postProcessor.process(batch);
+        }
+        mMetrics.add(ClassifierMetrics.Stage.POST_PROCESSING, System.nanoTime() - start);
+    }
+
+    /**
+     * @param label A label of the synset file
+     * @return The class id of the label, as used by {@link DetectionBatch} and {@link DetectionPostProcessor},
+     *         or -1 if the label is unknown
+     */
+    public int getClassId(String label) {
+        return mLabels != null ? mLabels.indexOf(label) : -1;
+    }
+
+    /**
+     * Runs the network through the Caffe JNI library.
+     */
+    private final class NativeBackend implements InferenceBackend {
+        private final VisionDetRet mScratchRet = new VisionDetRet();
+
+        NativeBackend() {
+            loadNativeLibrary();
+        }
+
+        @Override
+        public void load(String modelPath, String weightsPath, String meanPath, String synsetPath) {
+            jniLoadModel(modelPath, weightsPath, meanPath, synsetPath);
+        }
+
+        @Override
+        public void release() {
+            jniRelease();
+        }
+
+        @Override
+        public void setSelectedLabel(String label) {
+            jniSetSelectedLabel(label != null ? label : "");
+        }
+
+        @Override
+        public int run(@NonNull Bitmap bitmap) {
+            long start = System.nanoTime();
+            // The handle belongs to this call, so a failing call cannot leave it to the next one
+            ByteBuffer handler = jniStoreBitmapData(bitmap);
+            long staged = System.nanoTime();
+            mMetrics.add(ClassifierMetrics.Stage.STAGING, staged - start);
+            int numObjs;
+            try {
+                numObjs = jniClassifyBitmap(handler);
+            } finally {
+                jniFreeBitmapData(handler);
+            }
+            mMetrics.add(ClassifierMetrics.Stage.FORWARD, System.nanoTime() - staged);
+            return numObjs;
+        }
+
+        @Override
+        public int runPath(@NonNull String imgPath) {
+            long start = System.nanoTime();
+            int numObjs = jniClassifyImgByPath(imgPath);
+            mMetrics.add(ClassifierMetrics.Stage.FORWARD, System.nanoTime() - start);
+            return numObjs;
+        }
+
+        @Override
+        public float[] getScores() {
+            return null;
+        }
+
+        /**
+         * The JNI library hands out one detection per call, so they are read into a reused scratch object
+         * and packed into the batch without allocating.
+         */
+        @Override
+        public void getDetections(@NonNull DetectionBatch batch, int count) {
+            batch.ensureCapacity(count);
+            int size = 0;
+            for (int i = 0; i != count; i++) {
+                if (jniGetDetRet(mScratchRet, i) >= 0) {
+                    // Keep the native label even when it is not in the synset file
+                    batch.set(size++, batch.classIdOf(mScratchRet.getLabel()), mScratchRet.getConfidence(),
+                            mScratchRet.getLeft(), mScratchRet.getTop(),
+                            mScratchRet.getRight(), mScratchRet.getBottom());
+                }
+            }
+            batch.setSize(size);
+        }
     }
 
     protected native int jniLoadModel(String modelPath, String weightsPath, String meanfilePath, String sysetPath);
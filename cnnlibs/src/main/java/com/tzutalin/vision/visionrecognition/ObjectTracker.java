@@ -0,0 +1,609 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Follows detected objects from frame to frame so the detector does not have to run on every frame.
+ * <p>
+ * Each object is a track with a stable id. Its box center and size are smoothed by a constant-velocity
+ * Kalman filter: {@link #predict()} moves every track one frame ahead on each camera frame, and
+ * {@link #update(List, long)} associates new detections with the tracks by IoU. A track's
+ * confidence decays on every predicted frame, and {@link #shouldDetect()} asks for a new detection
+ * every few frames or as soon as a track becomes uncertain.
+ * <p>
+ * Detections usually arrive a few frames after the frame they were made on. Each track keeps its
+ * estimates of the last frames, so the detections are associated with and correct the estimates of
+ * their own frame, which are then predicted forward again to the newest frame.
+ * <p>
+ * A tracker is not thread-safe.
+ */
+public final class ObjectTracker {
+    private final float mIouThreshold;
+    private int mDetectionInterval;
+    private final float mConfidenceDecay;
+    private final float mRedetectConfidence;
+    private final int mMaxMisses;
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+    private final int mMaxLag;
+
+    private final List<TrackState> mTracks = new ArrayList<>();
+    private long mFrame;
+    private int mNextId;
+    private int mFramesSinceDetection;
+    private boolean mDetected;
+
+    /**
+     * A snapshot of a track. The box is the filtered estimate for the frame it was returned for.
+     */
+    public static final class Track {
+        private final int mId;
+        private final String mLabel;
+        private final float mConfidence;
+        private final float mLeft;
+        private final float mTop;
+        private final float mRight;
+        private final float mBottom;
+        private final int mAge;
+        private final boolean mDetected;
+
+        Track(TrackState state, int age, boolean detected) {
+            mId = state.mId;
+            mLabel = state.mLabel;
+            mConfidence = state.mConfidence;
+            float halfWidth = state.mX[2] / 2;
+            float halfHeight = state.mX[3] / 2;
+            mLeft = state.mX[0] - halfWidth;
+            mTop = state.mX[1] - halfHeight;
+            mRight = state.mX[0] + halfWidth;
+            mBottom = state.mX[1] + halfHeight;
+            mAge = age;
+            mDetected = detected;
+        }
+
+        /**
+         * @return The id of the track, which stays the same while the object is followed
+         */
+        public int getId() {
+            return mId;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        /**
+         * @return The confidence of the last matching detection, decayed for every predicted frame since
+         */
+        public float getConfidence() {
+            return mConfidence;
+        }
+
+        public float getLeft() {
+            return mLeft;
+        }
+
+        public float getTop() {
+            return mTop;
+        }
+
+        public float getRight() {
+            return mRight;
+        }
+
+        public float getBottom() {
+            return mBottom;
+        }
+
+        /**
+         * @return The number of frames since the track was created
+         */
+        public int getAge() {
+            return mAge;
+        }
+
+        /**
+         * @return true if a detection matched the track on this frame, false if the box is predicted
+         */
+        public boolean isDetected() {
+            return mDetected;
+        }
+
+        @NonNull
+        public VisionDetRet toDetRet() {
+            return new VisionDetRet(mLabel, mConfidence, Math.round(mLeft), Math.round(mTop),
+                    Math.round(mRight), Math.round(mBottom));
+        }
+    }
+
+    /**
+     * Builds an {@link ObjectTracker}.
+     */
+    public static final class Builder {
+        private float mIouThreshold = 0.3f;
+        private int mDetectionInterval = 5;
+        private float mConfidenceDecay = 0.95f;
+        private float mRedetectConfidence = 0.4f;
+        private int mMaxMisses = 2;
+        private float mProcessNoise = 1f;
+        private float mMeasurementNoise = 10f;
+        private int mMaxLag = 30;
+
+        /**
+         * @param iouThreshold The minimum IoU between a detection and a predicted track to match them.
+         *                     The default is 0.3.
+         */
+        public Builder setIouThreshold(float iouThreshold) {
+            mIouThreshold = iouThreshold;
+            return this;
+        }
+
+        /**
+         * @param frames Run the detector at least every this many frames. The default is 5.
+         */
+        public Builder setDetectionInterval(int frames) {
+            if (frames <= 0) {
+                throw new IllegalArgumentException("frames should be positive");
+            }
+            mDetectionInterval = frames;
+            return this;
+        }
+
+        /**
+         * @param decay      The factor applied to the confidence of a track on each predicted frame.
+         *                   The default is 0.95.
+         * @param redetectAt Run the detector early once a track's confidence falls below this.
+         *                   The default is 0.4.
+         */
+        public Builder setConfidenceDecay(float decay, float redetectAt) {
+            if (decay <= 0 || decay > 1) {
+                throw new IllegalArgumentException("decay should be in (0, 1]");
+            }
+            mConfidenceDecay = decay;
+            mRedetectConfidence = redetectAt;
+            return this;
+        }
+
+        /**
+         * @param maxMisses The number of consecutive detections a track may miss before it is dropped.
+         *                  The default is 2.
+         */
+        public Builder setMaxMisses(int maxMisses) {
+            if (maxMisses < 0) {
+                throw new IllegalArgumentException("maxMisses should not be negative");
+            }
+            mMaxMisses = maxMisses;
+            return this;
+        }
+
+        /**
+         * @param processNoise     The variance, in pixels, of the velocity change between two frames
+         * @param measurementNoise The variance, in pixels, of the detector's box coordinates
+         */
+        public Builder setNoise(float processNoise, float measurementNoise) {
+            if (processNoise <= 0 || measurementNoise <= 0) {
+                throw new IllegalArgumentException("Noise should be positive");
+            }
+            mProcessNoise = processNoise;
+            mMeasurementNoise = measurementNoise;
+            return this;
+        }
+
+        /**
+         * @param frames The largest number of frames between a frame and its detections that the
+         *               detections can still correct the estimates of their frame. Older detections
+         *               correct the newest estimates. The default is 30.
+         */
+        public Builder setMaxLag(int frames) {
+            if (frames < 0) {
+                throw new IllegalArgumentException("frames should not be negative");
+            }
+            mMaxLag = frames;
+            return this;
+        }
+
+        public ObjectTracker build() {
+            return new ObjectTracker(this);
+        }
+    }
+
+    private ObjectTracker(Builder builder) {
+        mIouThreshold = builder.mIouThreshold;
+        mDetectionInterval = builder.mDetectionInterval;
+        mConfidenceDecay = builder.mConfidenceDecay;
+        mRedetectConfidence = builder.mRedetectConfidence;
+        mMaxMisses = builder.mMaxMisses;
+        mProcessNoise = builder.mProcessNoise;
+        mMeasurementNoise = builder.mMeasurementNoise;
+        mMaxLag = builder.mMaxLag;
+    }
+
+    /**
+     * Change how often the detector runs, such as to space out the detections of a slow detector.
+     * @param frames Run the detector at least every this many frames
+     */
+    public void setDetectionInterval(int frames) {
+        if (frames <= 0) {
+            throw new IllegalArgumentException("frames should be positive");
+        }
+        mDetectionInterval = frames;
+    }
+
+    public int getDetectionInterval() {
+        return mDetectionInterval;
+    }
+
+    /**
+     * @return true if the detector should run on the next frame
+     */
+    public boolean shouldDetect() {
+        if (!mDetected || mFramesSinceDetection >= mDetectionInterval) {
+            return true;
+        }
+        for (TrackState track : mTracks) {
+            if (track.mConfidence < mRedetectConfidence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move every track one frame ahead, to a new camera frame.
+     *
+     * @return The predicted tracks
+     */
+    @NonNull
+    public List<Track> predict() {
+        mFramesSinceDetection++;
+        advance();
+        List<Track> tracks = new ArrayList<>(mTracks.size());
+        for (TrackState track : mTracks) {
+            track.mConfidence *= mConfidenceDecay;
+            tracks.add(new Track(track, ageOf(track), false));
+        }
+        return tracks;
+    }
+
+    /**
+     * @return The index of the newest frame, to give to {@link #update(List, long)} with the detections of
+     *         that frame
+     */
+    public long getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * Move every track one frame ahead and correct it with the detections of that frame.
+     *
+     * @param detections The detections of the frame
+     * @return The tracks, matched ones first
+     * @see #update(List, long)
+     */
+    @NonNull
+    public List<Track> update(@NonNull List<VisionDetRet> detections) {
+        advance();
+        return update(detections, mFrame);
+    }
+
+    /**
+     * Correct the tracks with the detections of an earlier frame. Detections are matched greedily to tracks
+     * of the same label, best IoU first, against the estimates of their frame. The matched tracks are
+     * corrected on that frame and predicted forward again to the newest frame. Unmatched detections start
+     * new tracks, and tracks unmatched for too many detections are dropped.
+     *
+     * @param detections The detections of the frame
+     * @param frame      The index of the frame, as returned by {@link #getFrame()} once it was predicted
+     * @return The tracks on the newest frame, matched ones first
+     */
+    @NonNull
+    public List<Track> update(@NonNull List<VisionDetRet> detections, long frame) {
+        if (frame < 0 || frame > mFrame) {
+            throw new IllegalArgumentException("Frame " + frame + " is not in [0, " + mFrame + "]");
+        }
+        mFramesSinceDetection = 0;
+        mDetected = true;
+        // Too old for the history of the tracks, correct the newest estimates instead
+        long correctedFrame = mFrame - frame <= mMaxLag ? frame : mFrame;
+
+        int trackCount = mTracks.size();
+        int detectionCount = detections.size();
+        // Candidate pairs as (iou bits, track, detection), sorted by IoU
+        long[] pairs = new long[trackCount * detectionCount];
+        int pairCount = 0;
+        for (int t = 0; t != trackCount; t++) {
+            TrackState track = mTracks.get(t);
+            float[] estimate = track.estimateAt(correctedFrame);
+            for (int d = 0; d != detectionCount; d++) {
+                VisionDetRet det = detections.get(d);
+                if (!sameLabel(track.mLabel, det.getLabel())) {
+                    continue;
+                }
+                float iou = iou(estimate, det.getLeft(), det.getTop(), det.getRight(), det.getBottom());
+                if (iou >= mIouThreshold && iou > 0) {
+                    pairs[pairCount++] = ((long) Float.floatToIntBits(iou) << 32) | ((long) t << 16) | d;
+                }
+            }
+        }
+        Arrays.sort(pairs, 0, pairCount);
+
+        boolean[] trackMatched = new boolean[trackCount];
+        boolean[] detectionMatched = new boolean[detectionCount];
+        List<Track> tracks = new ArrayList<>(trackCount + detectionCount);
+        for (int i = pairCount - 1; i >= 0; i--) {
+            int t = (int) (pairs[i] >>> 16) & 0xffff;
+            int d = (int) pairs[i] & 0xffff;
+            if (trackMatched[t] || detectionMatched[d]) {
+                continue;
+            }
+            trackMatched[t] = true;
+            detectionMatched[d] = true;
+            TrackState track = mTracks.get(t);
+            VisionDetRet det = detections.get(d);
+            long from = correctedFrame;
+            if (!track.rewind(from)) {
+                // The track started after the frame, correct its newest estimate
+                from = mFrame;
+                track.rewind(from);
+            }
+            track.correct(det, mMeasurementNoise);
+            track.save(from);
+            repredict(track, from);
+            tracks.add(new Track(track, ageOf(track), true));
+        }
+
+        Iterator<TrackState> it = mTracks.iterator();
+        for (int t = 0; it.hasNext(); t++) {
+            TrackState track = it.next();
+            if (trackMatched[t]) {
+                continue;
+            }
+            track.mMisses++;
+            track.mConfidence *= mConfidenceDecay;
+            if (track.mMisses > mMaxMisses) {
+                it.remove();
+            } else {
+                tracks.add(new Track(track, ageOf(track), false));
+            }
+        }
+
+        for (int d = 0; d != detectionCount; d++) {
+            if (!detectionMatched[d]) {
+                TrackState track = new TrackState(mNextId++, detections.get(d), mMeasurementNoise,
+                        correctedFrame, mMaxLag + 1);
+                track.save(correctedFrame);
+                repredict(track, correctedFrame);
+                mTracks.add(track);
+                tracks.add(new Track(track, ageOf(track), true));
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Move the tracks one frame ahead, without decaying their confidence.
+     */
+    private void advance() {
+        mFrame++;
+        for (TrackState track : mTracks) {
+            track.predict(mProcessNoise);
+            track.save(mFrame);
+        }
+    }
+
+    /**
+     * Predict a track corrected on an earlier frame forward to the newest frame, decaying its confidence
+     * for each predicted frame.
+     */
+    private void repredict(TrackState track, long from) {
+        for (long frame = from + 1; frame <= mFrame; frame++) {
+            track.predict(mProcessNoise);
+            track.mConfidence *= mConfidenceDecay;
+            track.save(frame);
+        }
+    }
+
+    private int ageOf(TrackState track) {
+        return (int) (mFrame - track.mFirstFrame);
+    }
+
+    /**
+     * Drop every track, for instance when the camera or the scene changes.
+     */
+    public void reset() {
+        mTracks.clear();
+        mDetected = false;
+        mFramesSinceDetection = 0;
+    }
+
+    /**
+     * @return The number of tracks currently followed
+     */
+    public int getTrackCount() {
+        return mTracks.size();
+    }
+
+    private static boolean sameLabel(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static float iou(float[] x, float left, float top, float right, float bottom) {
+        float halfWidth = x[2] / 2;
+        float halfHeight = x[3] / 2;
+        float interWidth = Math.min(x[0] + halfWidth, right) - Math.max(x[0] - halfWidth, left);
+        float interHeight = Math.min(x[1] + halfHeight, bottom) - Math.max(x[1] - halfHeight, top);
+        if (interWidth <= 0 || interHeight <= 0) {
+            return 0;
+        }
+        float inter = interWidth * interHeight;
+        float union = x[2] * x[3] + (right - left) * (bottom - top) - inter;
+        return union > 0 ? inter / union : 0;
+    }
+
+    /**
+     * The filter state of a track: center x, center y, width and height, each with its velocity and a
+     * 2x2 covariance. The coordinates are filtered independently. The states of the last frames are kept
+     * in a ring, to correct the track on an earlier frame.
+     */
+    private static final class TrackState {
+        // x, v, p00, p01 and p11 of the four coordinates
+        private static final int STATE_SIZE = 20;
+
+        final int mId;
+        final String mLabel;
+        final long mFirstFrame;
+        float mConfidence;
+        int mMisses;
+        final float[] mX = new float[4];
+        final float[] mV = new float[4];
+        final float[] mP00 = new float[4];
+        final float[] mP01 = new float[4];
+        final float[] mP11 = new float[4];
+        private final long[] mHistoryFrames;
+        private final float[] mHistory;
+        private int mHistoryStart;
+        private int mHistorySize;
+
+        TrackState(int id, VisionDetRet det, float measurementNoise, long frame, int historySize) {
+            mId = id;
+            mFirstFrame = frame;
+            mHistoryFrames = new long[historySize];
+            mHistory = new float[historySize * STATE_SIZE];
+            mLabel = det.getLabel();
+            mConfidence = det.getConfidence();
+            measure(det, mX);
+            for (int i = 0; i != 4; i++) {
+                mP00[i] = measurementNoise;
+                // The velocity is unknown until the second detection
+                mP11[i] = measurementNoise * 10;
+            }
+        }
+
+        private static void measure(VisionDetRet det, float[] out) {
+            out[0] = (det.getLeft() + det.getRight()) / 2f;
+            out[1] = (det.getTop() + det.getBottom()) / 2f;
+            out[2] = det.getRight() - det.getLeft();
+            out[3] = det.getBottom() - det.getTop();
+        }
+
+        void predict(float processNoise) {
+            for (int i = 0; i != 4; i++) {
+                mX[i] += mV[i];
+                // P = F P F' + Q with F = [1 1; 0 1] and Q on the velocity
+                float p00 = mP00[i] + 2 * mP01[i] + mP11[i];
+                float p01 = mP01[i] + mP11[i];
+                mP00[i] = p00;
+                mP01[i] = p01;
+                mP11[i] += processNoise;
+            }
+            mX[2] = Math.max(1f, mX[2]);
+            mX[3] = Math.max(1f, mX[3]);
+        }
+
+        void correct(VisionDetRet det, float measurementNoise) {
+            float[] z = new float[4];
+            measure(det, z);
+            for (int i = 0; i != 4; i++) {
+                // Only the position is measured, H = [1 0]
+                float s = mP00[i] + measurementNoise;
+                float k0 = mP00[i] / s;
+                float k1 = mP01[i] / s;
+                float residual = z[i] - mX[i];
+                mX[i] += k0 * residual;
+                mV[i] += k1 * residual;
+                float p00 = (1 - k0) * mP00[i];
+                float p01 = (1 - k0) * mP01[i];
+                float p11 = mP11[i] - k1 * mP01[i];
+                mP00[i] = p00;
+                mP01[i] = p01;
+                mP11[i] = p11;
+            }
+            mConfidence = det.getConfidence();
+            mMisses = 0;
+        }
+
+        /**
+         * Record the state as the estimate of a frame, after the estimates of the earlier frames.
+         */
+        void save(long frame) {
+            int slot;
+            if (mHistorySize < mHistoryFrames.length) {
+                slot = (mHistoryStart + mHistorySize++) % mHistoryFrames.length;
+            } else {
+                slot = mHistoryStart;
+                mHistoryStart = (mHistoryStart + 1) % mHistoryFrames.length;
+            }
+            mHistoryFrames[slot] = frame;
+            int offset = slot * STATE_SIZE;
+            System.arraycopy(mX, 0, mHistory, offset, 4);
+            System.arraycopy(mV, 0, mHistory, offset + 4, 4);
+            System.arraycopy(mP00, 0, mHistory, offset + 8, 4);
+            System.arraycopy(mP01, 0, mHistory, offset + 12, 4);
+            System.arraycopy(mP11, 0, mHistory, offset + 16, 4);
+        }
+
+        /**
+         * @return The position and size estimated for a frame, or the newest ones if the frame is not
+         *         in the history
+         */
+        float[] estimateAt(long frame) {
+            int slot = find(frame);
+            if (slot < 0) {
+                return mX;
+            }
+            return Arrays.copyOfRange(mHistory, slot * STATE_SIZE, slot * STATE_SIZE + 4);
+        }
+
+        /**
+         * Restore the state estimated for a frame and forget the later ones.
+         *
+         * @return false if the frame is not in the history, the state is then left as it is
+         */
+        boolean rewind(long frame) {
+            int slot = find(frame);
+            if (slot < 0) {
+                return false;
+            }
+            int offset = slot * STATE_SIZE;
+            System.arraycopy(mHistory, offset, mX, 0, 4);
+            System.arraycopy(mHistory, offset + 4, mV, 0, 4);
+            System.arraycopy(mHistory, offset + 8, mP00, 0, 4);
+            System.arraycopy(mHistory, offset + 12, mP01, 0, 4);
+            System.arraycopy(mHistory, offset + 16, mP11, 0, 4);
+            // The corrected state of the frame is saved again by the caller
+            mHistorySize = (slot - mHistoryStart + mHistoryFrames.length) % mHistoryFrames.length;
+            return true;
+        }
+
+        private int find(long frame) {
+            for (int i = mHistorySize - 1; i >= 0; i--) {
+                int slot = (mHistoryStart + i) % mHistoryFrames.length;
+                if (mHistoryFrames[slot] == frame) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+    }
+}
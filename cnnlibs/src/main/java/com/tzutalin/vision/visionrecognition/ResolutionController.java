@@ -0,0 +1,233 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import java.util.Locale;
+
+/**
+ * Picks the input resolution that holds a latency budget, from the latency measured on each frame.
+ * <p>
+ * The latency is smoothed over the last frames. Above the budget, the resolution drops at once to the
+ * one expected to meet it, assuming the latency grows with the pixel count. Below the budget, it rises
+ * one step when the latency expected at the next step still fits, so it does not swing back and forth.
+ * After a change, a few frames are left to settle before the next decision.
+ * <p>
+ * A drop that does not make the frames meaningfully faster is undone, and the resolution it came from
+ * becomes the floor: when the latency does not depend on the input size, such as for a net that rescales
+ * its input itself, the resolution stays where it is instead of ratcheting down to the minimum.
+ * Safe to use from several threads.
+ */
+public final class ResolutionController {
+    private static final int DEFAULT_STEP = 32;
+    private static final float DEFAULT_SMOOTHING = 0.25f;
+    private static final int DEFAULT_SETTLE_FRAMES = 4;
+    // Only step up when the expected latency leaves this part of the budget free
+    private static final float STEP_UP_HEADROOM = 0.9f;
+    // A drop that keeps the latency above this part of the one before it brought no gain
+    private static final float NO_GAIN_RATIO = 0.9f;
+
+    private final int mMinSide;
+    private final int mMaxSide;
+    private final long mTargetLatencyMs;
+    private final int mStep;
+    private final float mSmoothing;
+    private final int mSettleFrames;
+
+    private int mSide;
+    private float mLatencyMs = -1;
+    private int mFramesToSettle;
+    private long mChangeCount;
+    private int mFloorSide;
+    // The side and latency before the last drop, until the drop is judged
+    private int mDroppedFromSide;
+    private float mDroppedFromLatencyMs;
+
+    /**
+     * Builds a {@link ResolutionController}.
+     */
+    public static final class Builder {
+        private final int mMinSide;
+        private final int mMaxSide;
+        private final long mTargetLatencyMs;
+        private int mStep = DEFAULT_STEP;
+        private float mSmoothing = DEFAULT_SMOOTHING;
+        private int mSettleFrames = DEFAULT_SETTLE_FRAMES;
+        private int mInitialSide;
+
+        /**
+         * @param minSide         The smallest short side of the input
+         * @param maxSide         The largest short side of the input
+         * @param targetLatencyMs The latency budget of a frame
+         */
+        public Builder(int minSide, int maxSide, long targetLatencyMs) {
+            if (minSide <= 0 || maxSide < minSide) {
+                throw new IllegalArgumentException("Invalid bounds " + minSide + " to " + maxSide);
+            }
+            if (targetLatencyMs <= 0) {
+                throw new IllegalArgumentException("targetLatencyMs should be positive");
+            }
+            mMinSide = minSide;
+            mMaxSide = maxSide;
+            mTargetLatencyMs = targetLatencyMs;
+            mInitialSide = maxSide;
+        }
+
+        /**
+         * @param step The resolutions are the minimum side plus multiples of the step. The default is 32.
+         */
+        public Builder setStep(int step) {
+            if (step <= 0) {
+                throw new IllegalArgumentException("step should be positive");
+            }
+            mStep = step;
+            return this;
+        }
+
+        /**
+         * @param smoothing The weight of the latest frame in the smoothed latency, from 0 excluded to 1.
+         *                  The default is 0.25.
+         */
+        public Builder setSmoothing(float smoothing) {
+            if (!(smoothing > 0 && smoothing <= 1)) {
+                throw new IllegalArgumentException("smoothing should be in (0, 1]");
+            }
+            mSmoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * @param settleFrames The frames measured after a change before the next one. The default is 4.
+         */
+        public Builder setSettleFrames(int settleFrames) {
+            if (settleFrames < 1) {
+                throw new IllegalArgumentException("settleFrames should be at least 1");
+            }
+            mSettleFrames = settleFrames;
+            return this;
+        }
+
+        /**
+         * @param initialSide The short side to start from. The default is the largest one.
+         */
+        public Builder setInitialSide(int initialSide) {
+            mInitialSide = initialSide;
+            return this;
+        }
+
+        public ResolutionController build() {
+            return new ResolutionController(this);
+        }
+    }
+
+    private ResolutionController(Builder builder) {
+        mMinSide = builder.mMinSide;
+        mMaxSide = builder.mMaxSide;
+        mTargetLatencyMs = builder.mTargetLatencyMs;
+        mStep = builder.mStep;
+        mSmoothing = builder.mSmoothing;
+        mSettleFrames = builder.mSettleFrames;
+        mSide = snap(builder.mInitialSide);
+        mFloorSide = mMinSide;
+        mFramesToSettle = mSettleFrames;
+    }
+
+    /**
+     * Record the latency of a frame analyzed at the current resolution.
+     *
+     * @param latencyMs The time from frame arrival to result
+     * @return The short side to use for the next frames
+     */
+    public synchronized int onFrame(long latencyMs) {
+        mLatencyMs = mLatencyMs < 0 ? latencyMs : mLatencyMs + mSmoothing * (latencyMs - mLatencyMs);
+        if (--mFramesToSettle > 0) {
+            return mSide;
+        }
+
+        int side = mSide;
+        if (mDroppedFromSide != 0) {
+            int droppedFrom = mDroppedFromSide;
+            mDroppedFromSide = 0;
+            if (mLatencyMs > mDroppedFromLatencyMs * NO_GAIN_RATIO) {
+                mFloorSide = droppedFrom;
+                return change(droppedFrom);
+            }
+        }
+        if (mLatencyMs > mTargetLatencyMs) {
+            int expected = snap((int) (mSide * Math.sqrt(mTargetLatencyMs / mLatencyMs)));
+            side = Math.max(mFloorSide, Math.min(expected, mSide - mStep));
+            if (side < mSide) {
+                mDroppedFromSide = mSide;
+                mDroppedFromLatencyMs = mLatencyMs;
+            }
+        } else if (mSide < mMaxSide) {
+            int next = Math.min(mMaxSide, mSide + mStep);
+            float ratio = (float) next / mSide;
+            if (mLatencyMs * ratio * ratio <= mTargetLatencyMs * STEP_UP_HEADROOM) {
+                side = next;
+            }
+        }
+        if (side != mSide) {
+            return change(side);
+        }
+        mFramesToSettle = 1;
+        return mSide;
+    }
+
+    private int change(int side) {
+        mSide = side;
+        mChangeCount++;
+        // The latency measured at the previous resolution no longer applies
+        mLatencyMs = -1;
+        mFramesToSettle = mSettleFrames;
+        return mSide;
+    }
+
+    /**
+     * @return The short side to use for the next frames
+     */
+    public synchronized int getSide() {
+        return mSide;
+    }
+
+    /**
+     * @return The smoothed latency at the current resolution, or -1 if no frame was measured since it was picked
+     */
+    public synchronized float getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    /**
+     * @return The smallest short side the resolution may drop to, raised when a drop brought no gain
+     */
+    public synchronized int getFloorSide() {
+        return mFloorSide;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "side=%d latency=%.1fms target=%dms changes=%d floor=%d",
+                mSide, mLatencyMs, mTargetLatencyMs, mChangeCount, mFloorSide);
+    }
+
+    private int snap(int side) {
+        int clamped = Math.max(mMinSide, Math.min(mMaxSide, side));
+        if (clamped == mMaxSide) {
+            return clamped;
+        }
+        return mMinSide + (clamped - mMinSide) / mStep * mStep;
+    }
+}
@@ -0,0 +1,489 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the results of image files by content, so classifying the same bytes again costs a hash
+ * instead of a forward pass. Set it with {@link CaffeClassifier#setResultCache(ResultCache)}.
+ * <p>
+ * Entries are keyed by a 128-bit hash of the file content and by the model and settings of the
+ * classifier. A bounded LRU map holds the recent entries, and an optional directory keeps them across
+ * restarts, evicting the least recently used files beyond a size limit. A cache can be shared by several
+ * classifiers and threads.
+ */
+public final class ResultCache {
+    private static final String TAG = "ResultCache";
+    private static final int DISK_MAGIC = 0x52435631;
+    private static final String DISK_SUFFIX = ".res";
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final int HASH_CHUNK = 1 << 16;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final int mMaxEntries;
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+    private final Map<String, List<VisionDetRet>> mMemory;
+    private long mDiskBytes = -1;
+    private long mHits;
+    private long mDiskHits;
+    private long mMisses;
+
+    private ResultCache(Builder builder) {
+        mMaxEntries = builder.mMaxEntries;
+        mDiskDir = builder.mDiskDir;
+        mMaxDiskBytes = builder.mMaxDiskBytes;
+        mMemory = new LinkedHashMap<String, List<VisionDetRet>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<VisionDetRet>> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The key of an image file for a classifier called with the given options, or null if the file
+     * cannot be read
+     */
+    @Nullable
+    String keyOf(@NonNull CaffeClassifier<?> classifier, @NonNull String imgPath, @NonNull ClassifyOptions options) {
+        String contentHash = hashFile(new File(imgPath));
+        if (contentHash == null) {
+            return null;
+        }
+        return contentHash + '|' + classifier.getResultKey(options);
+    }
+
+    /**
+     * @return A copy of the cached results, or null if there are none
+     */
+    @Nullable
+    List<VisionDetRet> get(@NonNull String key) {
+        List<VisionDetRet> results;
+        synchronized (this) {
+            results = mMemory.get(key);
+            if (results != null) {
+                mHits++;
+                return new ArrayList<>(results);
+            }
+        }
+        results = mDiskDir != null ? readDisk(key) : null;
+        synchronized (this) {
+            if (results == null) {
+                mMisses++;
+                return null;
+            }
+            mDiskHits++;
+            mMemory.put(key, results);
+        }
+        return new ArrayList<>(results);
+    }
+
+    void put(@NonNull String key, @NonNull List<VisionDetRet> results) {
+        // VisionDetRet is immutable, so a copy of the list is enough
+        List<VisionDetRet> copy = Collections.unmodifiableList(new ArrayList<>(results));
+        synchronized (this) {
+            mMemory.put(key, copy);
+        }
+        if (mDiskDir != null) {
+            writeDisk(key, copy);
+        }
+    }
+
+    /**
+     * Forget every entry, in memory and on disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            mMemory.clear();
+        }
+        if (mDiskDir != null) {
+            synchronized (mDiskDir) {
+                File[] files = mDiskDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(DISK_SUFFIX)) {
+                            file.delete();
+                        }
+                    }
+                }
+                mDiskBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of lookups answered from memory
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return The number of lookups answered from the disk directory
+     */
+    public synchronized long getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + mHits + ", diskHits=" + mDiskHits + ", misses=" + mMisses + ", entries=" + mMemory.size();
+    }
+
+    /**
+     * Hash the content of a file with MurmurHash3 x64 128. It is not cryptographic, only fast and well spread.
+     *
+     * @return The hash and the length of the file, or null if the file cannot be read
+     */
+    @Nullable
+    static String hashFile(@NonNull File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            Murmur3 hash = new Murmur3();
+            while (true) {
+                int read = channel.read(buffer);
+                buffer.flip();
+                hash.update(buffer, Math.max(read, 0));
+                if (read < 0) {
+                    break;
+                }
+                // Keep the partial block for the next read
+                buffer.compact();
+            }
+            return hash.finish(buffer) + '-' + hash.mLength;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot hash " + file + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The MurmurHash3 x64 128 of the UTF-8 bytes of a string
+     */
+    static String hashString(@NonNull String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        Murmur3 hash = new Murmur3();
+        hash.update(buffer, bytes.length);
+        return hash.finish(buffer);
+    }
+
+    /**
+     * The state of a MurmurHash3 x64 128 over little-endian buffers.
+     */
+    private static final class Murmur3 {
+        long mH1;
+        long mH2;
+        long mLength;
+
+        /**
+         * Hash the whole 16-byte blocks of the buffer, leaving the partial block in it.
+         *
+         * @param read The number of bytes added to the buffer since the last update
+         */
+        void update(ByteBuffer buffer, int read) {
+            mLength += read;
+            while (buffer.remaining() >= 16) {
+                mH1 ^= mixK1(buffer.getLong());
+                mH1 = Long.rotateLeft(mH1, 27) + mH2;
+                mH1 = mH1 * 5 + 0x52dce729;
+                mH2 ^= mixK2(buffer.getLong());
+                mH2 = Long.rotateLeft(mH2, 31) + mH1;
+                mH2 = mH2 * 5 + 0x38495ab5;
+            }
+        }
+
+        /**
+         * Hash the partial block left in the buffer and finish the hash.
+         */
+        String finish(ByteBuffer buffer) {
+            long h1 = mH1;
+            long h2 = mH2;
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = 0; buffer.hasRemaining(); i++) {
+                long b = buffer.get() & 0xffL;
+                if (i < 8) {
+                    k1 |= b << (8 * i);
+                } else {
+                    k2 |= b << (8 * (i - 8));
+                }
+            }
+            h1 ^= mixK1(k1);
+            h2 ^= mixK2(k2);
+
+            h1 ^= mLength;
+            h2 ^= mLength;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return String.format("%016x%016x", h1, h2);
+        }
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private File diskFile(String key) {
+        // The key starts with the content hash and holds paths after it, so the file is named after the
+        // content hash and a hash of the rest, and holds the key to check it
+        int split = key.indexOf('|');
+        return new File(mDiskDir, key.substring(0, split) + '-' + hashString(key.substring(split + 1)) + DISK_SUFFIX);
+    }
+
+    @Nullable
+    private List<VisionDetRet> readDisk(String key) {
+        File file = diskFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != DISK_MAGIC || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            List<VisionDetRet> results = new ArrayList<>(count);
+            for (int i = 0; i != count; i++) {
+                String label = in.readUTF();
+                float confidence = in.readFloat();
+                results.add(new VisionDetRet(label, confidence, in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            // The modification time orders the eviction
+            file.setLastModified(System.currentTimeMillis());
+            return Collections.unmodifiableList(results);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file + ": " + e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void writeDisk(String key, List<VisionDetRet> results) {
+        File file = diskFile(key);
+        File temp = new File(mDiskDir, file.getName() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(DISK_MAGIC);
+            out.writeUTF(key);
+            out.writeInt(results.size());
+            for (VisionDetRet ret : results) {
+                out.writeUTF(ret.getLabel() != null ? ret.getLabel() : "");
+                out.writeFloat(ret.getConfidence());
+                out.writeInt(ret.getLeft());
+                out.writeInt(ret.getTop());
+                out.writeInt(ret.getRight());
+                out.writeInt(ret.getBottom());
+            }
+            out.close();
+            out = null;
+            synchronized (mDiskDir) {
+                long oldLength = file.length();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + temp);
+                }
+                if (mDiskBytes < 0) {
+                    mDiskBytes = directorySize();
+                } else {
+                    mDiskBytes += file.length() - oldLength;
+                }
+                if (mDiskBytes > mMaxDiskBytes) {
+                    trimDisk();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            temp.delete();
+        }
+    }
+
+    private long directorySize() {
+        long size = 0;
+        File[] files = mDiskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(DISK_SUFFIX)) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Delete the least recently used files until the directory is under three quarters of its limit, so
+     * trimming does not happen on every write.
+     */
+    private void trimDisk() {
+        File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i != files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+        long target = mMaxDiskBytes * 3 / 4;
+        for (int i = 0; i != order.length && mDiskBytes > target; i++) {
+            File file = files[order[i]];
+            if (!file.getName().endsWith(DISK_SUFFIX)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                mDiskBytes -= length;
+            }
+        }
+    }
+
+    /**
+     * Builder of {@link ResultCache}.
+     */
+    public static final class Builder {
+        private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+        private File mDiskDir;
+        private long mMaxDiskBytes;
+
+        /**
+         * @param maxEntries The number of results kept in memory
+         */
+        @NonNull
+        public Builder setMaxEntries(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("maxEntries should be positive");
+            }
+            mMaxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Keep the results in a directory too, so they survive restarts.
+         *
+         * @param directory A directory used only by this cache, such as one under {@code getCacheDir()}
+         * @param maxBytes  The size above which the least recently used results are deleted
+         */
+        @NonNull
+        public Builder setDiskCache(@NonNull File directory, long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes should be positive");
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("Cannot create " + directory);
+            }
+            mDiskDir = directory;
+            mMaxDiskBytes = maxBytes;
+            return this;
+        }
+
+        @NonNull
+        public ResultCache build() {
+            return new ResultCache(this);
+        }
+    }
+}
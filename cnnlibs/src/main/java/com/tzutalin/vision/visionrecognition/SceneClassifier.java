@@ -18,6 +18,8 @@ package com.tzutalin.vision.visionrecognition;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -25,9 +27,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Identifies the current scene in a
@@ -36,7 +36,18 @@ import java.util.Map;
 public class SceneClassifier extends CaffeClassifier<List<VisionDetRet>> {
     private static final String TAG = "SceneClassifier";
     private static final int MODEL_DIM = 224;
-    private ByteBuffer _handler;
+    private final ThreadLocal<YuvConverter> mYuvConverters = new ThreadLocal<YuvConverter>() {
+        @Override
+        protected YuvConverter initialValue() {
+            return new YuvConverter();
+        }
+    };
+    private final ThreadLocal<TopKScratch> mTopKScratch = new ThreadLocal<TopKScratch>() {
+        @Override
+        protected TopKScratch initialValue() {
+            return new TopKScratch();
+        }
+    };
 
     /**
      * Creates a SceneClassifier, configured with its model path, trained weights, etc.
@@ -55,38 +66,55 @@ public class SceneClassifier extends CaffeClassifier<List<VisionDetRet>> {
                 !new File(mSynsetPath).exists() ) {
             throw new IllegalAccessException("SceneClassifier cannot find model");
         }
+        setBackend(new NativeBackend(), true);
+    }
+
+    /**
+     * Creates a SceneClassifier running on the given backend instead of the Caffe JNI library.
+     *
+     * @param context          Context
+     * @param sceneModelPath   Caffe's model
+     * @param sceneWieghtsPath Caffe's trained wieght
+     * @param sceneManefile    The file path of the image image
+     * @param sceneSynsetFile  The file path to load label's titles
+     * @param backend          The backend running the network
+     */
+    public SceneClassifier(Context context, String sceneModelPath, String sceneWieghtsPath, String sceneManefile,
+                           String sceneSynsetFile, @NonNull InferenceBackend backend) {
+        super(context, sceneModelPath, sceneWieghtsPath, sceneManefile, sceneSynsetFile);
+        setBackend(backend);
     }
 
     /**
      * Recognize the scene according to the given image path
      *
      * @param imgPath image path
+     * @param options The selected label, number of scenes and minimum confidence of this call
      * @return The list of the result {@link VisionDetRet} which scenes are recognized
      * @throws IllegalArgumentException if the Bitmap dimensions don't match
      *                                  the dimensions defined at initialization or the given array
      *                                  is not sized equal to the width and hegiht defined at initialization
      */
     @Override
-    public List<VisionDetRet> classifyByPath(String imgPath) {
-        List<VisionDetRet> ret = new ArrayList<>();
-
+    public List<VisionDetRet> classifyByPath(String imgPath, @NonNull ClassifyOptions options) {
         if (TextUtils.isEmpty(imgPath) || !new File(imgPath).exists()) {
             Log.e(TAG, "classifyByPath. Invalid Input path");
-            return ret;
-        }
-
-        float[] propArray = jniClassifyImgByPath(imgPath);
-        if (propArray != null) {
-            Map<String, Float> sortedMap = Utils.sortPrediction(mSynsets, propArray);
-            int kSize = 10;
-            for (Map.Entry<String, Float> sortedmapEntry : sortedMap.entrySet()) {
-                VisionDetRet det = new VisionDetRet(sortedmapEntry.getKey(), sortedmapEntry.getValue(), 0, 0, 0, 0);
-                ret.add(det);
-                if (kSize == ret.size())
-                    break;
+            return new ArrayList<>();
+        }
+
+        ResultCache cache = getResultCache();
+        String cacheKey = cache != null ? cache.keyOf(this, imgPath, options) : null;
+        if (cacheKey != null) {
+            List<VisionDetRet> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
             }
         }
 
+        List<VisionDetRet> ret = recognize(null, imgPath, options);
+        if (cacheKey != null) {
+            cache.put(cacheKey, ret);
+        }
         return ret;
     }
 
@@ -94,63 +122,182 @@ public class SceneClassifier extends CaffeClassifier<List<VisionDetRet>> {
      * Recognize the scene according to the given bitmap
      *
      * @param bitmap bitmap object {@link android.graphics.Bitmap} graphic object.
+     * @param options The selected label, number of scenes and minimum confidence of this call
      * @return The list of the result {@link VisionDetRet} which scenes are recognized
      * @throws IllegalArgumentException if the Bitmap dimensions don't match
      *                                  the dimensions defined at initialization or the given array
      *                                  is not sized equal to the width and hegiht defined at initialization
      */
     @Override
-    public List<VisionDetRet> classify(Bitmap bitmap) {
-        List<VisionDetRet> ret = new ArrayList<>();
-
+    public List<VisionDetRet> classify(Bitmap bitmap, @NonNull ClassifyOptions options) {
         // Check input
         if (bitmap == null) {
             Log.e(TAG, "classify. Invalid Input bitmap");
-            return ret;
+            return new ArrayList<>();
         }
+        return recognize(bitmap, null, options);
+    }
 
-        storeBitmap(bitmap);
-
-        float[] propArray = jniClassifyBitmap(_handler);
-        if (propArray != null) {
-            Map<String, Float> sortedmap = Utils.sortPrediction(mSynsets, propArray);
-            int kSize = 10;
-            for (Map.Entry<String, Float> sortedMapEntry : sortedmap.entrySet()) {
-                VisionDetRet det = new VisionDetRet(sortedMapEntry.getKey(), sortedMapEntry.getValue(), 0, 0, 0, 0);
-                ret.add(det);
-                if (kSize == ret.size())
-                    break;
-            }
+    /**
+     * Recognize the scene according to the given YUV frame
+     *
+     * @param frame           The planes of the frame
+     * @param crop            The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     * @param options         The selected label, number of scenes and minimum confidence of this call
+     * @return The list of the result {@link VisionDetRet} which scenes are recognized
+     */
+    @Override
+    public List<VisionDetRet> classify(YuvFrame frame, Rect crop, int rotationDegrees,
+                                       @NonNull ClassifyOptions options) {
+        if (frame == null) {
+            Log.e(TAG, "classify. Invalid Input frame");
+            return new ArrayList<>();
         }
+        long start = System.nanoTime();
+        // The converted bitmap belongs to the converter of this thread until its next call
+        Bitmap bitmap = mYuvConverters.get().convert(frame, crop, rotationDegrees, MODEL_DIM, MODEL_DIM);
+        mMetrics.add(ClassifierMetrics.Stage.STAGING, System.nanoTime() - start);
+        return classify(bitmap, options);
+    }
 
-        freeBitmap();
-        return ret;
+    /**
+     * Set how many scenes are returned by a classification without options. The default is 10.
+     *
+     * @param topK The maximum number of results
+     */
+    public synchronized void setTopK(int topK) {
+        setOptions(getOptions().buildUpon().setTopK(topK).build());
     }
 
-    @Override
-    public void init(int imgWidth, int imgHeight) {
-        super.init(imgWidth, imgHeight);
-        jniLoadModel(mModelPath, mWeightsPath);
-        jniSetInputModelDim(MODEL_DIM, MODEL_DIM);
+    /**
+     * Set the confidence below which a scene is not returned by a classification without options.
+     * The default is 0.
+     *
+     * @param minConfidence A confidence factor between 0 and 1
+     */
+    public synchronized void setMinConfidence(float minConfidence) {
+        setOptions(getOptions().buildUpon().setMinConfidence(minConfidence).build());
     }
 
     @Override
-    public void deInit() {
-        super.deInit();
-        jniRelease();
+    boolean isBackendProcessWide() {
+        return getBackend() instanceof NativeBackend;
     }
 
-    private void storeBitmap(final Bitmap bitmap) {
-        if (_handler != null)
-            freeBitmap();
-        _handler = jniStoreBitmapData(bitmap);
+    /**
+     * Run the forward pass on the bitmap, or on the image file if there is no bitmap, and select the top
+     * scenes. Only the forward pass and the selection hold the forward lock.
+     */
+    private List<VisionDetRet> recognize(Bitmap bitmap, String imgPath, ClassifyOptions options) {
+        // The scratch arrays belong to this thread until its next call
+        TopKScratch scratch = mTopKScratch.get();
+        scratch.ensureCapacity(options.getTopK());
+        int[] topIndices = scratch.indices;
+        float[] topScores = scratch.scores;
+        int count = 0;
+        synchronized (getForwardLock()) {
+            if (bitmap != null) {
+                runBackend(bitmap, options);
+            } else {
+                runBackendByPath(imgPath, options);
+            }
+            // The scores belong to the backend until its next forward pass
+            float[] scores = getBackend().getScores();
+            if (scores != null && mLabels != null) {
+                long start = System.nanoTime();
+                int length = Math.min(scores.length, mLabels.size());
+                count = TopKSelector.select(scores, length, options.getTopK(), options.getMinConfidence(),
+                        topIndices, topScores);
+                mMetrics.add(ClassifierMetrics.Stage.MARSHALLING, System.nanoTime() - start);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<VisionDetRet> ret = new ArrayList<>(count);
+        for (int i = 0; i != count; i++) {
+            ret.add(new VisionDetRet(mLabels.getLabel(topIndices[i]), topScores[i], 0, 0, 0, 0));
+        }
+        mMetrics.add(ClassifierMetrics.Stage.MARSHALLING, System.nanoTime() - start);
+        mMetrics.completeCall();
+        return ret;
     }
 
-    private void freeBitmap() {
-        if (_handler == null)
-            return;
-        jniFreeBitmapData(_handler);
-        _handler = null;
+    /**
+     * The output arrays of {@link TopKSelector}, grown to the largest top K asked on a thread.
+     */
+    private static final class TopKScratch {
+        int[] indices = new int[0];
+        float[] scores = new float[0];
+
+        void ensureCapacity(int topK) {
+            if (indices.length < topK) {
+                indices = new int[topK];
+                scores = new float[topK];
+            }
+        }
+    }
+
+    /**
+     * Runs the network through the Caffe JNI library.
+     */
+    private final class NativeBackend implements InferenceBackend {
+        private float[] mScores;
+
+        NativeBackend() {
+            loadNativeLibrary();
+        }
+
+        @Override
+        public void load(String modelPath, String weightsPath, String meanPath, String synsetPath) {
+            jniLoadModel(modelPath, weightsPath);
+            jniSetInputModelDim(MODEL_DIM, MODEL_DIM);
+        }
+
+        @Override
+        public void release() {
+            jniRelease();
+            mScores = null;
+        }
+
+        @Override
+        public void setSelectedLabel(String label) {
+        }
+
+        @Override
+        public int run(@NonNull Bitmap bitmap) {
+            mScores = null;
+            long start = System.nanoTime();
+            // The handle belongs to this call, so a failing call cannot leave it to the next one
+            ByteBuffer handler = jniStoreBitmapData(bitmap);
+            long staged = System.nanoTime();
+            mMetrics.add(ClassifierMetrics.Stage.STAGING, staged - start);
+            try {
+                mScores = jniClassifyBitmap(handler);
+            } finally {
+                jniFreeBitmapData(handler);
+            }
+            mMetrics.add(ClassifierMetrics.Stage.FORWARD, System.nanoTime() - staged);
+            return mScores != null ? mScores.length : 0;
+        }
+
+        @Override
+        public int runPath(@NonNull String imgPath) {
+            long start = System.nanoTime();
+            mScores = jniClassifyImgByPath(imgPath);
+            mMetrics.add(ClassifierMetrics.Stage.FORWARD, System.nanoTime() - start);
+            return mScores != null ? mScores.length : 0;
+        }
+
+        @Override
+        public float[] getScores() {
+            return mScores;
+        }
+
+        @Override
+        public void getDetections(@NonNull DetectionBatch batch, int count) {
+            batch.clear();
+        }
     }
 
     protected native int jniLoadModel(String modelPath, String weightsPath);
@@ -0,0 +1,276 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Runs the cheap {@link SceneClassifier} first and the {@link ObjectDetector} only when the scene calls for it.
+ * <p>
+ * A rule table over the scene results decides, for each image, whether to skip the detector, run it for
+ * every label or run it for a few labels. The scene results are looked at by descending confidence, and
+ * the first rule matching one of them, in the order the rules were added, applies. When no rule matches,
+ * the default action applies. Safe to use from several threads.
+ */
+public final class SceneGatedDetector {
+    private final SceneClassifier mSceneClassifier;
+    private final ObjectDetector mDetector;
+    private final List<Rule> mRules;
+    private final Rule mDefaultRule;
+    private long mImageCount;
+    private long mDetectorRunCount;
+
+    private static final class Rule {
+        final String sceneLabel;
+        final float minConfidence;
+        final boolean detect;
+        final Set<String> objectLabels;
+
+        Rule(String sceneLabel, float minConfidence, boolean detect, Set<String> objectLabels) {
+            this.sceneLabel = sceneLabel;
+            this.minConfidence = minConfidence;
+            this.detect = detect;
+            this.objectLabels = objectLabels;
+        }
+
+        boolean matches(VisionDetRet scene) {
+            return (sceneLabel == null || sceneLabel.equals(scene.getLabel()))
+                    && scene.getConfidence() >= minConfidence;
+        }
+    }
+
+    /**
+     * Builds a {@link SceneGatedDetector}.
+     */
+    public static final class Builder {
+        private final SceneClassifier mSceneClassifier;
+        private final ObjectDetector mDetector;
+        private final List<Rule> mRules = new ArrayList<>();
+        private Rule mDefaultRule = new Rule(null, 0f, true, null);
+
+        /**
+         * @param sceneClassifier An initialized scene classifier
+         * @param detector        An initialized detector, called with its options and the selected label of the rule
+         */
+        public Builder(@NonNull SceneClassifier sceneClassifier, @NonNull ObjectDetector detector) {
+            mSceneClassifier = sceneClassifier;
+            mDetector = detector;
+        }
+
+        /**
+         * Run the detector for every label when a scene is recognized.
+         * @param sceneLabel    The label of the scene, or null for any scene
+         * @param minConfidence The confidence the scene needs at least
+         */
+        public Builder detectWhen(@Nullable String sceneLabel, float minConfidence) {
+            mRules.add(new Rule(sceneLabel, minConfidence, true, null));
+            return this;
+        }
+
+        /**
+         * Run the detector for some labels only when a scene is recognized. A single label is selected in
+         * the options of the detector call through {@link ClassifyOptions.Builder#setSelectedLabel(String)};
+         * with more labels, the detections of the others are filtered out once detected.
+         * @param sceneLabel    The label of the scene, or null for any scene
+         * @param minConfidence The confidence the scene needs at least
+         * @param objectLabels  The labels of the detector to keep
+         */
+        public Builder detectWhen(@Nullable String sceneLabel, float minConfidence, @NonNull String... objectLabels) {
+            if (objectLabels.length == 0) {
+                throw new IllegalArgumentException("At least one object label is needed");
+            }
+            mRules.add(new Rule(sceneLabel, minConfidence, true, new HashSet<>(Arrays.asList(objectLabels))));
+            return this;
+        }
+
+        /**
+         * Skip the detector when a scene is recognized.
+         * @param sceneLabel    The label of the scene, or null for any scene
+         * @param minConfidence The confidence the scene needs at least
+         */
+        public Builder skipWhen(@Nullable String sceneLabel, float minConfidence) {
+            mRules.add(new Rule(sceneLabel, minConfidence, false, null));
+            return this;
+        }
+
+        /**
+         * @param detect true to run the detector for every label when no rule matches, false to skip it.
+         *               The default is true.
+         */
+        public Builder setDefaultDetect(boolean detect) {
+            mDefaultRule = new Rule(null, 0f, detect, null);
+            return this;
+        }
+
+        public SceneGatedDetector build() {
+            return new SceneGatedDetector(this);
+        }
+    }
+
+    /**
+     * The outcome of the cascade for one image.
+     */
+    public static final class Result {
+        private final List<VisionDetRet> mScenes;
+        private final List<VisionDetRet> mDetections;
+        private final boolean mDetectorRun;
+
+        Result(List<VisionDetRet> scenes, List<VisionDetRet> detections, boolean detectorRun) {
+            mScenes = Collections.unmodifiableList(scenes);
+            mDetections = Collections.unmodifiableList(detections);
+            mDetectorRun = detectorRun;
+        }
+
+        /**
+         * @return The results of the scene classifier
+         */
+        @NonNull
+        public List<VisionDetRet> getScenes() {
+            return mScenes;
+        }
+
+        /**
+         * @return The detected objects, empty if the detector was skipped
+         */
+        @NonNull
+        public List<VisionDetRet> getDetections() {
+            return mDetections;
+        }
+
+        /**
+         * @return true if the detector ran on the image
+         */
+        public boolean isDetectorRun() {
+            return mDetectorRun;
+        }
+    }
+
+    private SceneGatedDetector(Builder builder) {
+        mSceneClassifier = builder.mSceneClassifier;
+        mDetector = builder.mDetector;
+        mRules = new ArrayList<>(builder.mRules);
+        mDefaultRule = builder.mDefaultRule;
+    }
+
+    /**
+     * Recognize the scene of the bitmap, then detect objects if the rules call for it.
+     */
+    @NonNull
+    public Result classify(@NonNull Bitmap bitmap) {
+        List<VisionDetRet> scenes = mSceneClassifier.classify(bitmap);
+        Rule rule = selectRule(scenes);
+        if (!rule.detect) {
+            return skip(scenes);
+        }
+        return detected(scenes, rule, mDetector.classify(bitmap, optionsOf(rule)));
+    }
+
+    /**
+     * Recognize the scene of the image file, then detect objects if the rules call for it.
+     */
+    @NonNull
+    public Result classifyByPath(@NonNull String imgPath) {
+        List<VisionDetRet> scenes = mSceneClassifier.classifyByPath(imgPath);
+        Rule rule = selectRule(scenes);
+        if (!rule.detect) {
+            return skip(scenes);
+        }
+        return detected(scenes, rule, mDetector.classifyByPath(imgPath, optionsOf(rule)));
+    }
+
+    /**
+     * Recognize the scene of the YUV frame, then detect objects if the rules call for it.
+     * @param frame The planes of the frame, which must stay valid until the call returns
+     * @param crop The region of the frame to use, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply: 0, 90, 180 or 270
+     */
+    @NonNull
+    public Result classify(@NonNull YuvFrame frame, @Nullable Rect crop, int rotationDegrees) {
+        List<VisionDetRet> scenes = mSceneClassifier.classify(frame, crop, rotationDegrees);
+        Rule rule = selectRule(scenes);
+        if (!rule.detect) {
+            return skip(scenes);
+        }
+        return detected(scenes, rule, mDetector.classify(frame, crop, rotationDegrees, optionsOf(rule)));
+    }
+
+    /**
+     * @return The part of the images the detector ran on, between 0 and 1
+     */
+    public synchronized float getDetectorRunRate() {
+        return mImageCount > 0 ? (float) mDetectorRunCount / mImageCount : 0f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "images=%d detected=%d (%.1f%%)",
+                mImageCount, mDetectorRunCount, getDetectorRunRate() * 100);
+    }
+
+    private Rule selectRule(List<VisionDetRet> scenes) {
+        // The scene classifier returns its results by descending confidence
+        for (VisionDetRet scene : scenes) {
+            for (Rule rule : mRules) {
+                if (rule.matches(scene)) {
+                    return rule;
+                }
+            }
+        }
+        return mDefaultRule;
+    }
+
+    private ClassifyOptions optionsOf(Rule rule) {
+        String label = rule.objectLabels != null && rule.objectLabels.size() == 1
+                ? rule.objectLabels.iterator().next() : null;
+        return mDetector.getOptions().buildUpon().setSelectedLabel(label).build();
+    }
+
+    private Result skip(List<VisionDetRet> scenes) {
+        synchronized (this) {
+            mImageCount++;
+        }
+        return new Result(scenes, new ArrayList<VisionDetRet>(), false);
+    }
+
+    private Result detected(List<VisionDetRet> scenes, Rule rule, List<VisionDetRet> detections) {
+        synchronized (this) {
+            mImageCount++;
+            mDetectorRunCount++;
+        }
+        if (rule.objectLabels != null && rule.objectLabels.size() > 1) {
+            detections = new ArrayList<>(detections);
+            for (Iterator<VisionDetRet> it = detections.iterator(); it.hasNext(); ) {
+                if (!rule.objectLabels.contains(it.next().getLabel())) {
+                    it.remove();
+                }
+            }
+        }
+        return new Result(scenes, detections, true);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+
+/**
+ * A pure Java {@link InferenceBackend} that returns made-up results after a configurable delay.
+ * The results only depend on the input, so the same image always gives the same scores or boxes.
+ * It lets the Java pipeline be tested and load-tested without a device or the native library.
+ */
+public final class SimulatedBackend implements InferenceBackend {
+    // The Fast R-CNN input size when the image size is unknown
+    private static final int DEFAULT_WIDTH = 800;
+    private static final int DEFAULT_HEIGHT = 600;
+    private static final int SAMPLE_GRID = 8;
+
+    private final int mClassCount;
+    private final int mDetectionCount;
+    private volatile long mLatencyMs;
+    private volatile long mLoadLatencyMs;
+    private boolean mLoaded;
+    private String mSelectedLabel;
+    private LabelTable mLabels;
+
+    private long mSeed;
+    private int mInputWidth;
+    private int mInputHeight;
+    private float[] mScores;
+
+    private SimulatedBackend(int classCount, int detectionCount) {
+        if (classCount <= 0) {
+            throw new IllegalArgumentException("classCount should be positive");
+        }
+        mClassCount = classCount;
+        mDetectionCount = detectionCount;
+    }
+
+    /**
+     * @param classCount The number of scores returned by a forward pass
+     */
+    @NonNull
+    public static SimulatedBackend forClassification(int classCount) {
+        return new SimulatedBackend(classCount, 0);
+    }
+
+    /**
+     * @param classCount      The number of classes, the first one being the background
+     * @param detectionCount The number of detections returned by a forward pass
+     */
+    @NonNull
+    public static SimulatedBackend forDetection(int classCount, int detectionCount) {
+        if (detectionCount <= 0) {
+            throw new IllegalArgumentException("detectionCount should be positive");
+        }
+        return new SimulatedBackend(classCount, detectionCount);
+    }
+
+    /**
+     * @param forwardMs The time a forward pass takes
+     * @param loadMs    The time loading the network takes
+     */
+    public void setLatency(long forwardMs, long loadMs) {
+        if (forwardMs < 0 || loadMs < 0) {
+            throw new IllegalArgumentException("Latency should not be negative");
+        }
+        mLatencyMs = forwardMs;
+        mLoadLatencyMs = loadMs;
+    }
+
+    @Override
+    public void load(String modelPath, String weightsPath, String meanPath, String synsetPath) {
+        sleep(mLoadLatencyMs);
+        mLabels = synsetPath != null ? LabelTable.open(synsetPath) : null;
+        mLoaded = true;
+    }
+
+    @Override
+    public void release() {
+        mLoaded = false;
+        mScores = null;
+    }
+
+    @Override
+    public void setSelectedLabel(String label) {
+        mSelectedLabel = label;
+    }
+
+    /**
+     * The seed comes from the size of the bitmap and a grid of sampled pixels.
+     */
+    @Override
+    public int run(@NonNull Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        long seed = 31L * width + height;
+        for (int y = 0; y != SAMPLE_GRID; y++) {
+            for (int x = 0; x != SAMPLE_GRID; x++) {
+                int pixel = bitmap.getPixel((2 * x + 1) * width / (2 * SAMPLE_GRID),
+                        (2 * y + 1) * height / (2 * SAMPLE_GRID));
+                seed = seed * 31 + pixel;
+            }
+        }
+        return forward(seed, width, height);
+    }
+
+    /**
+     * The seed comes from the path, the size and the modification time of the file.
+     */
+    @Override
+    public int runPath(@NonNull String imgPath) {
+        File file = new File(imgPath);
+        long seed = imgPath.hashCode();
+        seed = seed * 31 + file.length();
+        seed = seed * 31 + file.lastModified();
+        return forward(seed, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    }
+
+    private int forward(long seed, int width, int height) {
+        if (!mLoaded) {
+            throw new IllegalStateException("The network is not loaded");
+        }
+        sleep(mLatencyMs);
+        mSeed = seed;
+        mInputWidth = width;
+        mInputHeight = height;
+        if (mDetectionCount > 0) {
+            mScores = null;
+            return mDetectionCount;
+        }
+
+        // Skewed so a few classes dominate, like a softmax output
+        Random random = new Random(seed);
+        float[] scores = new float[mClassCount];
+        float sum = 0;
+        for (int i = 0; i != mClassCount; i++) {
+            float value = random.nextFloat();
+            scores[i] = value * value * value * value;
+            sum += scores[i];
+        }
+        for (int i = 0; i != mClassCount; i++) {
+            scores[i] /= sum;
+        }
+        mScores = scores;
+        return mClassCount;
+    }
+
+    @Override
+    public float[] getScores() {
+        return mScores;
+    }
+
+    @Override
+    public void getDetections(@NonNull DetectionBatch batch, int count) {
+        int selectedId = getSelectedClassId();
+        Random random = new Random(mSeed);
+        batch.ensureCapacity(count);
+        int size = 0;
+        for (int i = 0; i != count; i++) {
+            int classId = mClassCount > 1 ? 1 + random.nextInt(mClassCount - 1) : 0;
+            float score = random.nextFloat();
+            float boxWidth = (0.1f + 0.4f * random.nextFloat()) * mInputWidth;
+            float boxHeight = (0.1f + 0.4f * random.nextFloat()) * mInputHeight;
+            float left = random.nextFloat() * (mInputWidth - boxWidth);
+            float top = random.nextFloat() * (mInputHeight - boxHeight);
+            if (selectedId >= 0 && classId != selectedId) {
+                continue;
+            }
+            batch.set(size++, classId, score, left, top, left + boxWidth, top + boxHeight);
+        }
+        batch.setSize(size);
+    }
+
+    private int getSelectedClassId() {
+        if (mSelectedLabel == null || mSelectedLabel.isEmpty() || mLabels == null) {
+            return -1;
+        }
+        return mLabels.indexOf(mSelectedLabel);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A linear congruential generator, so the results do not depend on the JDK's Random.
+     */
+    private static final class Random {
+        private long mState;
+
+        Random(long seed) {
+            mState = seed;
+        }
+
+        int nextInt(int bound) {
+            return (int) ((next() & 0x7fffffffL) % bound);
+        }
+
+        float nextFloat() {
+            return (next() >>> 8) / (float) (1 << 24);
+        }
+
+        private int next() {
+            mState = mState * 6364136223846793005L + 1442695040888963407L;
+            return (int) (mState >>> 32);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+
+/**
+ * Crops and downscales images into mutable bitmaps kept in a {@link BitmapPool}, for the per-call copies
+ * handed to a net: tiles of a large photo, or a batch image brought down to its target size. Drawing into a
+ * released bitmap of the same size allocates no pixels, where {@link Bitmap#createBitmap(Bitmap, int, int,
+ * int, int)} and {@link Bitmap#createScaledBitmap} allocate a new bitmap every time. Give the bitmaps back
+ * with {@link #release(Bitmap)} once the net has read them. Safe to use from several threads.
+ */
+final class StagingBitmaps {
+    private static final int POOL_BYTES = 16 * 1024 * 1024;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static final BitmapPool POOL = new BitmapPool(POOL_BYTES);
+    private static final Paint FILTER = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private StagingBitmaps() {
+    }
+
+    /**
+     * Copy a region of a bitmap.
+     */
+    @NonNull
+    static Bitmap crop(@NonNull Bitmap src, int left, int top, int width, int height) {
+        Bitmap dst = obtain(width, height);
+        new Canvas(dst).drawBitmap(src, new Rect(left, top, left + width, top + height),
+                new Rect(0, 0, width, height), null);
+        return dst;
+    }
+
+    /**
+     * Scale a whole bitmap with bilinear filtering.
+     */
+    @NonNull
+    static Bitmap scale(@NonNull Bitmap src, int width, int height) {
+        Bitmap dst = obtain(width, height);
+        new Canvas(dst).drawBitmap(src, null, new Rect(0, 0, width, height), FILTER);
+        return dst;
+    }
+
+    /**
+     * Give back a bitmap returned by {@link #crop} or {@link #scale}.
+     */
+    static void release(@NonNull Bitmap bitmap) {
+        POOL.release(bitmap);
+    }
+
+    private static Bitmap obtain(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        Bitmap bitmap = POOL.get(width * height * BYTES_PER_PIXEL);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        return bitmap;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects small objects in large images by running {@link ObjectDetector}s on overlapping tiles. A detector
+ * rescales its whole input to its input scale, so objects of a few dozen pixels in a 4000x3000 capture
+ * vanish; a tile of the input scale is seen at full resolution instead.
+ * <p>
+ * The tiles are shared between the detectors, one thread each, the calling thread running the first one.
+ * The boxes are mapped back to image coordinates and the duplicates of objects seen by several tiles are
+ * merged by non-maximum suppression. An optional pass on the downscaled whole image finds the objects
+ * larger than a tile.
+ * <p>
+ * The Caffe JNI library keeps one net per process, so detectors on its backend share it and take turns
+ * on its forward pass: pass a single such detector, more would only stage tiles while waiting, and the
+ * latency grows with the number of tiles. Detectors on backends holding their own net, such as
+ * {@link SimulatedBackend}, run in parallel.
+ */
+public final class TiledDetector {
+    private static final String TAG = "TiledDetector";
+    // Fast R-CNN rescales its input to a 600 pixel short side
+    private static final int DEFAULT_TILE_SIZE = 600;
+    private static final float DEFAULT_OVERLAP = 0.2f;
+    private static final float DEFAULT_MERGE_IOU = 0.5f;
+
+    private final List<ObjectDetector> mDetectors;
+    private final int mTileSize;
+    private final float mOverlap;
+    private final boolean mFullFramePass;
+    private final ClassifyOptions mOptions;
+    private final DetectionPostProcessor mMerger;
+    private final ExecutorService mExecutor;
+    private final DetectionBatch[] mDetections;
+    private final DetectionBatch mBatch = new DetectionBatch();
+
+    /**
+     * Builds a {@link TiledDetector}.
+     */
+    public static final class Builder {
+        private final List<ObjectDetector> mDetectors;
+        private int mTileSize = DEFAULT_TILE_SIZE;
+        private float mOverlap = DEFAULT_OVERLAP;
+        private boolean mFullFramePass = true;
+        private ClassifyOptions mOptions;
+        private DetectionPostProcessor mMerger;
+
+        /**
+         * @param detectors Initialized detectors of the same model, owned by the tiled detector while it is used
+         */
+        public Builder(@NonNull List<ObjectDetector> detectors) {
+            if (detectors.isEmpty()) {
+                throw new IllegalArgumentException("At least one detector is needed");
+            }
+            mDetectors = new ArrayList<>(detectors);
+        }
+
+        /**
+         * @param tileSize The side of the square tiles, in image pixels. The default is 600, the input scale
+         *                 of the detector, so that tiles are not downscaled.
+         */
+        public Builder setTileSize(int tileSize) {
+            if (tileSize <= 0) {
+                throw new IllegalArgumentException("tileSize should be positive");
+            }
+            mTileSize = tileSize;
+            return this;
+        }
+
+        /**
+         * @param overlap The part of a tile shared with its neighbours, from 0 to 0.5. Objects smaller than
+         *                the overlap are seen whole by at least one tile. The default is 0.2.
+         */
+        public Builder setOverlap(float overlap) {
+            if (!(overlap >= 0 && overlap <= 0.5f)) {
+                throw new IllegalArgumentException("overlap should be between 0 and 0.5");
+            }
+            mOverlap = overlap;
+            return this;
+        }
+
+        /**
+         * @param fullFramePass true to also detect on the whole image downscaled to the tile size, to find
+         *                      objects larger than a tile. The default is true.
+         */
+        public Builder setFullFramePass(boolean fullFramePass) {
+            mFullFramePass = fullFramePass;
+            return this;
+        }
+
+        /**
+         * @param options The options of the detectors on each tile, such as the post-processor dropping the
+         *                background class. The default is the options of each detector.
+         */
+        public Builder setOptions(@NonNull ClassifyOptions options) {
+            mOptions = options;
+            return this;
+        }
+
+        /**
+         * @param merger The post-processor merging the detections of all tiles. The default is a per-class
+         *               non-maximum suppression at 0.5 intersection over union.
+         */
+        public Builder setMerger(@NonNull DetectionPostProcessor merger) {
+            mMerger = merger;
+            return this;
+        }
+
+        public TiledDetector build() {
+            return new TiledDetector(this);
+        }
+    }
+
+    private TiledDetector(Builder builder) {
+        mDetectors = builder.mDetectors;
+        mTileSize = builder.mTileSize;
+        mOverlap = builder.mOverlap;
+        mFullFramePass = builder.mFullFramePass;
+        mOptions = builder.mOptions;
+        mMerger = builder.mMerger != null ? builder.mMerger : new DetectionPostProcessor.Builder()
+                .setIouThreshold(DEFAULT_MERGE_IOU)
+                .build();
+        mDetections = new DetectionBatch[mDetectors.size()];
+        for (int i = 0; i != mDetections.length; i++) {
+            mDetections[i] = new DetectionBatch();
+        }
+        if (mDetectors.size() > 1) {
+            mExecutor = Executors.newFixedThreadPool(mDetectors.size() - 1, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Detect and locate objects in the tiles of the image.
+     * @return The detections, in image coordinates
+     */
+    @NonNull
+    public List<VisionDetRet> detect(@NonNull Bitmap bitmap) {
+        synchronized (mBatch) {
+            return detectPacked(bitmap).toList();
+        }
+    }
+
+    /**
+     * Detect and locate objects in the tiles of the image, without creating an object per detection.
+     * Returns early with no detections if the thread is interrupted.
+     * @return The detections in image coordinates, owned by this detector and overwritten by the next call
+     */
+    @NonNull
+    public DetectionBatch detectPacked(@NonNull final Bitmap bitmap) {
+        synchronized (mBatch) {
+            mBatch.clear();
+            int overlap = Math.round(mTileSize * mOverlap);
+            final int[] lefts = layoutAxis(bitmap.getWidth(), mTileSize, overlap);
+            final int[] tops = layoutAxis(bitmap.getHeight(), mTileSize, overlap);
+            final int tileCount = lefts.length * tops.length;
+            // Job -1 is the whole image pass, taken first as it may be the slowest one
+            final int firstJob = mFullFramePass && tileCount > 1 ? -1 : 0;
+            final AtomicInteger next = new AtomicInteger(firstJob);
+
+            List<Future<?>> helpers = new ArrayList<>();
+            int helperCount = Math.min(mDetectors.size(), tileCount - firstJob) - 1;
+            for (int i = 1; i <= helperCount; i++) {
+                final int worker = i;
+                helpers.add(mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        work(worker, bitmap, lefts, tops, next);
+                    }
+                }));
+            }
+
+            RuntimeException failure = null;
+            try {
+                work(0, bitmap, lefts, tops, next);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            // Stop handing out tiles if the calling thread failed, but let the running ones finish
+            next.set(tileCount);
+            boolean interrupted = false;
+            for (Future<?> helper : helpers) {
+                while (true) {
+                    try {
+                        helper.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof RuntimeException
+                                    ? (RuntimeException) e.getCause()
+                                    : new IllegalStateException(e.getCause());
+                        }
+                        break;
+                    }
+                }
+            }
+            if (interrupted || Thread.currentThread().isInterrupted()) {
+                Thread.currentThread().interrupt();
+                clearDetections();
+                return mBatch;
+            }
+            if (failure != null) {
+                clearDetections();
+                throw failure;
+            }
+
+            for (int i = 0; i <= helperCount; i++) {
+                mBatch.append(mDetections[i], 1f, 0f, 0f);
+            }
+            clearDetections();
+            mMerger.process(mBatch);
+            return mBatch;
+        }
+    }
+
+    /**
+     * Shut down the threads of the tiled detector. The detectors stay initialized and belong to the caller again.
+     */
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run a detector on the next jobs until none is left or the thread is interrupted.
+     */
+    private void work(int worker, Bitmap bitmap, int[] lefts, int[] tops, AtomicInteger next) {
+        ObjectDetector detector = mDetectors.get(worker);
+        DetectionBatch detections = mDetections[worker];
+        int tileWidth = Math.min(bitmap.getWidth(), mTileSize);
+        int tileHeight = Math.min(bitmap.getHeight(), mTileSize);
+        int job;
+        while ((job = next.getAndIncrement()) < lefts.length * tops.length
+                && !Thread.currentThread().isInterrupted()) {
+            if (job < 0) {
+                detectWhole(detector, bitmap, detections);
+                continue;
+            }
+            int left = lefts[job % lefts.length];
+            int top = tops[job / lefts.length];
+            Bitmap crop = StagingBitmaps.crop(bitmap, left, top, tileWidth, tileHeight);
+            try {
+                detections.append(detect(detector, crop), 1f, left, top);
+            } finally {
+                StagingBitmaps.release(crop);
+            }
+        }
+    }
+
+    private void detectWhole(ObjectDetector detector, Bitmap bitmap, DetectionBatch detections) {
+        float scale = (float) mTileSize / Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (scale >= 1f) {
+            detections.append(detect(detector, bitmap), 1f, 0f, 0f);
+            return;
+        }
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = StagingBitmaps.scale(bitmap, width, height);
+        try {
+            detections.append(detect(detector, scaled), (float) bitmap.getWidth() / width, 0f, 0f);
+        } finally {
+            StagingBitmaps.release(scaled);
+        }
+    }
+
+    private DetectionBatch detect(ObjectDetector detector, Bitmap bitmap) {
+        return mOptions != null ? detector.classifyPacked(bitmap, mOptions) : detector.classifyPacked(bitmap);
+    }
+
+    private void clearDetections() {
+        for (DetectionBatch detections : mDetections) {
+            detections.clear();
+        }
+    }
+
+    /**
+     * Cover one side of an image with tiles overlapping by at least the given number of pixels, spread
+     * evenly. The tiles of an image are every pair of a start on its width and one on its height.
+     * @return The start of each tile, a single 0 if the side is not longer than a tile
+     */
+    static int[] layoutAxis(int length, int tileSize, int overlap) {
+        if (length <= tileSize) {
+            return new int[]{0};
+        }
+        int step = Math.max(1, tileSize - overlap);
+        int count = (length - overlap + step - 1) / step;
+        count = Math.max(2, count);
+        int[] starts = new int[count];
+        for (int i = 0; i != count; i++) {
+            starts[i] = (int) ((long) i * (length - tileSize) / (count - 1));
+        }
+        return starts;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+/**
+ * Picks the K highest scores out of a probability array without boxing or sorting the whole array.
+ * The caller owns the output arrays, so repeated calls do not allocate.
+ */
+public final class TopKSelector {
+
+    private TopKSelector() throws InstantiationException {
+        throw new InstantiationException("This class is not for instantiation");
+    }
+
+    /**
+     * Select the top scores in descending order. Ties are broken by the lower index.
+     *
+     * @param scores        The scores to select from
+     * @param length        How many leading entries of scores to consider
+     * @param k             The maximum number of results
+     * @param minConfidence Scores below it are ignored
+     * @param outIndices    Receives the indices of the selected scores, must hold at least k entries
+     * @param outScores     Receives the selected scores, must hold at least k entries
+     * @return The number of selected entries, at most k
+     */
+    public static int select(float[] scores, int length, int k, float minConfidence,
+                             int[] outIndices, float[] outScores) {
+        if (k <= 0 || scores == null) {
+            return 0;
+        }
+        if (outIndices.length < k || outScores.length < k) {
+            throw new IllegalArgumentException("Output arrays are smaller than k");
+        }
+        length = Math.min(length, scores.length);
+
+        // outIndices/outScores are used as a min-heap whose root is the weakest selected entry
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            float score = scores[i];
+            if (!(score >= minConfidence)) {
+                continue;
+            }
+            if (size < k) {
+                outIndices[size] = i;
+                outScores[size] = score;
+                siftUp(outIndices, outScores, size);
+                size++;
+            } else if (score > outScores[0]) {
+                outIndices[0] = i;
+                outScores[0] = score;
+                siftDown(outIndices, outScores, 0, size);
+            }
+        }
+
+        // Heap sort in place: moving the weakest entry to the end leaves a descending order
+        for (int end = size - 1; end > 0; end--) {
+            swap(outIndices, outScores, 0, end);
+            siftDown(outIndices, outScores, 0, end);
+        }
+        return size;
+    }
+
+    /**
+     * @return true if entry a ranks below entry b
+     */
+    private static boolean weaker(int[] indices, float[] scores, int a, int b) {
+        if (scores[a] != scores[b]) {
+            return scores[a] < scores[b];
+        }
+        return indices[a] > indices[b];
+    }
+
+    private static void siftUp(int[] indices, float[] scores, int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!weaker(indices, scores, pos, parent)) {
+                break;
+            }
+            swap(indices, scores, pos, parent);
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(int[] indices, float[] scores, int pos, int size) {
+        while (true) {
+            int left = 2 * pos + 1;
+            if (left >= size) {
+                break;
+            }
+            int weakest = left;
+            int right = left + 1;
+            if (right < size && weaker(indices, scores, right, left)) {
+                weakest = right;
+            }
+            if (!weaker(indices, scores, weakest, pos)) {
+                break;
+            }
+            swap(indices, scores, pos, weakest);
+            pos = weakest;
+        }
+    }
+
+    private static void swap(int[] indices, float[] scores, int a, int b) {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Crops, rotates and resizes a {@link YuvFrame} straight into an ARGB bitmap of the model input
+ * size, sampling only the pixels it needs instead of converting the full frame first.
+ * <p>
+ * The output bitmap and pixel arrays are reused between calls, so a converter is not thread-safe
+ * and the returned bitmap is only valid until the next call.
+ */
+public final class YuvConverter {
+    private Bitmap mBitmap;
+    private int[] mArgb;
+    private int[] mColumns;
+    private int[] mRows;
+
+    /**
+     * @param frame           The source frame
+     * @param crop            The region of the frame to use, in frame coordinates, or null for the whole frame
+     * @param rotationDegrees The clockwise rotation to apply after cropping: 0, 90, 180 or 270
+     * @param dstWidth        The width of the output, after rotation
+     * @param dstHeight       The height of the output, after rotation
+     * @return The converted bitmap, owned by this converter
+     */
+    @NonNull
+    public Bitmap convert(@NonNull YuvFrame frame, @Nullable Rect crop, int rotationDegrees,
+                          int dstWidth, int dstHeight) {
+        int cropLeft = crop != null ? crop.left : 0;
+        int cropTop = crop != null ? crop.top : 0;
+        int cropWidth = crop != null ? crop.width() : frame.getWidth();
+        int cropHeight = crop != null ? crop.height() : frame.getHeight();
+        int[] argb = convertToArgb(frame, cropLeft, cropTop, cropWidth, cropHeight, rotationDegrees,
+                dstWidth, dstHeight);
+        if (mBitmap == null || mBitmap.getWidth() != dstWidth || mBitmap.getHeight() != dstHeight) {
+            mBitmap = Bitmap.createBitmap(dstWidth, dstHeight, Bitmap.Config.ARGB_8888);
+        }
+        mBitmap.setPixels(argb, 0, dstWidth, 0, 0, dstWidth, dstHeight);
+        return mBitmap;
+    }
+
+    /**
+     * Convert a region of a frame to ARGB pixels, row by row, without a bitmap. The crop is given in plain
+     * frame coordinates.
+     *
+     * @return The pixels, owned by this converter and holding dstWidth x dstHeight valid values
+     */
+    int[] convertToArgb(@NonNull YuvFrame frame, int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                        int rotationDegrees, int dstWidth, int dstHeight) {
+        if (rotationDegrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation should be a multiple of 90: " + rotationDegrees);
+        }
+        int rotation = ((rotationDegrees % 360) + 360) % 360;
+        if (cropLeft < 0 || cropTop < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropLeft + cropWidth > frame.getWidth() || cropTop + cropHeight > frame.getHeight()) {
+            throw new IllegalArgumentException("Crop is outside of the frame");
+        }
+        prepare(dstWidth, dstHeight);
+
+        // Sample positions along the rotated crop, taken at the center of each output pixel
+        boolean swap = rotation == 90 || rotation == 270;
+        int rotatedWidth = swap ? cropHeight : cropWidth;
+        int rotatedHeight = swap ? cropWidth : cropHeight;
+        for (int x = 0; x < dstWidth; x++) {
+            mColumns[x] = (int) (((2L * x + 1) * rotatedWidth) / (2L * dstWidth));
+        }
+        for (int y = 0; y < dstHeight; y++) {
+            mRows[y] = (int) (((2L * y + 1) * rotatedHeight) / (2L * dstHeight));
+        }
+
+        ByteBuffer yPlane = frame.getY();
+        ByteBuffer uPlane = frame.getU();
+        ByteBuffer vPlane = frame.getV();
+        int yRowStride = frame.getYRowStride();
+        int yPixelStride = frame.getYPixelStride();
+        int uvRowStride = frame.getUvRowStride();
+        int uvPixelStride = frame.getUvPixelStride();
+
+        int out = 0;
+        for (int y = 0; y < dstHeight; y++) {
+            int ry = mRows[y];
+            for (int x = 0; x < dstWidth; x++) {
+                int rx = mColumns[x];
+                int sx;
+                int sy;
+                switch (rotation) {
+                    case 90:
+                        sx = ry;
+                        sy = cropHeight - 1 - rx;
+                        break;
+                    case 180:
+                        sx = cropWidth - 1 - rx;
+                        sy = cropHeight - 1 - ry;
+                        break;
+                    case 270:
+                        sx = cropWidth - 1 - ry;
+                        sy = rx;
+                        break;
+                    default:
+                        sx = rx;
+                        sy = ry;
+                        break;
+                }
+                sx += cropLeft;
+                sy += cropTop;
+
+                int uvOffset = (sy >> 1) * uvRowStride + (sx >> 1) * uvPixelStride;
+                int luma = yPlane.get(sy * yRowStride + sx * yPixelStride) & 0xff;
+                int u = (uPlane.get(uvOffset) & 0xff) - 128;
+                int v = (vPlane.get(uvOffset) & 0xff) - 128;
+                mArgb[out++] = toArgb(luma, u, v);
+            }
+        }
+        return mArgb;
+    }
+
+    private void prepare(int dstWidth, int dstHeight) {
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Invalid output size " + dstWidth + "x" + dstHeight);
+        }
+        if (mArgb == null || mArgb.length < dstWidth * dstHeight) {
+            mArgb = new int[dstWidth * dstHeight];
+        }
+        if (mColumns == null || mColumns.length != dstWidth) {
+            mColumns = new int[dstWidth];
+        }
+        if (mRows == null || mRows.length != dstHeight) {
+            mRows = new int[dstHeight];
+        }
+    }
+
+    /**
+     * BT.601 full range conversion in 8 bit fixed point.
+     */
+    private static int toArgb(int luma, int u, int v) {
+        int r = luma + ((359 * v) >> 8);
+        int g = luma - ((88 * u + 183 * v) >> 8);
+        int b = luma + ((454 * u) >> 8);
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+}
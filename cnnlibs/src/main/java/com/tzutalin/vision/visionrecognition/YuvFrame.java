@@ -0,0 +1,115 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The planes of a YUV 4:2:0 frame with their strides, as produced by {@link Image#getPlanes()}.
+ * The buffers are not copied, so they must stay valid while the frame is classified.
+ */
+public final class YuvFrame {
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer mY;
+    private final ByteBuffer mU;
+    private final ByteBuffer mV;
+    private final int mYRowStride;
+    private final int mYPixelStride;
+    private final int mUvRowStride;
+    private final int mUvPixelStride;
+
+    /**
+     * @param width         The width of the luma plane
+     * @param height        The height of the luma plane
+     * @param y             The luma plane
+     * @param yRowStride    The number of bytes between two rows of the luma plane
+     * @param yPixelStride  The number of bytes between two pixels of a luma row
+     * @param u             The U (Cb) plane, subsampled by 2 in both directions
+     * @param v             The V (Cr) plane, subsampled by 2 in both directions
+     * @param uvRowStride   The number of bytes between two rows of the chroma planes
+     * @param uvPixelStride The number of bytes between two pixels of a chroma row, 2 for semi-planar data
+     */
+    public YuvFrame(int width, int height, @NonNull ByteBuffer y, int yRowStride, int yPixelStride,
+                    @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        mWidth = width;
+        mHeight = height;
+        mY = y;
+        mU = u;
+        mV = v;
+        mYRowStride = yRowStride;
+        mYPixelStride = yPixelStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+    }
+
+    /**
+     * Wrap the planes of a camera image. The image must not be closed before the frame is classified.
+     *
+     * @param image A {@link ImageFormat#YUV_420_888} image
+     */
+    @NonNull
+    public static YuvFrame fromImage(@NonNull Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported image format " + image.getFormat());
+        }
+        Image.Plane[] planes = image.getPlanes();
+        return new YuvFrame(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public ByteBuffer getY() {
+        return mY;
+    }
+
+    public ByteBuffer getU() {
+        return mU;
+    }
+
+    public ByteBuffer getV() {
+        return mV;
+    }
+
+    public int getYRowStride() {
+        return mYRowStride;
+    }
+
+    public int getYPixelStride() {
+        return mYPixelStride;
+    }
+
+    public int getUvRowStride() {
+        return mUvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return mUvPixelStride;
+    }
+}
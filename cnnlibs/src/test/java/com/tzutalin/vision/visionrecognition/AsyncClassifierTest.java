@@ -0,0 +1,231 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncClassifierTest {
+    private static final String BUSY = "busy";
+    private static final String FAIL = "fail";
+
+    private File mSynset;
+    private GatedClassifier mClassifier;
+    private AsyncClassifier<List<VisionDetRet>> mAsync;
+
+    @Before
+    public void setUp() throws IOException, IllegalAccessException {
+        mSynset = File.createTempFile("synset", ".txt");
+        mClassifier = new GatedClassifier(mSynset.getPath());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mClassifier.mGate.countDown();
+        if (mAsync != null) {
+            mAsync.shutdown();
+            mAsync.awaitTermination(5000);
+        }
+        mSynset.delete();
+    }
+
+    @Test
+    public void runsRequestsInOrder() throws Exception {
+        mAsync = new AsyncClassifier<>(mClassifier, 4, AsyncClassifier.OverflowPolicy.REJECT);
+        mClassifier.mGate.countDown();
+
+        Future<List<VisionDetRet>> a = mAsync.submitPath("a", null, null);
+        Future<List<VisionDetRet>> b = mAsync.submitPath("b", null, null);
+
+        assertEquals("a", a.get(5, TimeUnit.SECONDS).get(0).getLabel());
+        assertEquals("b", b.get(5, TimeUnit.SECONDS).get(0).getLabel());
+        assertEquals(Arrays.asList("a", "b"), mClassifier.paths());
+    }
+
+    @Test
+    public void rejectsWhenTheQueueIsFull() throws Exception {
+        mAsync = new AsyncClassifier<>(mClassifier, 2, AsyncClassifier.OverflowPolicy.REJECT);
+        startBusyRequest();
+        mAsync.submitPath("a", null, null);
+        mAsync.submitPath("b", null, null);
+        ErrorCallback callback = new ErrorCallback();
+
+        Future<List<VisionDetRet>> c = mAsync.submitPath("c", null, callback);
+
+        assertTrue(callback.await() instanceof RejectedExecutionException);
+        try {
+            c.get(5, TimeUnit.SECONDS);
+            fail("Rejected request completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(2, mAsync.getPendingCount());
+        assertEquals(0, mAsync.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestCancelsTheOldestQueuedRequest() throws Exception {
+        mAsync = new AsyncClassifier<>(mClassifier, 2, AsyncClassifier.OverflowPolicy.DROP_OLDEST);
+        startBusyRequest();
+        ErrorCallback callback = new ErrorCallback();
+        Future<List<VisionDetRet>> a = mAsync.submitPath("a", null, callback);
+        mAsync.submitPath("b", null, null);
+        Future<List<VisionDetRet>> c = mAsync.submitPath("c", null, null);
+
+        assertTrue(callback.await() instanceof CancellationException);
+        assertTrue(a.isCancelled());
+        assertEquals(1, mAsync.getDroppedCount());
+        mClassifier.mGate.countDown();
+        c.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(BUSY, "b", "c"), mClassifier.paths());
+    }
+
+    @Test
+    public void latestWinsKeepsOnlyTheNewestRequest() throws Exception {
+        mAsync = new AsyncClassifier<>(mClassifier, 4, AsyncClassifier.OverflowPolicy.LATEST_WINS);
+        startBusyRequest();
+        Future<List<VisionDetRet>> a = mAsync.submitPath("a", null, null);
+        Future<List<VisionDetRet>> b = mAsync.submitPath("b", null, null);
+        Future<List<VisionDetRet>> c = mAsync.submitPath("c", null, null);
+
+        assertTrue(a.isCancelled());
+        assertTrue(b.isCancelled());
+        assertEquals(2, mAsync.getDroppedCount());
+        mClassifier.mGate.countDown();
+        c.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(BUSY, "c"), mClassifier.paths());
+    }
+
+    @Test
+    public void deliversClassifierErrors() throws Exception {
+        mAsync = new AsyncClassifier<>(mClassifier, 4, AsyncClassifier.OverflowPolicy.REJECT);
+        mClassifier.mGate.countDown();
+        ErrorCallback callback = new ErrorCallback();
+
+        mAsync.submitPath(FAIL, null, callback);
+
+        assertTrue(callback.await() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void shutdownCancelsQueuedRequestsAndRejectsNewOnes() throws Exception {
+        mAsync = new AsyncClassifier<>(mClassifier, 4, AsyncClassifier.OverflowPolicy.REJECT);
+        Future<List<VisionDetRet>> busy = startBusyRequest();
+        Future<List<VisionDetRet>> queued = mAsync.submitPath("a", null, null);
+
+        mAsync.shutdown();
+        ErrorCallback callback = new ErrorCallback();
+        mAsync.submitPath("b", null, callback);
+
+        assertTrue(queued.isCancelled());
+        assertTrue(callback.await() instanceof RejectedExecutionException);
+        // The running request completes before the thread stops
+        mClassifier.mGate.countDown();
+        assertEquals(BUSY, busy.get(5, TimeUnit.SECONDS).get(0).getLabel());
+        mAsync.awaitTermination(5000);
+        assertEquals(Collections.singletonList(BUSY), mClassifier.paths());
+    }
+
+    /**
+     * Submit a request and wait until the inference thread is blocked on it, so that the next ones queue.
+     */
+    private Future<List<VisionDetRet>> startBusyRequest() throws InterruptedException {
+        Future<List<VisionDetRet>> busy = mAsync.submitPath(BUSY, null, null);
+        assertTrue(mClassifier.mStarted.await(5, TimeUnit.SECONDS));
+        return busy;
+    }
+
+    private static final class ErrorCallback implements AsyncClassifier.Callback<List<VisionDetRet>> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final AtomicReference<Throwable> mError = new AtomicReference<>();
+
+        @Override
+        public void onResult(List<VisionDetRet> result) {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mError.set(error);
+            mDone.countDown();
+        }
+
+        Throwable await() throws InterruptedException {
+            assertTrue(mDone.await(5, TimeUnit.SECONDS));
+            return mError.get();
+        }
+    }
+
+    /**
+     * Answers each path with a single result labelled by it, holding the busy path until the gate opens.
+     */
+    private static final class GatedClassifier extends SceneClassifier {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+        private final List<String> mPaths = new ArrayList<>();
+
+        GatedClassifier(String synsetPath) throws IllegalAccessException {
+            super(null, "model", "weights", null, synsetPath, SimulatedBackend.forClassification(2));
+        }
+
+        @Override
+        public List<VisionDetRet> classifyByPath(String imgPath, @NonNull ClassifyOptions options) {
+            synchronized (mPaths) {
+                mPaths.add(imgPath);
+            }
+            if (BUSY.equals(imgPath)) {
+                mStarted.countDown();
+                try {
+                    mGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (FAIL.equals(imgPath)) {
+                throw new IllegalStateException("Cannot classify " + imgPath);
+            }
+            return Collections.singletonList(new VisionDetRet(imgPath, 1f, 0, 0, 0, 0));
+        }
+
+        List<String> paths() {
+            synchronized (mPaths) {
+                return new ArrayList<>(mPaths);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchPipelineTest {
+    private static final String FAIL = "fail";
+
+    private final List<File> mFiles = new ArrayList<>();
+    private CountingClassifier mClassifier;
+    private CountingLoader mLoader;
+
+    @Before
+    public void setUp() throws IOException {
+        File synset = write("background\ncat\ndog\nbird\n");
+        mClassifier = new CountingClassifier(synset.getPath());
+        mClassifier.init(224, 224);
+        mLoader = new CountingLoader();
+    }
+
+    @After
+    public void tearDown() {
+        mClassifier.deInit();
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void deliversInInputOrder() throws IOException {
+        List<String> paths = Arrays.asList(write("a").getPath(), write("b").getPath(), write("c").getPath());
+        RecordingCallback callback = new RecordingCallback();
+
+        BatchPipeline.run(mClassifier, paths, mLoader, options(true), callback);
+
+        assertEquals(Arrays.asList(0, 1, 2), callback.mIndices);
+        assertEquals(3, mClassifier.mCalls.get());
+        assertEquals(3, mLoader.mReleased.get());
+    }
+
+    @Test
+    public void deliversEveryInputUnordered() throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i != 10; i++) {
+            paths.add(write("image" + i).getPath());
+        }
+        RecordingCallback callback = new RecordingCallback();
+
+        BatchPipeline.run(mClassifier, paths, mLoader, options(false), callback);
+
+        List<Integer> indices = new ArrayList<>(callback.mIndices);
+        Collections.sort(indices);
+        assertEquals(10, indices.size());
+        for (int i = 0; i != 10; i++) {
+            assertEquals(i, (int) indices.get(i));
+        }
+    }
+
+    @Test
+    public void deliversLoadFailuresWithTheirIndex() throws IOException {
+        List<String> paths = Arrays.asList(write("a").getPath(), FAIL, write("c").getPath());
+        RecordingCallback callback = new RecordingCallback();
+
+        BatchPipeline.run(mClassifier, paths, mLoader, options(true), callback);
+
+        assertEquals(Arrays.asList(0, 2), callback.mIndices);
+        assertEquals(Collections.singletonList(1), callback.mErrors);
+    }
+
+    @Test
+    public void cachedFilesSkipTheDecoderAndTheNet() throws IOException {
+        mClassifier.setResultCache(new ResultCache.Builder().build());
+        List<String> paths = Arrays.asList(write("a").getPath(), write("b").getPath());
+        BatchPipeline.run(mClassifier, paths, mLoader, options(true), new RecordingCallback());
+        mLoader.mLoaded.set(0);
+        mClassifier.mCalls.set(0);
+        RecordingCallback callback = new RecordingCallback();
+
+        BatchPipeline.run(mClassifier, paths, mLoader, options(true), callback);
+
+        assertEquals(Arrays.asList(0, 1), callback.mIndices);
+        assertEquals(0, mLoader.mLoaded.get());
+        assertEquals(0, mClassifier.mCalls.get());
+        assertEquals("cat", callback.mResults.get(0).get(0).getLabel());
+    }
+
+    @Test
+    public void theTargetSizeIsPartOfTheKey() throws IOException {
+        mClassifier.setResultCache(new ResultCache.Builder().build());
+        List<String> paths = Collections.singletonList(write("a").getPath());
+        BatchPipeline.run(mClassifier, paths, mLoader, options(true), new RecordingCallback());
+
+        BatchOptions larger = new BatchOptions.Builder().setTargetSize(448).build();
+        BatchPipeline.run(mClassifier, paths, mLoader, larger, new RecordingCallback());
+
+        assertEquals(2, mLoader.mLoaded.get());
+        assertEquals(2, mClassifier.mCalls.get());
+    }
+
+    private static BatchOptions options(boolean ordered) {
+        return new BatchOptions.Builder().setDecodeThreads(2).setTargetSize(224).setOrdered(ordered).build();
+    }
+
+    private File write(String content) throws IOException {
+        File file = File.createTempFile("batch", ".jpg");
+        mFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Returns a fixed result without touching the bitmap, which the loader below never creates.
+     */
+    private static final class CountingClassifier extends SceneClassifier {
+        final AtomicInteger mCalls = new AtomicInteger();
+
+        CountingClassifier(String synsetPath) {
+            super(null, "model", "weights", null, synsetPath, SimulatedBackend.forClassification(4));
+        }
+
+        @Override
+        public List<VisionDetRet> classify(Bitmap bitmap, @NonNull ClassifyOptions options) {
+            mCalls.incrementAndGet();
+            List<VisionDetRet> results = new ArrayList<>();
+            results.add(new VisionDetRet("cat", 0.9f, 0, 0, 0, 0));
+            return results;
+        }
+    }
+
+    private static final class CountingLoader implements BatchPipeline.Loader<String> {
+        final AtomicInteger mLoaded = new AtomicInteger();
+        final AtomicInteger mReleased = new AtomicInteger();
+
+        @NonNull
+        @Override
+        public Bitmap load(String path, int targetSize) throws IOException {
+            if (FAIL.equals(path)) {
+                throw new IOException("Cannot decode " + path);
+            }
+            mLoaded.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public String pathOf(String path) {
+            return path;
+        }
+
+        @Override
+        public void release(String path, Bitmap loaded) {
+            mReleased.incrementAndGet();
+        }
+    }
+
+    private static final class RecordingCallback implements CaffeClassifier.BatchCallback<List<VisionDetRet>> {
+        final List<Integer> mIndices = new ArrayList<>();
+        final List<List<VisionDetRet>> mResults = new ArrayList<>();
+        final List<Integer> mErrors = new ArrayList<>();
+
+        @Override
+        public void onResult(int index, List<VisionDetRet> result) {
+            mIndices.add(index);
+            mResults.add(result);
+        }
+
+        @Override
+        public void onError(int index, Throwable error) {
+            mErrors.add(index);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClassifierPoolTest {
+    private static final String GATED = "gated";
+
+    private File mSynset;
+    private final CountDownLatch mGate = new CountDownLatch(1);
+    private final CountDownLatch mEntered = new CountDownLatch(1);
+    private ClassifierPool<List<VisionDetRet>> mPool;
+
+    @Before
+    public void setUp() throws IOException {
+        mSynset = File.createTempFile("synset", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        mGate.countDown();
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+        mSynset.delete();
+    }
+
+    @Test
+    public void runsEveryRequest() throws Exception {
+        mPool = new ClassifierPool.Builder<>(factory(false), 224, 224).setMaxSize(3).build();
+        List<Future<List<VisionDetRet>>> futures = new ArrayList<>();
+
+        for (int i = 0; i != 50; i++) {
+            futures.add(mPool.submitByPath("image" + i));
+        }
+
+        assertEquals(3, mPool.getSize());
+        for (int i = 0; i != futures.size(); i++) {
+            assertEquals("image" + i, futures.get(i).get(5, TimeUnit.SECONDS).get(0).getLabel());
+        }
+        long tasks = 0;
+        for (ClassifierPool.InstanceStats stats : mPool.getInstanceStats()) {
+            tasks += stats.getTaskCount();
+        }
+        assertEquals(50, tasks);
+    }
+
+    @Test
+    public void processWideBackendsGetASingleInstance() throws Exception {
+        mPool = new ClassifierPool.Builder<>(factory(true), 224, 224).setMaxSize(4).build();
+
+        assertEquals(1, mPool.getSize());
+    }
+
+    @Test
+    public void idleInstancesTakeRequestsQueuedBehindABusyOne() throws Exception {
+        mPool = new ClassifierPool.Builder<>(factory(false), 224, 224).setMaxSize(2).build();
+        mPool.submitByPath(GATED);
+        assertTrue(mEntered.await(5, TimeUnit.SECONDS));
+
+        // Whichever queue these land in, the free instance runs them while the other one is blocked
+        for (int i = 0; i != 4; i++) {
+            assertEquals("image" + i, mPool.submitByPath("image" + i).get(5, TimeUnit.SECONDS).get(0).getLabel());
+        }
+    }
+
+    @Test
+    public void shutdownCancelsQueuedRequests() throws Exception {
+        mPool = new ClassifierPool.Builder<>(factory(false), 224, 224).setMaxSize(1).build();
+        Future<List<VisionDetRet>> running = mPool.submitByPath(GATED);
+        assertTrue(mEntered.await(5, TimeUnit.SECONDS));
+        Future<List<VisionDetRet>> queued = mPool.submitByPath("queued");
+
+        mPool.shutdown();
+        mGate.countDown();
+
+        assertTrue(queued.isCancelled());
+        assertEquals(GATED, running.get(5, TimeUnit.SECONDS).get(0).getLabel());
+        try {
+            mPool.submitByPath("late");
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void requestsRacingShutdownAreRunOrCancelled() throws Exception {
+        mGate.countDown();
+        for (int round = 0; round != 20; round++) {
+            final ClassifierPool<List<VisionDetRet>> pool =
+                    new ClassifierPool.Builder<>(factory(false), 224, 224).setMaxSize(2).build();
+            final List<Future<List<VisionDetRet>>> futures = new ArrayList<>();
+            Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Future<List<VisionDetRet>> future = pool.submitByPath("image");
+                            synchronized (futures) {
+                                futures.add(future);
+                            }
+                        }
+                    } catch (IllegalStateException e) {
+                        // Shut down
+                    }
+                }
+            });
+            submitter.start();
+            Thread.sleep(2);
+            pool.shutdown();
+            submitter.join(5000);
+
+            synchronized (futures) {
+                for (Future<List<VisionDetRet>> future : futures) {
+                    if (!future.isCancelled()) {
+                        future.get(5, TimeUnit.SECONDS);
+                    }
+                }
+            }
+        }
+    }
+
+    private ClassifierPool.Factory<List<VisionDetRet>> factory(final boolean processWide) {
+        return new ClassifierPool.Factory<List<VisionDetRet>>() {
+            @NonNull
+            @Override
+            public CaffeClassifier<List<VisionDetRet>> create() throws IllegalAccessException {
+                return new EchoClassifier(mSynset.getPath(), processWide);
+            }
+        };
+    }
+
+    /**
+     * Answers with the path as label, blocking on the gate for the gated path.
+     */
+    private final class EchoClassifier extends SceneClassifier {
+        private final boolean mProcessWide;
+
+        EchoClassifier(String synsetPath, boolean processWide) throws IllegalAccessException {
+            super(null, "model", "weights", null, synsetPath, SimulatedBackend.forClassification(3));
+            mProcessWide = processWide;
+        }
+
+        @Override
+        public List<VisionDetRet> classifyByPath(String imgPath, @NonNull ClassifyOptions options) {
+            if (GATED.equals(imgPath)) {
+                mEntered.countDown();
+                try {
+                    mGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<VisionDetRet> results = new ArrayList<>();
+            results.add(new VisionDetRet(imgPath, 1f, 0, 0, 0, 0));
+            return results;
+        }
+
+        @Override
+        boolean isBackendProcessWide() {
+            return mProcessWide;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DetectionPostProcessorTest {
+    private static final int CAT = 1;
+    private static final int DOG = 2;
+
+    @Test
+    public void hardNmsDropsOverlapsOfTheSameClass() {
+        DetectionBatch batch = batch(
+                new float[]{CAT, 0.9f, 0, 0, 100, 100},
+                new float[]{CAT, 0.8f, 10, 0, 110, 100},
+                new float[]{DOG, 0.7f, 10, 0, 110, 100},
+                new float[]{CAT, 0.6f, 300, 300, 400, 400});
+
+        new DetectionPostProcessor.Builder().build().process(batch);
+
+        assertEquals(3, batch.size());
+        assertDetection(batch, 0, CAT, 0.9f);
+        assertDetection(batch, 1, DOG, 0.7f);
+        assertDetection(batch, 2, CAT, 0.6f);
+    }
+
+    @Test
+    public void classAgnosticNmsDropsOverlapsOfAnyClass() {
+        DetectionBatch batch = batch(
+                new float[]{CAT, 0.9f, 0, 0, 100, 100},
+                new float[]{DOG, 0.7f, 10, 0, 110, 100});
+
+        new DetectionPostProcessor.Builder()
+                .setNmsMode(DetectionPostProcessor.NmsMode.CLASS_AGNOSTIC)
+                .build()
+                .process(batch);
+
+        assertEquals(1, batch.size());
+        assertDetection(batch, 0, CAT, 0.9f);
+    }
+
+    @Test
+    public void thresholdsAndDroppedClassesComeFirst() {
+        DetectionBatch batch = batch(
+                new float[]{0, 0.99f, 0, 0, 100, 100},
+                new float[]{CAT, 0.4f, 200, 0, 300, 100},
+                new float[]{DOG, 0.4f, 400, 0, 500, 100},
+                new float[]{DOG, 0.2f, 600, 0, 700, 100});
+
+        new DetectionPostProcessor.Builder()
+                .dropClass(0)
+                .setDefaultThreshold(0.3f)
+                .setClassThreshold(CAT, 0.5f)
+                .build()
+                .process(batch);
+
+        assertEquals(1, batch.size());
+        assertDetection(batch, 0, DOG, 0.4f);
+    }
+
+    @Test
+    public void softNmsDecaysOverlapsInsteadOfDroppingThem() {
+        DetectionBatch batch = batch(
+                new float[]{CAT, 0.9f, 0, 0, 100, 100},
+                new float[]{CAT, 0.8f, 10, 0, 110, 100},
+                new float[]{CAT, 0.6f, 300, 300, 400, 400});
+
+        new DetectionPostProcessor.Builder().setSoftNms(true, 0.5f).build().process(batch);
+
+        assertEquals(3, batch.size());
+        assertDetection(batch, 0, CAT, 0.9f);
+        assertDetection(batch, 1, CAT, 0.6f);
+        // IoU of the overlapping boxes is 90 / 110
+        float iou = 90f / 110f;
+        assertEquals(0.8f * Math.exp(-iou * iou / 0.5f), batch.getScore(2), 1e-5);
+    }
+
+    @Test
+    public void softNmsDropsScoresDecayedBelowTheThreshold() {
+        DetectionBatch batch = batch(
+                new float[]{CAT, 0.9f, 0, 0, 100, 100},
+                new float[]{CAT, 0.8f, 1, 0, 101, 100});
+
+        new DetectionPostProcessor.Builder()
+                .setDefaultThreshold(0.5f)
+                .setSoftNms(true, 0.5f)
+                .build()
+                .process(batch);
+
+        assertEquals(1, batch.size());
+    }
+
+    @Test
+    public void keepsAtMostMaxDetections() {
+        DetectionBatch batch = batch(
+                new float[]{CAT, 0.5f, 0, 0, 10, 10},
+                new float[]{CAT, 0.9f, 100, 0, 110, 10},
+                new float[]{CAT, 0.7f, 200, 0, 210, 10});
+
+        new DetectionPostProcessor.Builder().setMaxDetections(2).build().process(batch);
+
+        assertEquals(2, batch.size());
+        assertDetection(batch, 0, CAT, 0.9f);
+        assertDetection(batch, 1, CAT, 0.7f);
+    }
+
+    @Test
+    public void gridGivesTheSameResultAsAllPairs() {
+        Random random = new Random(7);
+        for (int round = 0; round != 20; round++) {
+            int count = 50 + random.nextInt(500);
+            float[][] detections = new float[count][];
+            for (int i = 0; i != count; i++) {
+                // Boxes of very different sizes, so that some span many cells of the grid
+                float left = random.nextFloat() * 1000;
+                float top = random.nextFloat() * 1000;
+                float size = random.nextBoolean() ? 5 + random.nextFloat() * 50 : 100 + random.nextFloat() * 600;
+                detections[i] = new float[]{1 + random.nextInt(3), random.nextFloat(),
+                        left, top, left + size, top + size * (0.5f + random.nextFloat())};
+            }
+            DetectionBatch batch = batch(detections);
+
+            new DetectionPostProcessor.Builder().setIouThreshold(0.4f).build().process(batch);
+
+            List<float[]> expected = referenceNms(detections, 0.4f);
+            assertEquals(expected.size(), batch.size());
+            for (int i = 0; i != expected.size(); i++) {
+                assertDetection(batch, i, (int) expected.get(i)[0], expected.get(i)[1]);
+                assertEquals(expected.get(i)[2], batch.getLeft(i), 0f);
+            }
+        }
+    }
+
+    /**
+     * Per-class hard NMS comparing every pair of boxes.
+     */
+    private static List<float[]> referenceNms(float[][] detections, float iouThreshold) {
+        List<float[]> sorted = new ArrayList<>();
+        Collections.addAll(sorted, detections);
+        // Stable, so that equal scores keep their batch order like the post-processor
+        Collections.sort(sorted, new Comparator<float[]>() {
+            @Override
+            public int compare(float[] a, float[] b) {
+                return Float.compare(b[1], a[1]);
+            }
+        });
+        List<float[]> kept = new ArrayList<>();
+        for (float[] candidate : sorted) {
+            boolean suppressed = false;
+            for (float[] other : kept) {
+                if (other[0] == candidate[0] && iou(other, candidate) > iouThreshold) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    private static float iou(float[] a, float[] b) {
+        float width = Math.min(a[4], b[4]) - Math.max(a[2], b[2]);
+        float height = Math.min(a[5], b[5]) - Math.max(a[3], b[3]);
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        float inter = width * height;
+        return inter / ((a[4] - a[2]) * (a[5] - a[3]) + (b[4] - b[2]) * (b[5] - b[3]) - inter);
+    }
+
+    /**
+     * @param detections Each as class id, score, left, top, right and bottom
+     */
+    private static DetectionBatch batch(float[]... detections) {
+        DetectionBatch batch = new DetectionBatch(detections.length);
+        batch.setSize(detections.length);
+        for (int i = 0; i != detections.length; i++) {
+            float[] d = detections[i];
+            batch.set(i, (int) d[0], d[1], d[2], d[3], d[4], d[5]);
+        }
+        return batch;
+    }
+
+    private static void assertDetection(DetectionBatch batch, int index, int classId, float score) {
+        assertTrue("Only " + batch.size() + " detections", index < batch.size());
+        assertEquals(classId, batch.getClassId(index));
+        assertEquals(score, batch.getScore(index), 1e-6);
+    }
+}
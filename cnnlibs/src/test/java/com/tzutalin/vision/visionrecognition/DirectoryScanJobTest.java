@@ -0,0 +1,166 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryScanJobTest {
+    private File mRoot;
+    private File mOutput;
+    private SceneClassifier mClassifier;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("scan", "");
+        mRoot.delete();
+        mRoot.mkdirs();
+        write(new File(mRoot, "a.jpg"), "a");
+        write(new File(mRoot, "b.jpg"), "b");
+        write(new File(mRoot, "notes.txt"), "not an image");
+        new File(mRoot, "sub").mkdir();
+        write(new File(mRoot, "sub/c.png"), "c");
+        mOutput = new File(mRoot.getPath() + ".csv");
+
+        File synset = new File(mRoot.getPath() + ".synset");
+        write(synset, "background\ncat\ndog\nbird\n");
+        mClassifier = new SceneClassifier(null, "model", "weights", null, synset.getPath(),
+                SimulatedBackend.forClassification(4));
+        mClassifier.init(224, 224);
+    }
+
+    @After
+    public void tearDown() {
+        mClassifier.deInit();
+        delete(mRoot);
+        mOutput.delete();
+        new File(mRoot.getPath() + ".synset").delete();
+    }
+
+    @Test
+    public void writesOneLinePerImage() throws IOException {
+        DirectoryScanJob.Summary summary = new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+
+        assertEquals(3, summary.getClassifiedCount());
+        assertEquals(0, summary.getSkippedCount());
+        assertTrue(summary.isComplete());
+        List<String> paths = firstFields(mOutput);
+        assertEquals(3, paths.size());
+        assertEquals("a.jpg", paths.get(0));
+        assertEquals("b.jpg", paths.get(1));
+        assertEquals("sub/c.png", paths.get(2));
+    }
+
+    @Test
+    public void resumesWithoutClassifyingTwice() throws IOException {
+        new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+        write(new File(mRoot, "d.jpg"), "d");
+
+        DirectoryScanJob.Summary summary = new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+
+        assertEquals(1, summary.getClassifiedCount());
+        assertEquals(3, summary.getSkippedCount());
+        assertEquals(4, firstFields(mOutput).size());
+    }
+
+    @Test
+    public void dropsTheLineCutByACrash() throws IOException {
+        write(mOutput, "a.jpg,cat:0.9000\nsub/c.pn");
+
+        DirectoryScanJob.Summary summary = new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+
+        assertEquals(2, summary.getClassifiedCount());
+        assertEquals(1, summary.getSkippedCount());
+        List<String> paths = firstFields(mOutput);
+        assertEquals(3, paths.size());
+        assertEquals("a.jpg", paths.get(0));
+        assertEquals("b.jpg", paths.get(1));
+        assertEquals("sub/c.png", paths.get(2));
+    }
+
+    @Test
+    public void quotesPathsWithCommas() throws IOException {
+        write(new File(mRoot, "x,y.jpg"), "xy");
+        new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+
+        DirectoryScanJob.Summary summary = new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+
+        assertEquals(0, summary.getClassifiedCount());
+        assertEquals(4, summary.getSkippedCount());
+    }
+
+    @Test
+    public void rescansHitTheResultCache() throws IOException {
+        ResultCache cache = new ResultCache.Builder().build();
+        mClassifier.setResultCache(cache);
+        new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+        mOutput.delete();
+
+        DirectoryScanJob.Summary summary = new DirectoryScanJob.Builder(mClassifier, mRoot, mOutput).build().run();
+
+        assertEquals(3, summary.getClassifiedCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(3, firstFields(mOutput).size());
+    }
+
+    private static List<String> firstFields(File file) throws IOException {
+        List<String> fields = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                fields.add(comma >= 0 ? line.substring(0, comma) : line);
+            }
+        } finally {
+            reader.close();
+        }
+        return fields;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LabelTableTest {
+    private File mFile;
+
+    @After
+    public void tearDown() {
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
+    @Test
+    public void readsTheLabelOfEachLine() {
+        LabelTable table = LabelTable.of("n01440764 tench, Tinca tinca", "/a/abbey 0", "background");
+
+        assertEquals(3, table.size());
+        assertEquals("n01440764", table.getLabel(0));
+        assertEquals("abbey", table.getLabel(1));
+        assertEquals("background", table.getLabel(2));
+        assertEquals("n01440764 tench, Tinca tinca", table.getDescription(0));
+    }
+
+    @Test
+    public void returnsNullOutOfRange() {
+        LabelTable table = LabelTable.of("cat");
+
+        assertNull(table.getLabel(-1));
+        assertNull(table.getLabel(1));
+        assertNull(table.getDescription(1));
+    }
+
+    @Test
+    public void indexOfFindsTheFirstLine() {
+        LabelTable table = LabelTable.of("cat", "dog", "cat");
+
+        assertEquals(0, table.indexOf("cat"));
+        assertEquals(1, table.indexOf("dog"));
+        assertEquals(-1, table.indexOf("bird"));
+    }
+
+    @Test
+    public void mapsFilesWithCrLfAndNoFinalLineBreak() throws IOException {
+        mFile = write("background\r\n/a/cat 1\r\ndog");
+
+        LabelTable table = LabelTable.map(mFile);
+
+        assertNotNull(table);
+        assertEquals(3, table.size());
+        assertEquals("background", table.getLabel(0));
+        assertEquals("cat", table.getLabel(1));
+        assertEquals("dog", table.getLabel(2));
+        assertEquals("/a/cat 1", table.getDescription(1));
+    }
+
+    @Test
+    public void openSharesTablesUntilTheFileChanges() throws IOException {
+        mFile = write("cat\ndog\n");
+
+        LabelTable first = LabelTable.open(mFile.getPath());
+        LabelTable second = LabelTable.open(mFile.getPath());
+        assertTrue(first == second);
+
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write("bird\n".getBytes("UTF-8"));
+        out.close();
+        LabelTable changed = LabelTable.open(mFile.getPath());
+
+        assertNotNull(changed);
+        assertEquals(3, changed.size());
+    }
+
+    private static File write(String content) throws IOException {
+        File file = File.createTempFile("synset", ".txt");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallDurationsHaveTheirOwnBucket() {
+        for (long micros = 0; micros != 8; micros++) {
+            assertEquals(micros, LatencyHistogram.bucketOf(micros));
+            assertEquals(micros, LatencyHistogram.upperBoundOf((int) micros));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        long lower = 0;
+        for (int bucket = 0; bucket != 200; bucket++) {
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue("Bucket " + bucket + " is empty", upper >= lower);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+            lower = upper + 1;
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighthOfTheirBound() {
+        for (long micros = 8; micros < 10000000; micros = micros * 3 / 2 + 1) {
+            long upper = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(micros));
+            assertTrue(upper >= micros);
+            assertTrue(micros + " falls in a bucket up to " + upper, upper - micros <= micros / 8);
+        }
+    }
+
+    @Test
+    public void hugeDurationsGoToTheLastBucket() {
+        assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE), LatencyHistogram.bucketOf(1L << 50));
+    }
+
+    @Test
+    public void percentilesComeFromTheBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50500, snapshot.getMeanMicros());
+        assertEquals(100000, snapshot.getMaxMicros());
+        assertEquals(100000, snapshot.getPercentileMicros(100));
+        long p50 = snapshot.getP50Micros();
+        assertTrue("p50 " + p50, p50 >= 50000 && p50 <= 50000 + 50000 / 8);
+        long p95 = snapshot.getP95Micros();
+        assertTrue("p95 " + p95, p95 >= 95000 && p95 <= 100000);
+    }
+
+    @Test
+    public void resetForgetsEveryDuration() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5000);
+        histogram.reset();
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getP99Micros());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPercentiles() {
+        new LatencyHistogram().snapshot().getPercentileMicros(101);
+    }
+}
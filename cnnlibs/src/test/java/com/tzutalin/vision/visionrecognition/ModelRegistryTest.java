@@ -0,0 +1,175 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ModelRegistryTest {
+    private File mSynset;
+    private ModelRegistry mRegistry;
+
+    @Before
+    public void setUp() throws IOException {
+        mSynset = File.createTempFile("synset", ".txt");
+        FileOutputStream out = new FileOutputStream(mSynset);
+        try {
+            out.write("background\ncat\ndog\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        mRegistry = new ModelRegistry();
+        mRegistry.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        mSynset.delete();
+    }
+
+    @Test
+    public void equivalentClassifiersShareOneLoad() throws IllegalAccessException {
+        CountingClassifier first = classifier("a", false);
+        CountingClassifier second = classifier("a", false);
+
+        ModelRegistry.Lease<CountingClassifier> lease1 = mRegistry.acquire(first, 224, 224);
+        ModelRegistry.Lease<CountingClassifier> lease2 = mRegistry.acquire(second, 224, 224);
+
+        assertSame(first, lease2.get());
+        assertEquals(1, first.mInits);
+        assertEquals(0, second.mInits);
+        lease1.release();
+        lease2.release();
+    }
+
+    @Test
+    public void unloadsWhenTheLastLeaseIsReleased() throws IllegalAccessException {
+        CountingClassifier classifier = classifier("a", false);
+        ModelRegistry.Lease<CountingClassifier> lease1 = mRegistry.acquire(classifier, 224, 224);
+        ModelRegistry.Lease<CountingClassifier> lease2 = mRegistry.acquire(classifier, 224, 224);
+
+        lease1.release();
+        lease1.release();
+        assertEquals(0, classifier.mDeInits);
+        lease2.release();
+
+        assertEquals(1, classifier.mDeInits);
+    }
+
+    @Test
+    public void keepsIdleClassifiersUntilTheTimeout() throws Exception {
+        mRegistry.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+        CountingClassifier classifier = classifier("a", false);
+
+        mRegistry.acquire(classifier, 224, 224).release();
+        // Leased again before the timeout, so not loaded twice
+        mRegistry.acquire(classifier("a", false), 224, 224).release();
+        assertEquals(1, classifier.mInits);
+        assertEquals(0, classifier.mDeInits);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (classifier.mDeInits == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, classifier.mDeInits);
+    }
+
+    @Test
+    public void releaseIdleSkipsTheTimeout() throws IllegalAccessException {
+        mRegistry.setIdleTimeout(1, TimeUnit.HOURS);
+        CountingClassifier idle = classifier("a", false);
+        CountingClassifier leased = classifier("b", false);
+        mRegistry.acquire(idle, 224, 224).release();
+        ModelRegistry.Lease<CountingClassifier> lease = mRegistry.acquire(leased, 224, 224);
+
+        mRegistry.releaseIdle();
+
+        assertEquals(1, idle.mDeInits);
+        assertEquals(0, leased.mDeInits);
+        lease.release();
+    }
+
+    @Test
+    public void anotherModelOfAProcessWideBackendReplacesAnIdleOne() throws IllegalAccessException {
+        mRegistry.setIdleTimeout(1, TimeUnit.HOURS);
+        CountingClassifier first = classifier("a", true);
+        CountingClassifier second = classifier("b", true);
+        mRegistry.acquire(first, 224, 224).release();
+
+        ModelRegistry.Lease<CountingClassifier> lease = mRegistry.acquire(second, 224, 224);
+
+        assertEquals(1, first.mDeInits);
+        assertEquals(1, second.mInits);
+        lease.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesAnotherModelOfALeasedProcessWideBackend() throws IllegalAccessException {
+        mRegistry.acquire(classifier("a", true), 224, 224);
+
+        mRegistry.acquire(classifier("b", true), 224, 224);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedLeasesCannotBeUsed() throws IllegalAccessException {
+        ModelRegistry.Lease<CountingClassifier> lease = mRegistry.acquire(classifier("a", false), 224, 224);
+        lease.release();
+
+        lease.get();
+    }
+
+    private CountingClassifier classifier(String model, boolean processWide) throws IllegalAccessException {
+        return new CountingClassifier(model, mSynset.getPath(), processWide);
+    }
+
+    private static final class CountingClassifier extends SceneClassifier {
+        private final boolean mProcessWide;
+        volatile int mInits;
+        volatile int mDeInits;
+
+        CountingClassifier(String model, String synsetPath, boolean processWide) throws IllegalAccessException {
+            super(null, model, "weights", null, synsetPath, SimulatedBackend.forClassification(3));
+            mProcessWide = processWide;
+        }
+
+        @Override
+        public void init(int imgWidth, int imgHeight) {
+            super.init(imgWidth, imgHeight);
+            mInits++;
+        }
+
+        @Override
+        public void deInit() {
+            super.deInit();
+            mDeInits++;
+        }
+
+        @Override
+        boolean isBackendProcessWide() {
+            return mProcessWide;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectTrackerTest {
+
+    @Test
+    public void detectionsStartTracks() {
+        ObjectTracker tracker = new ObjectTracker.Builder().build();
+
+        List<ObjectTracker.Track> tracks = tracker.update(Arrays.asList(
+                box("cat", 0, 0, 100, 100), box("dog", 200, 200, 300, 300)));
+
+        assertEquals(2, tracks.size());
+        assertEquals(2, tracker.getTrackCount());
+        assertTrue(tracks.get(0).isDetected());
+        assertNotEquals(tracks.get(0).getId(), tracks.get(1).getId());
+        assertEquals(0, tracks.get(0).getLeft(), 1f);
+        assertEquals(100, tracks.get(0).getRight(), 1f);
+    }
+
+    @Test
+    public void followsAMovingObjectWithTheSameId() {
+        ObjectTracker tracker = new ObjectTracker.Builder().build();
+        int id = tracker.update(Collections.singletonList(box("cat", 0, 0, 100, 100))).get(0).getId();
+
+        ObjectTracker.Track track = null;
+        for (int frame = 1; frame <= 20; frame++) {
+            int x = frame * 5;
+            track = tracker.update(Collections.singletonList(box("cat", x, 0, x + 100, 100))).get(0);
+            assertEquals(id, track.getId());
+        }
+        assertEquals(1, tracker.getTrackCount());
+
+        // With the velocity learned, prediction keeps moving the box
+        float left = track.getLeft();
+        track = tracker.predict().get(0);
+        assertFalse(track.isDetected());
+        assertTrue(track.getLeft() > left + 2);
+    }
+
+    @Test
+    public void doesNotMatchAcrossLabels() {
+        ObjectTracker tracker = new ObjectTracker.Builder().build();
+        tracker.update(Collections.singletonList(box("cat", 0, 0, 100, 100)));
+
+        tracker.update(Collections.singletonList(box("dog", 0, 0, 100, 100)));
+
+        assertEquals(2, tracker.getTrackCount());
+    }
+
+    @Test
+    public void dropsTracksMissedTooOften() {
+        ObjectTracker tracker = new ObjectTracker.Builder().setMaxMisses(2).build();
+        tracker.update(Collections.singletonList(box("cat", 0, 0, 100, 100)));
+        List<VisionDetRet> none = Collections.emptyList();
+
+        tracker.update(none);
+        tracker.update(none);
+        assertEquals(1, tracker.getTrackCount());
+        tracker.update(none);
+
+        assertEquals(0, tracker.getTrackCount());
+    }
+
+    @Test
+    public void detectsAgainAfterTheInterval() {
+        ObjectTracker tracker = new ObjectTracker.Builder().setDetectionInterval(3).build();
+        assertTrue(tracker.shouldDetect());
+        tracker.update(Collections.singletonList(box("cat", 0, 0, 100, 100)));
+
+        assertFalse(tracker.shouldDetect());
+        tracker.predict();
+        tracker.predict();
+        assertFalse(tracker.shouldDetect());
+        tracker.predict();
+
+        assertTrue(tracker.shouldDetect());
+    }
+
+    @Test
+    public void theIntervalCanChangeWhileTracking() {
+        ObjectTracker tracker = new ObjectTracker.Builder().setDetectionInterval(2).build();
+        tracker.update(Collections.singletonList(box("cat", 0, 0, 100, 100)));
+
+        tracker.setDetectionInterval(4);
+        for (int frame = 0; frame != 3; frame++) {
+            tracker.predict();
+            assertFalse(tracker.shouldDetect());
+        }
+        tracker.predict();
+
+        assertTrue(tracker.shouldDetect());
+    }
+
+    @Test
+    public void lateDetectionsCorrectTheFrameTheyCameFrom() {
+        // An object moving 10 pixels per frame, detected with a lag of 3 frames
+        ObjectTracker lagged = new ObjectTracker.Builder().build();
+        ObjectTracker current = new ObjectTracker.Builder().build();
+        for (int frame = 0; frame != 30; frame++) {
+            current.update(Collections.singletonList(box("cat", frame * 10, 0, frame * 10 + 100, 100)));
+        }
+        for (int frame = 0; frame != 30; frame++) {
+            lagged.predict();
+            if (frame >= 3) {
+                int x = (frame - 3) * 10;
+                lagged.update(Collections.singletonList(box("cat", x, 0, x + 100, 100)), lagged.getFrame() - 3);
+            }
+        }
+
+        ObjectTracker.Track expected = current.predict().get(0);
+        ObjectTracker.Track track = lagged.predict().get(0);
+
+        assertEquals(1, lagged.getTrackCount());
+        // The lag is made up for by predicting forward from the detected frame
+        assertEquals(expected.getLeft(), track.getLeft(), 5f);
+        assertEquals(290 + 10, track.getLeft(), 10f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFramesNotSeenYet() {
+        ObjectTracker tracker = new ObjectTracker.Builder().build();
+        tracker.predict();
+
+        tracker.update(Collections.<VisionDetRet>emptyList(), tracker.getFrame() + 1);
+    }
+
+    private static VisionDetRet box(String label, int left, int top, int right, int bottom) {
+        return new VisionDetRet(label, 0.9f, left, top, right, bottom);
+    }
+}
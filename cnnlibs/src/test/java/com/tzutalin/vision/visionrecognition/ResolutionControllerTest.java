@@ -0,0 +1,92 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionControllerTest {
+    private static final int MIN_SIDE = 240;
+    private static final int MAX_SIDE = 600;
+    private static final long TARGET_MS = 250;
+
+    @Test
+    public void staysAtTheLargestSideWithinTheBudget() {
+        ResolutionController controller = new ResolutionController.Builder(MIN_SIDE, MAX_SIDE, TARGET_MS).build();
+
+        for (int i = 0; i != 100; i++) {
+            controller.onFrame(100);
+        }
+
+        assertEquals(MAX_SIDE, controller.getSide());
+    }
+
+    @Test
+    public void convergesUnderTheBudgetWhenLatencyFollowsPixels() {
+        ResolutionController controller = new ResolutionController.Builder(MIN_SIDE, MAX_SIDE, TARGET_MS).build();
+
+        for (int i = 0; i != 200; i++) {
+            controller.onFrame(latencyAt(controller.getSide()));
+        }
+
+        int side = controller.getSide();
+        assertTrue("side " + side, side > MIN_SIDE && side < MAX_SIDE);
+        assertTrue(latencyAt(side) <= TARGET_MS);
+        // The next step up would break the budget
+        assertTrue(latencyAt(side + 32) > TARGET_MS * 0.9f);
+    }
+
+    @Test
+    public void stepsBackUpWhenFramesGetFaster() {
+        ResolutionController controller = new ResolutionController.Builder(MIN_SIDE, MAX_SIDE, TARGET_MS)
+                .setInitialSide(MIN_SIDE)
+                .build();
+
+        for (int i = 0; i != 200; i++) {
+            controller.onFrame(latencyAt(controller.getSide()) / 4);
+        }
+
+        assertEquals(MAX_SIDE, controller.getSide());
+    }
+
+    @Test
+    public void undoesADropThatBringsNoGain() {
+        ResolutionController controller = new ResolutionController.Builder(MIN_SIDE, MAX_SIDE, TARGET_MS).build();
+
+        // Latency that does not depend on the input size, as with a net rescaling its input itself
+        for (int i = 0; i != 100; i++) {
+            controller.onFrame(400);
+        }
+
+        assertEquals(MAX_SIDE, controller.getSide());
+        assertEquals(MAX_SIDE, controller.getFloorSide());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedBounds() {
+        new ResolutionController.Builder(MAX_SIDE, MIN_SIDE, TARGET_MS);
+    }
+
+    /**
+     * A latency of 400 ms at the largest side, growing with the pixel count.
+     */
+    private static long latencyAt(int side) {
+        return 400L * side * side / (MAX_SIDE * MAX_SIDE);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ResultCacheTest {
+    private final List<File> mFiles = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    child.delete();
+                }
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        ResultCache cache = new ResultCache.Builder().setMaxEntries(2).build();
+        cache.put("a", result("cat"));
+        cache.put("b", result("dog"));
+        // Reading a makes b the least recently used
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", result("bird"));
+
+        assertNull(cache.get("b"));
+        assertEquals("cat", cache.get("a").get(0).getLabel());
+        assertEquals("bird", cache.get("c").get(0).getLabel());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void diskEntriesSurviveANewCache() throws IOException {
+        File directory = File.createTempFile("results", "");
+        directory.delete();
+        directory.mkdirs();
+        mFiles.add(directory);
+        new ResultCache.Builder().setDiskCache(directory, 1 << 20).build().put("abc|model", result("cat"));
+
+        ResultCache cache = new ResultCache.Builder().setDiskCache(directory, 1 << 20).build();
+
+        assertEquals("cat", cache.get("abc|model").get(0).getLabel());
+        assertEquals(1, cache.getDiskHitCount());
+    }
+
+    @Test
+    public void hashesTheContentWithItsLength() throws IOException {
+        File file = write("abc".getBytes("UTF-8"));
+
+        assertEquals("b4963f3f3fad78673ba2744126ca2d52-3", ResultCache.hashFile(file));
+        assertEquals("b4963f3f3fad78673ba2744126ca2d52", ResultCache.hashString("abc"));
+    }
+
+    @Test
+    public void equalContentGivesEqualHashes() throws IOException {
+        byte[] content = pattern(100000);
+
+        assertEquals(ResultCache.hashFile(write(content)), ResultCache.hashFile(write(content)));
+    }
+
+    @Test
+    public void anyByteChangesTheHash() throws IOException {
+        byte[] content = pattern(100000);
+        String hash = ResultCache.hashFile(write(content));
+        // Flip a byte in the middle of a block, in a later read chunk and in the tail
+        int[] positions = {5, 70001, content.length - 1};
+        for (int position : positions) {
+            byte[] changed = content.clone();
+            changed[position] ^= 1;
+            assertNotEquals(hash, ResultCache.hashFile(write(changed)));
+        }
+    }
+
+    @Test
+    public void readChunksDoNotChangeTheHash() throws IOException {
+        // Long enough to span several reads, with a partial block at each boundary
+        byte[] content = pattern(3 * 65536 + 7);
+        String ascii = new String(content, "US-ASCII");
+
+        assertEquals(ResultCache.hashString(ascii) + '-' + content.length, ResultCache.hashFile(write(content)));
+    }
+
+    @Test
+    public void returnsNullForMissingFiles() {
+        assertNull(ResultCache.hashFile(new File("/nonexistent/image.jpg")));
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = File.createTempFile("hash", ".bin");
+        mFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<VisionDetRet> result(String label) {
+        return Collections.singletonList(new VisionDetRet(label, 0.9f, 0, 0, 10, 10));
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i != length; i++) {
+            bytes[i] = (byte) ('a' + (i * 7 + i / 13) % 26);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SceneGatedDetectorTest {
+    private File mSynset;
+    private FixedScenes mScenes;
+    private RecordingDetector mDetector;
+
+    @Before
+    public void setUp() throws IOException {
+        mSynset = File.createTempFile("synset", ".txt");
+        mScenes = new FixedScenes(mSynset.getPath());
+        mDetector = new RecordingDetector(mSynset.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        mSynset.delete();
+    }
+
+    @Test
+    public void theMostConfidentSceneComesBeforeTheRuleOrder() {
+        mScenes.set(ret("kitchen", 0.9f), ret("street", 0.6f));
+        SceneGatedDetector gated = new SceneGatedDetector.Builder(mScenes, mDetector)
+                .skipWhen("street", 0.5f)
+                .detectWhen("kitchen", 0.5f, "cup")
+                .build();
+
+        SceneGatedDetector.Result result = gated.classifyByPath("image.jpg");
+
+        assertTrue(result.isDetectorRun());
+        assertEquals("cup", mDetector.mSelectedLabel);
+    }
+
+    @Test
+    public void theFirstRuleAddedWinsForAScene() {
+        mScenes.set(ret("kitchen", 0.9f));
+        SceneGatedDetector gated = new SceneGatedDetector.Builder(mScenes, mDetector)
+                .detectWhen(null, 0.8f)
+                .skipWhen("kitchen", 0.5f)
+                .build();
+
+        assertTrue(gated.classifyByPath("image.jpg").isDetectorRun());
+        assertNull(mDetector.mSelectedLabel);
+    }
+
+    @Test
+    public void lessConfidentScenesFallThroughToTheNextScene() {
+        mScenes.set(ret("kitchen", 0.4f), ret("street", 0.3f));
+        SceneGatedDetector gated = new SceneGatedDetector.Builder(mScenes, mDetector)
+                .detectWhen("kitchen", 0.5f)
+                .skipWhen("street", 0.2f)
+                .build();
+
+        SceneGatedDetector.Result result = gated.classifyByPath("image.jpg");
+
+        assertFalse(result.isDetectorRun());
+        assertEquals(0, mDetector.mCalls);
+        assertEquals(2, result.getScenes().size());
+    }
+
+    @Test
+    public void theDefaultAppliesWhenNoRuleMatches() {
+        mScenes.set(ret("beach", 0.9f));
+        SceneGatedDetector gated = new SceneGatedDetector.Builder(mScenes, mDetector)
+                .detectWhen("kitchen", 0.5f)
+                .setDefaultDetect(false)
+                .build();
+
+        assertFalse(gated.classifyByPath("image.jpg").isDetectorRun());
+        assertEquals(0f, gated.getDetectorRunRate(), 0f);
+    }
+
+    @Test
+    public void severalObjectLabelsAreFilteredAfterDetection() {
+        mScenes.set(ret("kitchen", 0.9f));
+        mDetector.mDetections = Arrays.asList(ret("cup", 0.9f), ret("plate", 0.8f), ret("fork", 0.7f));
+        SceneGatedDetector gated = new SceneGatedDetector.Builder(mScenes, mDetector)
+                .detectWhen("kitchen", 0.5f, "cup", "fork")
+                .build();
+
+        List<VisionDetRet> detections = gated.classifyByPath("image.jpg").getDetections();
+
+        assertNull(mDetector.mSelectedLabel);
+        assertEquals(2, detections.size());
+        assertEquals("cup", detections.get(0).getLabel());
+        assertEquals("fork", detections.get(1).getLabel());
+        assertEquals(1f, gated.getDetectorRunRate(), 0f);
+    }
+
+    private static VisionDetRet ret(String label, float confidence) {
+        return new VisionDetRet(label, confidence, 0, 0, 10, 10);
+    }
+
+    private static final class FixedScenes extends SceneClassifier {
+        private List<VisionDetRet> mResults = new ArrayList<>();
+
+        FixedScenes(String synsetPath) {
+            super(null, "scene", "weights", null, synsetPath, SimulatedBackend.forClassification(3));
+        }
+
+        void set(VisionDetRet... results) {
+            mResults = Arrays.asList(results);
+        }
+
+        @Override
+        public List<VisionDetRet> classifyByPath(String imgPath, @NonNull ClassifyOptions options) {
+            return new ArrayList<>(mResults);
+        }
+    }
+
+    private static final class RecordingDetector extends ObjectDetector {
+        List<VisionDetRet> mDetections = new ArrayList<>();
+        String mSelectedLabel;
+        int mCalls;
+
+        RecordingDetector(String synsetPath) {
+            super(null, "detector", "weights", null, synsetPath, SimulatedBackend.forDetection(3, 4));
+        }
+
+        @Override
+        public List<VisionDetRet> classifyByPath(String imgPath, @NonNull ClassifyOptions options) {
+            mCalls++;
+            mSelectedLabel = options.getSelectedLabel();
+            return new ArrayList<>(mDetections);
+        }
+    }
+}
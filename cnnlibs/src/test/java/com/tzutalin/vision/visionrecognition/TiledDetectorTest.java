@@ -0,0 +1,68 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TiledDetectorTest {
+
+    @Test
+    public void shortSidesGetASingleTile() {
+        assertArrayEquals(new int[]{0}, TiledDetector.layoutAxis(400, 600, 120));
+        assertArrayEquals(new int[]{0}, TiledDetector.layoutAxis(600, 600, 120));
+    }
+
+    @Test
+    public void tilesCoverTheSideWithTheOverlap() {
+        int[] lengths = {601, 1000, 1080, 1920, 3000, 4032};
+        for (int length : lengths) {
+            int[] starts = TiledDetector.layoutAxis(length, 600, 120);
+
+            assertEquals(0, starts[0]);
+            assertEquals(length - 600, starts[starts.length - 1]);
+            for (int i = 1; i != starts.length; i++) {
+                int overlap = starts[i - 1] + 600 - starts[i];
+                assertTrue(length + ": overlap " + overlap, overlap >= 120);
+            }
+        }
+    }
+
+    @Test
+    public void usesTheFewestTilesForTheOverlap() {
+        // 480 pixel steps: 2 tiles cover up to 1080 pixels, 3 up to 1560
+        assertEquals(2, TiledDetector.layoutAxis(1080, 600, 120).length);
+        assertEquals(3, TiledDetector.layoutAxis(1081, 600, 120).length);
+        assertEquals(3, TiledDetector.layoutAxis(1560, 600, 120).length);
+        assertEquals(4, TiledDetector.layoutAxis(1561, 600, 120).length);
+    }
+
+    @Test
+    public void spreadsTheTilesEvenly() {
+        assertArrayEquals(new int[]{0, 200, 400}, TiledDetector.layoutAxis(1000, 600, 300));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnOverlapAboveHalfATile() {
+        new TiledDetector.Builder(Collections.<ObjectDetector>singletonList(null)).setOverlap(0.6f);
+    }
+}
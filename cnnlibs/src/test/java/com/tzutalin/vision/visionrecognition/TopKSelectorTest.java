@@ -0,0 +1,111 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TopKSelectorTest {
+
+    @Test
+    public void selectsTheBestScoresInDescendingOrder() {
+        float[] scores = {0.1f, 0.7f, 0.05f, 0.9f, 0.3f};
+        int[] indices = new int[3];
+        float[] top = new float[3];
+
+        int count = TopKSelector.select(scores, scores.length, 3, 0f, indices, top);
+
+        assertEquals(3, count);
+        assertArrayEquals(new int[]{3, 1, 4}, indices);
+        assertEquals(0.9f, top[0], 0f);
+        assertEquals(0.3f, top[2], 0f);
+    }
+
+    @Test
+    public void breaksTiesByTheLowerIndex() {
+        float[] scores = {0.5f, 0.8f, 0.5f, 0.8f, 0.5f};
+        int[] indices = new int[4];
+
+        int count = TopKSelector.select(scores, scores.length, 4, 0f, indices, new float[4]);
+
+        assertEquals(4, count);
+        assertArrayEquals(new int[]{1, 3, 0, 2}, indices);
+    }
+
+    @Test
+    public void skipsScoresBelowTheMinimumAndNaN() {
+        float[] scores = {0.2f, Float.NaN, 0.6f, 0.4f};
+        int[] indices = new int[4];
+
+        int count = TopKSelector.select(scores, scores.length, 4, 0.3f, indices, new float[4]);
+
+        assertEquals(2, count);
+        assertEquals(2, indices[0]);
+        assertEquals(3, indices[1]);
+    }
+
+    @Test
+    public void onlyConsidersTheGivenLength() {
+        float[] scores = {0.1f, 0.2f, 0.9f};
+        int[] indices = new int[2];
+
+        int count = TopKSelector.select(scores, 2, 2, 0f, indices, new float[2]);
+
+        assertEquals(2, count);
+        assertArrayEquals(new int[]{1, 0}, indices);
+    }
+
+    @Test
+    public void matchesAFullSort() {
+        Random random = new Random(42);
+        float[] scores = new float[1000];
+        for (int i = 0; i != scores.length; i++) {
+            // Few distinct values, so that ties are common
+            scores[i] = random.nextInt(50) / 50f;
+        }
+        Integer[] order = new Integer[scores.length];
+        for (int i = 0; i != order.length; i++) {
+            order[i] = i;
+        }
+        final float[] sorted = scores;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byScore = Float.compare(sorted[b], sorted[a]);
+                return byScore != 0 ? byScore : a - b;
+            }
+        });
+        int[] indices = new int[20];
+
+        int count = TopKSelector.select(scores, scores.length, 20, 0f, indices, new float[20]);
+
+        assertEquals(20, count);
+        for (int i = 0; i != count; i++) {
+            assertEquals(order[i].intValue(), indices[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutputsSmallerThanK() {
+        TopKSelector.select(new float[]{1f, 2f}, 2, 2, 0f, new int[1], new float[1]);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.visionrecognition;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvConverterTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void keepsTheFrameWithoutRotation() {
+        int[] argb = convert(grey(WIDTH, HEIGHT), 0, 0, WIDTH, HEIGHT, 0, WIDTH, HEIGHT);
+
+        for (int y = 0; y != HEIGHT; y++) {
+            for (int x = 0; x != WIDTH; x++) {
+                assertEquals(lumaAt(x, y, WIDTH), luma(argb[y * WIDTH + x]));
+            }
+        }
+    }
+
+    @Test
+    public void rotatesClockwise() {
+        YuvFrame frame = grey(WIDTH, HEIGHT);
+        for (int rotation : new int[]{90, 180, 270}) {
+            boolean swap = rotation != 180;
+            int dstWidth = swap ? HEIGHT : WIDTH;
+            int dstHeight = swap ? WIDTH : HEIGHT;
+
+            int[] argb = convert(frame, 0, 0, WIDTH, HEIGHT, rotation, dstWidth, dstHeight);
+
+            for (int y = 0; y != dstHeight; y++) {
+                for (int x = 0; x != dstWidth; x++) {
+                    int[] src = sourceOf(x, y, rotation, WIDTH, HEIGHT);
+                    assertEquals("rotation " + rotation + " at " + x + "," + y,
+                            lumaAt(src[0], src[1], WIDTH), luma(argb[y * dstWidth + x]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void negativeRotationsGoCounterClockwise() {
+        YuvFrame frame = grey(WIDTH, HEIGHT);
+
+        int[] expected = convert(frame, 0, 0, WIDTH, HEIGHT, 270, HEIGHT, WIDTH).clone();
+        int[] argb = convert(frame, 0, 0, WIDTH, HEIGHT, -90, HEIGHT, WIDTH);
+
+        for (int i = 0; i != WIDTH * HEIGHT; i++) {
+            assertEquals(expected[i], argb[i]);
+        }
+    }
+
+    @Test
+    public void rotatesTheCropOnly() {
+        // The 2x2 region starting at column 1, turned a quarter clockwise
+        int[] argb = convert(grey(WIDTH, HEIGHT), 1, 0, 2, 2, 90, 2, 2);
+
+        assertEquals(lumaAt(1, 1, WIDTH), luma(argb[0]));
+        assertEquals(lumaAt(1, 0, WIDTH), luma(argb[1]));
+        assertEquals(lumaAt(2, 1, WIDTH), luma(argb[2]));
+        assertEquals(lumaAt(2, 0, WIDTH), luma(argb[3]));
+    }
+
+    @Test
+    public void samplesAtTheCenterOfEachOutputPixel() {
+        int[] argb = convert(grey(8, 4), 0, 0, 8, 4, 0, 4, 2);
+
+        // Each output pixel covers 2x2 source pixels and takes the lower right one of them
+        assertEquals(lumaAt(1, 1, 8), luma(argb[0]));
+        assertEquals(lumaAt(3, 1, 8), luma(argb[1]));
+        assertEquals(lumaAt(7, 3, 8), luma(argb[7]));
+    }
+
+    @Test
+    public void chromaFollowsTheRotatedPixel() {
+        // Red chroma on the left half of the frame only, with interleaved semi-planar planes
+        byte[] uv = new byte[WIDTH];
+        uv[0] = (byte) 128;
+        uv[1] = (byte) 255;
+        uv[2] = (byte) 128;
+        uv[3] = (byte) 128;
+        ByteBuffer u = ByteBuffer.wrap(uv);
+        ByteBuffer v = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT, lumaPlane(WIDTH, HEIGHT), WIDTH, 1, u, v, WIDTH, 2);
+
+        // After a quarter turn clockwise, the left half of the frame is the top half of the output
+        int[] argb = convert(frame, 0, 0, WIDTH, HEIGHT, 90, HEIGHT, WIDTH);
+
+        for (int x = 0; x != HEIGHT; x++) {
+            assertTrue(red(argb[x]) > luma(argb[x]));
+            int bottom = argb[(WIDTH - 1) * HEIGHT + x];
+            assertEquals(red(bottom), luma(bottom));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCropsOutsideOfTheFrame() {
+        convert(grey(WIDTH, HEIGHT), 2, 0, 3, 2, 0, 3, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRotationsThatAreNotQuarterTurns() {
+        convert(grey(WIDTH, HEIGHT), 0, 0, WIDTH, HEIGHT, 45, WIDTH, HEIGHT);
+    }
+
+    /**
+     * @return The frame pixel that an output pixel shows, for an output of the same size as the frame
+     */
+    private static int[] sourceOf(int x, int y, int rotation, int width, int height) {
+        switch (rotation) {
+            case 90:
+                return new int[]{y, height - 1 - x};
+            case 180:
+                return new int[]{width - 1 - x, height - 1 - y};
+            case 270:
+                return new int[]{width - 1 - y, x};
+            default:
+                return new int[]{x, y};
+        }
+    }
+
+    private static int[] convert(YuvFrame frame, int left, int top, int width, int height, int rotation,
+                                 int dstWidth, int dstHeight) {
+        return new YuvConverter().convertToArgb(frame, left, top, width, height, rotation, dstWidth, dstHeight);
+    }
+
+    /**
+     * A frame without chroma, so that every channel of the output is the luma.
+     */
+    private static YuvFrame grey(int width, int height) {
+        byte[] chroma = new byte[(width / 2) * (height / 2)];
+        Arrays.fill(chroma, (byte) 128);
+        return new YuvFrame(width, height, lumaPlane(width, height), width, 1,
+                ByteBuffer.wrap(chroma), ByteBuffer.wrap(chroma), width / 2, 1);
+    }
+
+    private static ByteBuffer lumaPlane(int width, int height) {
+        byte[] luma = new byte[width * height];
+        for (int y = 0; y != height; y++) {
+            for (int x = 0; x != width; x++) {
+                luma[y * width + x] = (byte) lumaAt(x, y, width);
+            }
+        }
+        return ByteBuffer.wrap(luma);
+    }
+
+    private static int lumaAt(int x, int y, int width) {
+        return 16 + 4 * (y * width + x);
+    }
+
+    private static int luma(int argb) {
+        return argb & 0xff;
+    }
+
+    private static int red(int argb) {
+        return (argb >> 16) & 0xff;
+    }
+}
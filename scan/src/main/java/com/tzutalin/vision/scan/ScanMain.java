@@ -0,0 +1,157 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.vision.scan;
+
+import com.tzutalin.vision.visionrecognition.DirectoryScanJob;
+import com.tzutalin.vision.visionrecognition.SceneClassifier;
+import com.tzutalin.vision.visionrecognition.SimulatedBackend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command line entry point of {@link DirectoryScanJob}, classifying scenes with {@link SimulatedBackend}.
+ * Killing it with Ctrl-C stops after the current image and keeps what was written; running it again with
+ * the same output resumes.
+ */
+public final class ScanMain {
+    private static final String USAGE = "Usage: scan <image directory> <output csv> [--synset file]"
+            + " [--classes n] [--top k] [--latency ms] [--checkpoint images]";
+    private static final int DEFAULT_CLASSES = 205;
+
+    private ScanMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        File root = new File(args[0]);
+        File output = new File(args[1]);
+        String synsetPath = null;
+        int classes = DEFAULT_CLASSES;
+        int topK = 5;
+        long latencyMs = 0;
+        int checkpointInterval = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                usage("Missing value of " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--synset":
+                    synsetPath = value;
+                    break;
+                case "--classes":
+                    classes = parseInt(value);
+                    break;
+                case "--top":
+                    topK = parseInt(value);
+                    break;
+                case "--latency":
+                    latencyMs = parseInt(value);
+                    break;
+                case "--checkpoint":
+                    checkpointInterval = parseInt(value);
+                    break;
+                default:
+                    usage("Unknown option " + args[i - 1]);
+            }
+        }
+        if (synsetPath == null) {
+            synsetPath = writeSynsets(classes).getPath();
+        }
+
+        SimulatedBackend backend = SimulatedBackend.forClassification(classes);
+        backend.setLatency(latencyMs, 0);
+        SceneClassifier classifier = new SceneClassifier(null, null, null, null, synsetPath, backend);
+        classifier.init(0, 0);
+        classifier.setTopK(topK);
+
+        DirectoryScanJob.Builder builder = new DirectoryScanJob.Builder(classifier, root, output)
+                .setListener(new DirectoryScanJob.Listener() {
+                    @Override
+                    public void onCheckpoint(DirectoryScanJob.Summary progress) {
+                        System.err.println(progress);
+                    }
+                });
+        if (checkpointInterval > 0) {
+            builder.setCheckpointInterval(checkpointInterval);
+        }
+        final DirectoryScanJob job = builder.build();
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Let the job write its last checkpoint before the JVM exits
+                job.cancel();
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        DirectoryScanJob.Summary summary;
+        try {
+            summary = job.run();
+        } finally {
+            finished.countDown();
+            classifier.deInit();
+        }
+        System.out.println(summary);
+        System.out.println(classifier.getMetrics());
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            usage("Not a number: " + value);
+            return 0;
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    /**
+     * Write placeholder labels, class0 to class(n-1), for runs without a synset file.
+     */
+    private static File writeSynsets(int classes) throws IOException {
+        File file = File.createTempFile("synset", ".txt");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (int i = 0; i != classes; i++) {
+                writer.write("class" + i + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}